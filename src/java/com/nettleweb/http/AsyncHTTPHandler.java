@@ -0,0 +1,29 @@
+package com.nettleweb.http;
+
+import org.jetbrains.annotations.*;
+
+import java.util.concurrent.*;
+
+// a handler that does not hold a thread while it waits, the response is written once the stage completes,
+// the stage is cancelled if the client disconnects or the handler timeout of the server passes first
+public interface AsyncHTTPHandler {
+	CompletionStage<HTTPResponse> handleRequest(@NotNull HTTPRequest request) throws Exception;
+
+	// runs a blocking handler on the calling thread
+	@NotNull
+	static AsyncHTTPHandler from(@NotNull HTTPHandler handler) {
+		return request -> CompletableFuture.completedFuture(handler.handleRequest(request));
+	}
+
+	// runs a blocking handler on the executor
+	@NotNull
+	static AsyncHTTPHandler from(@NotNull HTTPHandler handler, @NotNull Executor executor) {
+		return request -> CompletableFuture.supplyAsync(() -> {
+			try {
+				return handler.handleRequest(request);
+			} catch (Exception e) {
+				throw new CompletionException(e);
+			}
+		}, executor);
+	}
+}
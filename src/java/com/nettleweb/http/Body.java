@@ -4,8 +4,11 @@ import org.jetbrains.annotations.*;
 
 import java.io.*;
 import java.lang.reflect.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.nio.charset.*;
-import java.util.zip.*;
+import java.nio.file.*;
+import java.util.*;
 
 public abstract class Body extends Cloneable implements Serializable {
 	public static final Body emptyBody = new EmptyBody();
@@ -25,6 +28,48 @@ public abstract class Body extends Cloneable implements Serializable {
 		return stream == null ? emptyBody : new StreamBody(stream, null);
 	}
 
+	// the buffers are shared, not copied, and must not be modified while the body is in use
+	@NotNull
+	public static Body from(@NotNull ByteBuffer... buffers) {
+		ByteBuffer[] copy = new ByteBuffer[buffers.length];
+		for (int i = 0; i < copy.length; i++)
+			copy[i] = buffers[i].asReadOnlyBuffer();
+
+		return new ByteBufferBody(copy);
+	}
+
+	@NotNull
+	public static Body from(@NotNull Path file) {
+		try {
+			return new FileBody(file, null, 0L, Files.size(file));
+		} catch (Exception e) {
+			throw new StreamError("Failed to open file", e);
+		}
+	}
+
+	// a range of the file, read at the offset without going through the bytes before it
+	@NotNull
+	public static Body from(@NotNull Path file, long position, long length) {
+		if (position < 0L || length < 0L)
+			throw new IllegalArgumentException("Invalid file range: " + position + ", " + length);
+
+		return new FileBody(file, null, position, length);
+	}
+
+	@NotNull
+	public static Body from(@NotNull FileChannel channel, long position, long length) {
+		if (position < 0L || length < 0L)
+			throw new IllegalArgumentException("Invalid file range: " + position + ", " + length);
+
+		return new FileBody(null, channel, position, length);
+	}
+
+	// the parts are sent one after another, each in the way it would be sent on its own
+	@NotNull
+	public static Body concat(@NotNull Body... parts) {
+		return new SequenceBody(parts.clone());
+	}
+
 	@NotNull
 	// no longer public because it is unsafe and its usage should be restricted
 	static Body from(@Nullable InputStream stream, @Nullable String encoding) {
@@ -50,15 +95,52 @@ public abstract class Body extends Cloneable implements Serializable {
 	}
 
 	public void pipeTo(@NotNull OutputStream out, boolean close) {
-		try (InputStream stream = this.stream()) {
-			Streams.pipe(stream, out);
+		try {
+			writeTo(out);
 			if (close)
 				out.close();
+			else
+				out.flush();
 		} catch (Exception e) {
 			throw new StreamError("Failed to transfer stream", e);
 		}
 	}
 
+	// writes the body and leaves the last flush to the caller, bodies held in memory or in files never stall,
+	// so only streamed bodies are flushed on the way
+	void writeTo(@NotNull OutputStream out) throws IOException {
+		try (InputStream stream = this.stream()) {
+			Streams.pipe(stream, out, false);
+		}
+	}
+
+	// the trailer fields of a body received with the chunked transfer coding, available once it has been read to the end
+	@Nullable
+	public Headers trailers() {
+		return null;
+	}
+
+	// the number of bytes in this body, or -1 if unknown
+	long length() {
+		return -1L;
+	}
+
+	// the content of a body that is held in memory, as buffers that can be written without copying
+	@Nullable
+	ByteBuffer[] buffers() {
+		return null;
+	}
+
+	// writes this body directly to a connection, returns false if it must be piped as a stream instead
+	boolean transfer(@NotNull OutputBuffer out) throws IOException {
+		return false;
+	}
+
+	// reads and drops the unread data of a framed stream so that the connection can be reused
+	boolean discard(long limit) {
+		return true;
+	}
+
 	@NotNull
 	@Override
 	public Body clone() {
@@ -101,11 +183,36 @@ public abstract class Body extends Cloneable implements Serializable {
 		}
 
 		@Override
-		public void pipeTo(@NotNull OutputStream out, boolean close) {
+		void writeTo(@NotNull OutputStream out) throws IOException {
 			if (body != null)
-				body.pipeTo(out);
-			if (close)
-				Streams.closeUnchecked(out);
+				body.writeTo(out);
+		}
+
+		@Nullable
+		@Override
+		public Headers trailers() {
+			return body == null ? null : body.trailers();
+		}
+
+		@Override
+		long length() {
+			return body == null ? 0L : body.length();
+		}
+
+		@Nullable
+		@Override
+		ByteBuffer[] buffers() {
+			return body == null ? null : body.buffers();
+		}
+
+		@Override
+		boolean transfer(@NotNull OutputBuffer out) throws IOException {
+			return body != null && body.transfer(out);
+		}
+
+		@Override
+		boolean discard(long limit) {
+			return body == null || body.discard(limit);
 		}
 	}
 
@@ -141,9 +248,12 @@ public abstract class Body extends Cloneable implements Serializable {
 		}
 
 		@Override
-		public void pipeTo(@NotNull OutputStream out, boolean close) {
-			if (close)
-				Streams.closeUnchecked(out);
+		void writeTo(@NotNull OutputStream out) {
+		}
+
+		@Override
+		long length() {
+			return 0L;
 		}
 	}
 
@@ -183,40 +293,406 @@ public abstract class Body extends Cloneable implements Serializable {
 		}
 
 		@Override
-		public void pipeTo(@NotNull OutputStream out, boolean close) {
+		void writeTo(@NotNull OutputStream out) throws IOException {
+			out.write(buffer, 0, buffer.length);
+		}
+
+		@Override
+		long length() {
+			return buffer.length;
+		}
+
+		@NotNull
+		@Override
+		ByteBuffer[] buffers() {
+			return new ByteBuffer[]{ByteBuffer.wrap(buffer).asReadOnlyBuffer()};
+		}
+	}
+
+	private static final class ByteBufferBody extends Body {
+		private final transient ByteBuffer[] buffers;
+		private final long length;
+
+		private ByteBufferBody(@NotNull ByteBuffer[] buffers) {
+			long length = 0L;
+			for (ByteBuffer buf : buffers)
+				length += buf.remaining();
+
+			this.buffers = buffers;
+			this.length = length;
+		}
+
+		// every use gets its own positions so that the body can be sent by several connections at once
+		@NotNull
+		private ByteBuffer[] duplicate() {
+			ByteBuffer[] buffers = this.buffers.clone();
+			for (int i = 0; i < buffers.length; i++)
+				buffers[i] = buffers[i].duplicate();
+
+			return buffers;
+		}
+
+		@Override
+		public Body body() {
+			return this;
+		}
+
+		@Override
+		public boolean bodyUsed() {
+			return false;
+		}
+
+		@NotNull
+		@Override
+		public String text() {
+			return new String(buffer(), StandardCharsets.UTF_8);
+		}
+
+		@NotNull
+		@Override
+		public byte[] buffer() {
+			if (length > Integer.MAX_VALUE - 8)
+				throw new StreamError("Body is too large to buffer: " + length);
+
+			byte[] data = new byte[(int) length];
+			int off = 0;
+
+			for (ByteBuffer buf : duplicate()) {
+				int n = buf.remaining();
+				buf.get(data, off, n);
+				off += n;
+			}
+
+			return data;
+		}
+
+		@NotNull
+		@Override
+		public InputStream stream() {
+			return new ByteBufferStream(duplicate());
+		}
+
+		@Override
+		long length() {
+			return length;
+		}
+
+		@NotNull
+		@Override
+		ByteBuffer[] buffers() {
+			return duplicate();
+		}
+
+		@Override
+		boolean transfer(@NotNull OutputBuffer out) throws IOException {
+			out.write(duplicate());
+			return true;
+		}
+	}
+
+	private static final class ByteBufferStream extends Streams.CompatStream {
+		private final ByteBuffer[] buffers;
+		private int index = 0;
+
+		private ByteBufferStream(@NotNull ByteBuffer[] buffers) {
+			this.buffers = buffers;
+		}
+
+		@Override
+		public int read(@NotNull byte[] b, int off, int len) {
+			final ByteBuffer[] buffers = this.buffers;
+
+			while (index < buffers.length) {
+				ByteBuffer buf = buffers[index];
+				if (!buf.hasRemaining()) {
+					index++;
+					continue;
+				}
+
+				if (len <= 0)
+					return 0;
+
+				int n = Math.min(len, buf.remaining());
+				buf.get(b, off, n);
+				return n;
+			}
+
+			return -1;
+		}
+
+		@Override
+		public int available() {
+			long n = 0L;
+			for (int i = index; i < buffers.length; i++)
+				n += buffers[i].remaining();
+
+			return (int) Math.min(n, Integer.MAX_VALUE);
+		}
+
+		@Override
+		public void close() {
+			index = buffers.length;
+		}
+	}
+
+	private static final class FileBody extends Body {
+		@Nullable
+		private final transient Path path;
+		@Nullable
+		private final transient FileChannel channel;
+
+		private final long position;
+		private final long length;
+		private boolean used;
+
+		private FileBody(@Nullable Path path, @Nullable FileChannel channel, long position, long length) {
+			this.path = path;
+			this.channel = channel;
+			this.position = position;
+			this.length = length;
+		}
+
+		// bodies backed by a path open the file on each use, a caller provided channel can only be used once
+		@NotNull
+		private FileChannel open() throws IOException {
+			if (path != null)
+				return FileChannel.open(path, StandardOpenOption.READ);
+
+			if (used)
+				throw new IllegalStateException("Body has already been used");
+
+			used = true;
+			return channel;
+		}
+
+		@Override
+		public Body body() {
+			return this;
+		}
+
+		@Override
+		public boolean bodyUsed() {
+			return used && path == null;
+		}
+
+		@NotNull
+		@Override
+		public String text() {
+			return new String(buffer(), StandardCharsets.UTF_8);
+		}
+
+		@NotNull
+		@Override
+		public byte[] buffer() {
+			if (length > Integer.MAX_VALUE - 8)
+				throw new StreamError("File is too large to buffer: " + length);
+
+			try (FileChannel channel = open()) {
+				ByteBuffer buf = ByteBuffer.allocate((int) length);
+				while (buf.hasRemaining()) {
+					if (channel.read(buf, position + buf.position()) < 0)
+						throw new EOFException("Unexpected end of file");
+				}
+				return buf.array();
+			} catch (IllegalStateException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new StreamError("Failed to read file", e);
+			}
+		}
+
+		@NotNull
+		@Override
+		public InputStream stream() {
 			try {
-				out.write(buffer, 0, buffer.length);
-				out.flush();
+				return new FileStream(open(), position, length);
+			} catch (IllegalStateException e) {
+				throw e;
 			} catch (Exception e) {
-				throw new StreamError("Failed to write buffer", e);
+				throw new StreamError("Failed to open file", e);
 			}
+		}
 
-			if (close)
-				Streams.closeUnchecked(out);
+		@Override
+		long length() {
+			return length;
+		}
+
+		@Override
+		boolean transfer(@NotNull OutputBuffer out) throws IOException {
+			try (FileChannel channel = open()) {
+				if (!out.transferFrom(channel, position, length)) {
+					try (InputStream stream = new FileStream(channel, position, length)) {
+						Streams.pipe(stream, out, false);
+					}
+				}
+			}
+			return true;
+		}
+	}
+
+	private static final class FileStream extends Streams.CompatStream {
+		private final FileChannel channel;
+		private long position;
+		private long remaining;
+
+		private FileStream(@NotNull FileChannel channel, long position, long length) {
+			this.channel = channel;
+			this.position = position;
+			this.remaining = length;
+		}
+
+		@Override
+		public int read(@NotNull byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0L)
+				return -1;
+			if (len <= 0)
+				return 0;
+
+			int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)), position);
+			if (n < 0)
+				throw new EOFException("Unexpected end of file");
+
+			position += n;
+			remaining -= n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return (int) Math.min(remaining, Integer.MAX_VALUE);
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+
+	private static final class SequenceBody extends Body {
+		private final transient Body[] parts;
+
+		private SequenceBody(@NotNull Body[] parts) {
+			this.parts = parts;
+		}
+
+		@Override
+		public Body body() {
+			return this;
+		}
+
+		@Override
+		public boolean bodyUsed() {
+			for (Body part : parts) {
+				if (part.bodyUsed())
+					return true;
+			}
+			return false;
+		}
+
+		@NotNull
+		@Override
+		public String text() {
+			return new String(buffer(), StandardCharsets.UTF_8);
+		}
+
+		@NotNull
+		@Override
+		public byte[] buffer() {
+			ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(Math.max(length(), 0L), Integer.MAX_VALUE - 8));
+			for (Body part : parts) {
+				byte[] data = part.buffer();
+				out.write(data, 0, data.length);
+			}
+			return out.toByteArray();
+		}
+
+		@NotNull
+		@Override
+		public InputStream stream() {
+			// each part is only opened once the previous one has been read
+			return new SequenceInputStream(new Enumeration<InputStream>() {
+				private int index = 0;
+
+				@Override
+				public boolean hasMoreElements() {
+					return index < parts.length;
+				}
+
+				@Override
+				public InputStream nextElement() {
+					if (index >= parts.length)
+						throw new NoSuchElementException();
+
+					return parts[index++].stream();
+				}
+			});
+		}
+
+		@Override
+		long length() {
+			long length = 0L;
+			for (Body part : parts) {
+				long n = part.length();
+				if (n < 0L)
+					return -1L;
+
+				length += n;
+			}
+			return length;
+		}
+
+		@Nullable
+		@Override
+		ByteBuffer[] buffers() {
+			List<ByteBuffer> list = new ArrayList<>(parts.length);
+			for (Body part : parts) {
+				ByteBuffer[] buffers = part.buffers();
+				if (buffers == null)
+					return null;
+
+				Collections.addAll(list, buffers);
+			}
+			return list.toArray(new ByteBuffer[0]);
+		}
+
+		@Override
+		void writeTo(@NotNull OutputStream out) throws IOException {
+			for (Body part : parts)
+				part.writeTo(out);
+		}
+
+		@Override
+		boolean transfer(@NotNull OutputBuffer out) throws IOException {
+			for (Body part : parts) {
+				if (!part.transfer(out))
+					part.writeTo(out);
+			}
+			return true;
 		}
 	}
 
 	private static final class StreamBody extends Body {
 		private final StreamWrapper stream;
+		@Nullable
+		private Streams.ChunkedStream chunked;
 
 		@SuppressWarnings("resource")
 		private StreamBody(@NotNull Object stream, @Nullable String encoding) {
+			if (stream instanceof Streams.ChunkedStream)
+				chunked = (Streams.ChunkedStream) stream;
+
 			if (encoding != null) {
 				String[] encodings = encoding.split(",", 10);
 				for (int i = encodings.length - 1; i >= 0; i--) {
-					switch (encoding = encodings[i]) {
+					switch (encoding = encodings[i].trim().toLowerCase(Locale.ROOT)) {
 						case "gzip":
-							try {
-								stream = new GZIPInputStream((InputStream) stream, 4096);
-							} catch (Exception e) {
-								throw new StreamError("Failed to initialize GZIP stream", e);
-							}
+						case "deflate":
+							// the pooled inflater is returned at the end of the data or when the body is closed
+							stream = new Streams.InflateInput((InputStream) stream, encoding.equals("gzip"));
 							break;
 						case "chunked":
-							stream = new Streams.ChunkedStream(stream);
-							break;
-						case "deflate":
-							stream = new InflaterInputStream((InputStream) stream, new Inflater(false), 4096);
+							stream = chunked = new Streams.ChunkedStream(stream);
 							break;
 						case "compress":
 							stream = new Streams.UnsupportedStream(stream);
@@ -287,6 +763,34 @@ public abstract class Body extends Cloneable implements Serializable {
 			return stream;
 		}
 
+		@Nullable
+		@Override
+		public Headers trailers() {
+			return chunked == null ? null : chunked.trailers();
+		}
+
+		@Override
+		long length() {
+			// known for Content-Length bodies that have not been read from yet
+			return !stream.used && stream.stream instanceof Streams.LengthStream ? ((Streams.LengthStream) stream.stream).remaining() : -1L;
+		}
+
+		@Override
+		void writeTo(@NotNull OutputStream out) throws IOException {
+			if (stream.used)
+				throw new IllegalStateException("Body has already been used.");
+
+			// the source may stall, what it has produced so far is pushed out meanwhile
+			try (InputStream in = stream) {
+				Streams.pipe(in, out, true);
+			}
+		}
+
+		@Override
+		boolean discard(long limit) {
+			return stream.discard(limit);
+		}
+
 		@NotNull
 		@Override
 		public Body clone() {
@@ -316,10 +820,57 @@ public abstract class Body extends Cloneable implements Serializable {
 			return ((InputStream) stream).read(b, off, len);
 		}
 
+		@Override
+		public int read(@NotNull ByteBuffer dst) throws IOException {
+			used = true;
+			return stream instanceof ReadableByteChannel ? ((ReadableByteChannel) stream).read(dst) : super.read(dst);
+		}
+
+		@NotNull
+		@Override
+		public byte[] readAllBytes() throws IOException {
+			// Content-Length bodies are read into an array of the exact size
+			if (stream instanceof Streams.LengthStream) {
+				long remaining = ((Streams.LengthStream) stream).remaining();
+				if (remaining <= Integer.MAX_VALUE - 8) {
+					byte[] data = new byte[(int) remaining];
+					if (readNBytes(data, 0, data.length) < data.length)
+						throw new EOFException("Unexpected end of stream");
+
+					return data;
+				}
+			}
+
+			return super.readAllBytes();
+		}
+
 		@Override
 		public void close() {
 			used = true;
 			Streams.closeUnchecked((InputStream) stream);
 		}
+
+		private boolean discard(long limit) {
+			if (!(stream instanceof Streams.FramedStream))
+				return false;
+
+			Streams.FramedStream framed = (Streams.FramedStream) stream;
+			byte[] buf = BufferPool.acquire(8192);
+			long n = 0L;
+
+			try {
+				while (!framed.finished()) {
+					int i = framed.read(buf, 0, buf.length);
+					if (i < 0 || (n += i) > limit)
+						break;
+				}
+			} catch (Exception e) {
+				return false;
+			} finally {
+				BufferPool.release(buf);
+			}
+
+			return framed.finished();
+		}
 	}
 }
\ No newline at end of file
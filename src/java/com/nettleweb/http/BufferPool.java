@@ -0,0 +1,201 @@
+package com.nettleweb.http;
+
+import org.jetbrains.annotations.*;
+
+import java.nio.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// size-classed pool of the short-lived buffers used by connections and streams, recently released
+// arrays are kept in a small per-thread cache in front of the shared pool
+public final class BufferPool {
+	private static final int minShift = 12; // 4 KiB
+	private static final int maxShift = 16; // 64 KiB
+	private static final int classCount = maxShift - minShift + 1;
+
+	public static final int minSize = 1 << minShift;
+	public static final int maxSize = 1 << maxShift;
+
+	// buffers kept per size class
+	private static final int sharedLimit = 256;
+	private static final int localLimit = 4;
+
+	private static final SizeClass[] heap = new SizeClass[classCount];
+	private static final SizeClass[] direct = new SizeClass[classCount];
+	private static final ThreadLocal<LocalCache> local = new ThreadLocal<>();
+
+	private static final LongAdder hits = new LongAdder();
+	private static final LongAdder misses = new LongAdder();
+
+	static {
+		for (int i = 0; i < classCount; i++) {
+			heap[i] = new SizeClass();
+			direct[i] = new SizeClass();
+		}
+	}
+
+	private BufferPool() {}
+
+	// index of the smallest size class holding size bytes, or -1 if the size is not pooled
+	private static int sizeClass(int size) {
+		if (size > maxSize)
+			return -1;
+		if (size <= minSize)
+			return 0;
+
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - minShift;
+	}
+
+	// index of the size class of exactly capacity bytes, or -1
+	private static int exactClass(int capacity) {
+		int i = sizeClass(capacity);
+		return i >= 0 && capacity == 1 << (i + minShift) ? i : -1;
+	}
+
+	// virtual threads are not reused, caching buffers on them would only hold on to memory
+	@Nullable
+	private static LocalCache localCache() {
+		LocalCache cache = local.get();
+		if (cache == null) {
+			if (Threads.isVirtual(Thread.currentThread()))
+				return null;
+
+			local.set(cache = new LocalCache());
+		}
+		return cache;
+	}
+
+	// returns an array of at least size bytes, larger sizes than maxSize are allocated without pooling
+	@NotNull
+	public static byte[] acquire(int size) {
+		int i = sizeClass(size);
+		if (i < 0) {
+			misses.increment();
+			return new byte[size];
+		}
+
+		LocalCache cache = localCache();
+		if (cache != null) {
+			byte[] buf = cache.poll(i);
+			if (buf != null) {
+				hits.increment();
+				return buf;
+			}
+		}
+
+		byte[] buf = (byte[]) heap[i].poll();
+		if (buf != null) {
+			hits.increment();
+			return buf;
+		}
+
+		misses.increment();
+		return new byte[1 << (i + minShift)];
+	}
+
+	// hands an array back to the pool, it must not be used by the caller afterwards
+	public static void release(@Nullable byte[] buf) {
+		if (buf == null)
+			return;
+
+		int i = exactClass(buf.length);
+		if (i < 0)
+			return;
+
+		LocalCache cache = localCache();
+		if (cache == null || !cache.offer(i, buf))
+			heap[i].offer(buf);
+	}
+
+	// returns a cleared direct buffer with a capacity of at least size bytes, used for channel reads
+	// so the JDK does not need to stage them through a temporary direct buffer of its own
+	@NotNull
+	public static ByteBuffer acquireDirect(int size) {
+		int i = sizeClass(size);
+		if (i < 0) {
+			misses.increment();
+			return ByteBuffer.allocateDirect(size);
+		}
+
+		ByteBuffer buf = (ByteBuffer) direct[i].poll();
+		if (buf != null) {
+			hits.increment();
+			((Buffer) buf).clear();
+			return buf;
+		}
+
+		misses.increment();
+		return ByteBuffer.allocateDirect(1 << (i + minShift));
+	}
+
+	// hands a direct buffer back to the pool, it must not be used by the caller afterwards
+	public static void release(@Nullable ByteBuffer buf) {
+		if (buf == null || !buf.isDirect() || buf.isReadOnly())
+			return;
+
+		int i = exactClass(buf.capacity());
+		if (i >= 0)
+			direct[i].offer(buf);
+	}
+
+	// number of buffers served from the pool
+	public static long hits() {
+		return hits.sum();
+	}
+
+	// number of buffers that had to be allocated
+	public static long misses() {
+		return misses.sum();
+	}
+
+	private static final class SizeClass {
+		private final ConcurrentLinkedQueue<Object> queue = new ConcurrentLinkedQueue<>();
+		private final AtomicInteger size = new AtomicInteger();
+
+		@Nullable
+		Object poll() {
+			Object buf = queue.poll();
+			if (buf != null)
+				size.decrementAndGet();
+
+			return buf;
+		}
+
+		void offer(@NotNull Object buf) {
+			if (size.incrementAndGet() > sharedLimit) {
+				size.decrementAndGet();
+				return;
+			}
+
+			queue.offer(buf);
+		}
+	}
+
+	private static final class LocalCache {
+		private final byte[][][] stacks = new byte[classCount][localLimit][];
+		private final int[] counts = new int[classCount];
+
+		@Nullable
+		byte[] poll(int i) {
+			int n = counts[i];
+			if (n == 0)
+				return null;
+
+			byte[][] stack = stacks[i];
+			byte[] buf = stack[--n];
+			stack[n] = null;
+			counts[i] = n;
+			return buf;
+		}
+
+		boolean offer(int i, @NotNull byte[] buf) {
+			int n = counts[i];
+			if (n >= localLimit)
+				return false;
+
+			stacks[i][n] = buf;
+			counts[i] = n + 1;
+			return true;
+		}
+	}
+}
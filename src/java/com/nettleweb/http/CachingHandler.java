@@ -0,0 +1,395 @@
+package com.nettleweb.http;
+
+import org.jetbrains.annotations.*;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// shared response cache in front of a handler, GET and HEAD responses are kept in memory in least recently used order
+// for their s-maxage or max-age, or the default lifetime, and concurrent misses for the same response only reach the
+// handler once, the other requests get the response of the first one
+public final class CachingHandler implements HTTPHandler {
+	private static final int maxVariants = 8;
+
+	private final HTTPHandler handler;
+	private final long maxSize;
+	private final long maxEntrySize;
+	private final long defaultTtl;
+
+	private final LinkedHashMap<String, ArrayList<Entry>> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long size = 0L;
+
+	// misses being handled, completed with the entry or null if the response can not be shared
+	private final ConcurrentHashMap<String, CompletableFuture<Entry>> inflight = new ConcurrentHashMap<>();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder coalesced = new LongAdder();
+
+	// defaultTtl is the lifetime in milliseconds of cacheable responses without max-age, or 0 to only store those with it
+	public CachingHandler(@NotNull HTTPHandler handler, long maxSize, long defaultTtl) {
+		this.handler = handler;
+		this.maxSize = maxSize;
+		this.maxEntrySize = Math.min(maxSize / 8L, Integer.MAX_VALUE - 8);
+		this.defaultTtl = Math.max(defaultTtl, 0L);
+	}
+
+	// requests answered from the cache
+	public long hits() {
+		return hits.sum();
+	}
+
+	// requests passed to the handler
+	public long misses() {
+		return misses.sum();
+	}
+
+	// requests that got the response of a concurrent miss for the same key
+	public long coalesced() {
+		return coalesced.sum();
+	}
+
+	// removes all responses for the URL
+	public synchronized void invalidate(@NotNull String url) {
+		remove(key("GET", url));
+		remove(key("HEAD", url));
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		size = 0L;
+	}
+
+	@Override
+	public HTTPResponse handleRequest(@NotNull HTTPRequest request) throws Exception {
+		String method = request.method;
+		Headers headers = request.headers;
+		if (!method.equals("GET") && !method.equals("HEAD") || request.body() != null || headers.has("authorization") || headers.has("range"))
+			return handler.handleRequest(request);
+
+		long now = System.currentTimeMillis();
+		String key = key(method, request.url);
+
+		Entry entry = lookup(key, headers, now);
+		if (entry == null && method.equals("HEAD"))
+			entry = lookup(key("GET", request.url), headers, now);
+
+		if (entry != null) {
+			hits.increment();
+			return entry.response(headers, now);
+		}
+
+		// the handler may answer these with 304, which is for this client only
+		if (headers.has("if-none-match") || headers.has("if-modified-since"))
+			return handler.handleRequest(request);
+
+		// keyed on the headers the last response for the URL varied on, a response that turns out to vary differently
+		// is only shared with the requests it matches
+		String flight = key + "\n" + HTTPCache.variant(vary(key), headers);
+		CompletableFuture<Entry> future = new CompletableFuture<>();
+		CompletableFuture<Entry> first = inflight.putIfAbsent(flight, future);
+
+		if (first != null) {
+			Entry shared;
+
+			try {
+				shared = first.get();
+			} catch (ExecutionException e) {
+				shared = null;
+			}
+
+			if (shared != null && shared.matches(headers)) {
+				coalesced.increment();
+				return shared.response(headers, System.currentTimeMillis());
+			}
+
+			misses.increment();
+			return handler.handleRequest(request);
+		}
+
+		misses.increment();
+		entry = null;
+
+		try {
+			HTTPResponse response = handler.handleRequest(request);
+			if (response == null || !shareable(response))
+				return response;
+
+			Body body = response.body();
+			if (body != null && body.length() > maxEntrySize)
+				return response;
+
+			byte[] data = null;
+			if (body != null) {
+				InputStream in = response.stream();
+
+				try {
+					data = Streams.readNBytes(in, (int) maxEntrySize + 1);
+				} catch (IOException e) {
+					Streams.closeUnchecked(in);
+					throw e;
+				}
+
+				// too large after all, the part read so far is put back in front of the rest
+				if (data.length > maxEntrySize)
+					return new HTTPResponse(response.status, response.message, response.headers, Body.concat(Body.from(data), Body.from(in)));
+
+				Streams.closeUnchecked(in);
+			}
+
+			long responseTime = System.currentTimeMillis();
+			String[] vary = HTTPCache.varyNames(response.headers);
+			entry = new Entry(key, vary, HTTPCache.variant(vary, headers), response, data, responseTime, lifetime(response));
+
+			if (entry.expires > responseTime)
+				put(entry);
+
+			return entry.response(headers, responseTime);
+		} finally {
+			inflight.remove(flight, future);
+			future.complete(entry);
+		}
+	}
+
+	// whether the response may be given to other clients at all, stored or not
+	private static boolean shareable(@NotNull HTTPResponse response) {
+		Headers headers = response.headers;
+		if (response.trailers != null || headers.has("set-cookie") || response.status < 200 || response.status == 206 || response.status == 304)
+			return false;
+
+		String vary = headers.get("vary");
+		if (vary != null && Util.hasToken(vary, "*"))
+			return false;
+
+		String cc = HTTPCache.cacheControl(headers);
+		return !HTTPCache.hasDirective(cc, "no-store") && !HTTPCache.hasDirective(cc, "private");
+	}
+
+	// the time to keep the response in milliseconds, 0 if it is only shared with concurrent requests
+	private long lifetime(@NotNull HTTPResponse response) {
+		String cc = HTTPCache.cacheControl(response.headers);
+		if (HTTPCache.hasDirective(cc, "no-cache"))
+			return 0L;
+
+		long ttl = HTTPCache.deltaMillis(HTTPCache.directive(cc, "s-maxage"));
+		if (ttl < 0L)
+			ttl = HTTPCache.deltaMillis(HTTPCache.directive(cc, "max-age"));
+		if (ttl >= 0L)
+			return ttl;
+
+		long expires = DateFormatter.parse(response.headers.get("expires"));
+		if (expires >= 0L) {
+			long date = DateFormatter.parse(response.headers.get("date"));
+			return Math.max(expires - (date < 0L ? System.currentTimeMillis() : date), 0L);
+		}
+
+		// an Expires header that is not a date means already expired
+		if (response.headers.has("expires"))
+			return 0L;
+
+		switch (response.status) {
+			case 200:
+			case 203:
+			case 204:
+			case 300:
+			case 301:
+			case 308:
+			case 404:
+			case 405:
+			case 410:
+			case 414:
+			case 501:
+				return defaultTtl;
+			default:
+				return 0L;
+		}
+	}
+
+	// the names of the headers the stored responses for the key vary on
+	@NotNull
+	private synchronized String[] vary(@NotNull String key) {
+		ArrayList<Entry> list = entries.get(key);
+		return list == null || list.isEmpty() ? new String[0] : list.get(0).vary;
+	}
+
+	@Nullable
+	private synchronized Entry lookup(@NotNull String key, @NotNull Headers headers, long now) {
+		ArrayList<Entry> list = entries.get(key);
+		if (list == null)
+			return null;
+
+		for (int i = 0; i < list.size(); i++) {
+			Entry entry = list.get(i);
+			if (!entry.matches(headers))
+				continue;
+
+			if (now < entry.expires)
+				return entry;
+
+			list.remove(i);
+			size -= entry.size;
+			if (list.isEmpty())
+				entries.remove(key);
+
+			return null;
+		}
+
+		return null;
+	}
+
+	private synchronized void put(@NotNull Entry entry) {
+		ArrayList<Entry> list = entries.get(entry.key);
+		if (list == null)
+			entries.put(entry.key, list = new ArrayList<>(1));
+
+		Entry old = null;
+		for (int i = 0; i < list.size(); i++) {
+			if (list.get(i).variant.equals(entry.variant)) {
+				old = list.set(i, entry);
+				break;
+			}
+		}
+
+		if (old == null) {
+			list.add(0, entry);
+			if (list.size() > maxVariants)
+				old = list.remove(list.size() - 1);
+		}
+
+		if (old != null)
+			size -= old.size;
+
+		size += entry.size;
+
+		// the entry was just used and comes last
+		Iterator<Map.Entry<String, ArrayList<Entry>>> it = entries.entrySet().iterator();
+		while (size > maxSize && it.hasNext()) {
+			Map.Entry<String, ArrayList<Entry>> next = it.next();
+			if (next.getKey().equals(entry.key))
+				break;
+
+			for (Entry e : next.getValue())
+				size -= e.size;
+
+			it.remove();
+		}
+	}
+
+	private void remove(@NotNull String key) {
+		ArrayList<Entry> list = entries.remove(key);
+		if (list != null) {
+			for (Entry e : list)
+				size -= e.size;
+		}
+	}
+
+	// the method and the URL without its fragment
+	@NotNull
+	private static String key(@NotNull String method, @NotNull String url) {
+		int i = url.indexOf('#');
+		return method + " " + (i < 0 ? url : url.substring(0, i));
+	}
+
+	private static final class Entry {
+		final String key;
+		final String[] vary;
+		final String variant;
+
+		final int status;
+		final String message;
+		final Headers headers;
+		// a read-only buffer shared by all responses made from the entry, each one reads it from its own position
+		@Nullable
+		final Body body;
+		@Nullable
+		final String etag;
+		final long lastModified;
+
+		final long created;
+		final long expires;
+		// the age of the response when the handler returned it, in milliseconds
+		final long age;
+		final long size;
+
+		Entry(@NotNull String key, @NotNull String[] vary, @NotNull String variant, @NotNull HTTPResponse response,
+			  @Nullable byte[] data, long created, long lifetime) {
+			Headers headers = new Headers(response.headers);
+			headers.remove("date");
+			headers.remove("connection");
+			headers.remove("transfer-encoding");
+			if (data != null)
+				headers.set("content-length", Integer.toString(data.length));
+
+			long age = HTTPCache.deltaMillis(headers.get("age"));
+
+			this.key = key;
+			this.vary = vary;
+			this.variant = variant;
+			this.status = response.status;
+			this.message = response.message;
+			this.headers = headers;
+			this.body = data == null ? null : Body.from(ByteBuffer.wrap(data));
+			this.etag = headers.get("etag");
+			this.lastModified = DateFormatter.parse(headers.get("last-modified"));
+			this.created = created;
+			this.expires = lifetime > Long.MAX_VALUE - created ? Long.MAX_VALUE : created + lifetime;
+			this.age = age < 0L ? 0L : Math.min(age, Long.MAX_VALUE / 2L);
+
+			long size = 256L + (data == null ? 0L : data.length);
+			for (Header header : headers.entries())
+				size += 2L * (header.getKey().length() + header.getValue().length()) + 32L;
+
+			this.size = size;
+		}
+
+		boolean matches(@NotNull Headers headers) {
+			return variant.equals(HTTPCache.variant(vary, headers));
+		}
+
+		// a new response sharing the body, or 304 if the request already has this one
+		@NotNull
+		HTTPResponse response(@NotNull Headers request, long now) {
+			Headers headers = new Headers(this.headers);
+			long age = (this.age + Math.max(now - created, 0L)) / 1000L;
+			if (age > 0L)
+				headers.set("age", Long.toString(age));
+
+			if (status == 200 && notModified(request)) {
+				headers.remove("content-length");
+				headers.remove("content-type");
+				headers.remove("content-encoding");
+				return new HTTPResponse(304, "", headers);
+			}
+
+			return new HTTPResponse(status, message, headers, body);
+		}
+
+		// RFC 9110 13.1.2 and 13.1.3, If-Modified-Since only counts without If-None-Match
+		private boolean notModified(@NotNull Headers request) {
+			String match = request.get("if-none-match");
+			if (match != null) {
+				if (etag == null)
+					return false;
+				if (match.trim().equals("*"))
+					return true;
+
+				String tag = etag.startsWith("W/") ? etag.substring(2) : etag;
+				for (String item : match.split(",")) {
+					item = item.trim();
+					if (item.startsWith("W/"))
+						item = item.substring(2);
+					if (item.equals(tag))
+						return true;
+				}
+
+				return false;
+			}
+
+			long since = DateFormatter.parse(request.get("if-modified-since"));
+			return since >= 0L && lastModified >= 0L && lastModified <= since;
+		}
+	}
+}
@@ -0,0 +1,431 @@
+package com.nettleweb.http;
+
+import org.jetbrains.annotations.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// selector thread for asynchronous client requests, a request stays on the loop from waiting for a pooled
+// connection until its response head has arrived, the body is then read from the connection in blocking mode
+final class ClientLoop implements Runnable, Closeable {
+	private static final int created = 0;
+	private static final int waiting = 1;
+	private static final int assigned = 2;
+	private static final int resolving = 3;
+	private static final int connecting = 4;
+	private static final int writing = 5;
+	private static final int reading = 6;
+
+	private final Selector selector;
+	private final ConnectionPool pool;
+	private final ConcurrentLinkedQueue<Exchange> pending = new ConcurrentLinkedQueue<>();
+	// exchanges without a channel yet, they are only kept here for their deadline
+	private final HashSet<Exchange> idle = new HashSet<>();
+	private final ArrayList<Exchange> detached = new ArrayList<>();
+
+	private volatile boolean closed = false;
+
+	ClientLoop(@NotNull ConnectionPool pool) throws IOException {
+		this.pool = pool;
+		this.selector = Selector.open();
+	}
+
+	void submit(@NotNull Exchange ex) {
+		ex.loop = this;
+		pending.offer(ex);
+		selector.wakeup();
+	}
+
+	private void register() {
+		Exchange ex;
+		long now = System.currentTimeMillis();
+
+		while ((ex = pending.poll()) != null) {
+			if (ex.done)
+				continue;
+
+			if (closed || ex.aborted) {
+				fail(ex, new IOException(closed ? "Client is closed" : "Request cancelled"));
+				continue;
+			}
+			if (ex.error != null) {
+				fail(ex, ex.error);
+				continue;
+			}
+
+			try {
+				if (ex.state == created) {
+					ex.state = waiting;
+					ex.deadline = now + ex.connectTimeout;
+					idle.add(ex);
+
+					// the callback may run right away, which only queues the exchange again
+					pool.acquire(ex.origin, ex::assign);
+				} else if (ex.state == assigned) {
+					start(ex, now);
+				}
+			} catch (Exception e) {
+				fail(ex, e);
+			}
+		}
+	}
+
+	private void start(@NotNull Exchange ex, long now) throws IOException {
+		idle.remove(ex);
+
+		ConnectionPool.Connection conn = ex.conn;
+		if (conn == null && ex.address.isUnresolved()) {
+			// name lookups block, so they are run on the executor and the exchange is queued again afterwards
+			ex.deadline = now + ex.connectTimeout;
+			ex.state = resolving;
+			idle.add(ex);
+			ex.resolve();
+		} else if (conn == null) {
+			SocketChannel channel = ex.channel = SocketChannel.open();
+			channel.configureBlocking(false);
+
+			Socket socket = channel.socket();
+			socket.setKeepAlive(true);
+			socket.setTcpNoDelay(true);
+			socket.setSendBufferSize(65536);
+			socket.setReceiveBufferSize(65536);
+
+			ex.deadline = now + ex.connectTimeout;
+			ex.key = channel.register(selector, SelectionKey.OP_CONNECT, ex);
+			ex.state = connecting;
+
+			if (channel.connect(ex.address))
+				connected(ex);
+		} else {
+			SocketChannel channel = ex.channel = conn.socket.getChannel();
+			if (channel == null)
+				throw new IOException("Connection is not backed by a channel");
+
+			channel.configureBlocking(false);
+			ex.deadline = now + ex.socketTimeout;
+			ex.key = channel.register(selector, SelectionKey.OP_WRITE, ex);
+			ex.state = writing;
+		}
+	}
+
+	private void connected(@NotNull Exchange ex) throws IOException {
+		SocketChannel channel = ex.channel;
+		if (!channel.finishConnect())
+			return;
+
+		ConnectionPool.Connection conn = pool.open(ex.origin, channel.socket());
+		synchronized (ex) {
+			ex.conn = conn;
+			ex.reserved = false;
+		}
+
+		ex.deadline = System.currentTimeMillis() + ex.socketTimeout;
+		ex.key.interestOps(SelectionKey.OP_WRITE);
+		ex.state = writing;
+	}
+
+	private void write(@NotNull Exchange ex) throws IOException {
+		ex.channel.write(ex.data);
+		if (!ex.data.hasRemaining()) {
+			ex.key.interestOps(SelectionKey.OP_READ);
+			ex.state = reading;
+		}
+	}
+
+	private void read(@NotNull Exchange ex) throws IOException {
+		InputBuffer in = ex.conn.in;
+		byte[] buf = in.prepare();
+		int n = ex.channel.read(ByteBuffer.wrap(buf, in.limit, buf.length - in.limit));
+		if (n < 0)
+			throw new EOFException("Connection closed before the response was received");
+		if (n == 0)
+			return;
+
+		ex.received = true;
+		in.limit += n;
+
+		int end = HTTPClient.headEnd(in, ex.scanned);
+		if (end < 0) {
+			if ((ex.scanned = in.limit - in.pos) >= ex.maxHeaderSize)
+				throw new ProtocolError("Response header too large");
+
+			return;
+		}
+
+		ex.head = new String(buf, in.pos, end - in.pos, StandardCharsets.UTF_8);
+		in.pos = end;
+
+		// the channel can only be switched back to blocking mode once the key is deregistered by the next select
+		ex.key.cancel();
+		detached.add(ex);
+	}
+
+	private void detach() throws IOException {
+		if (detached.isEmpty())
+			return;
+
+		selector.selectNow();
+
+		for (Exchange ex : detached) {
+			synchronized (ex) {
+				ex.done = true;
+			}
+
+			try {
+				ex.channel.configureBlocking(true);
+			} catch (Exception e) {
+				pool.discard(ex.conn);
+				ex.failed(e, false);
+				continue;
+			}
+
+			ex.completed(ex.conn, ex.head);
+		}
+
+		detached.clear();
+	}
+
+	private void fail(@NotNull Exchange ex, @NotNull Exception e) {
+		ConnectionPool.Connection conn;
+		boolean reserved;
+
+		synchronized (ex) {
+			if (ex.done)
+				return;
+
+			ex.done = true;
+			conn = ex.conn;
+			reserved = ex.reserved;
+		}
+
+		idle.remove(ex);
+		if (ex.key != null)
+			ex.key.cancel();
+
+		if (conn != null) {
+			pool.discard(conn);
+		} else if (reserved) {
+			if (ex.channel != null)
+				Streams.closeUnchecked(ex.channel);
+
+			pool.cancel(ex.origin);
+		}
+
+		// a pooled connection that ends before any response arrived was most likely closed by the server while idle
+		ex.failed(e, conn != null && conn.reused && !ex.received && !(e instanceof SocketTimeoutException));
+	}
+
+	// fails exchanges past their deadline, returns the time to wait for the next one
+	private long expire() {
+		long now = System.currentTimeMillis();
+		long next = now + 1000L;
+		List<Exchange> expired = null;
+
+		for (Exchange ex : idle) {
+			if (ex.aborted || now >= ex.deadline) {
+				if (expired == null)
+					expired = new ArrayList<>();
+
+				expired.add(ex);
+			} else {
+				next = Math.min(next, ex.deadline);
+			}
+		}
+
+		for (SelectionKey key : selector.keys()) {
+			Object att = key.attachment();
+			if (att instanceof Exchange && key.isValid()) {
+				Exchange ex = (Exchange) att;
+				if (ex.aborted || now >= ex.deadline) {
+					if (expired == null)
+						expired = new ArrayList<>();
+
+					expired.add(ex);
+				} else {
+					next = Math.min(next, ex.deadline);
+				}
+			}
+		}
+
+		if (expired != null) {
+			for (Exchange ex : expired) {
+				if (ex.aborted)
+					fail(ex, new IOException("Request cancelled"));
+				else if (ex.state == waiting)
+					fail(ex, new SocketTimeoutException("Timed out waiting for a connection to " + ex.origin));
+				else if (ex.state == resolving || ex.state == connecting)
+					fail(ex, new SocketTimeoutException("Connect timed out"));
+				else
+					fail(ex, new SocketTimeoutException("Read timed out"));
+			}
+		}
+
+		return Math.max(next - now, 1L);
+	}
+
+	@Override
+	public void run() {
+		while (!closed) {
+			try {
+				selector.select(expire());
+				register();
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+
+					if (!key.isValid())
+						continue;
+
+					Exchange ex = (Exchange) key.attachment();
+
+					try {
+						if (key.isConnectable())
+							connected(ex);
+						else if (key.isWritable())
+							write(ex);
+						else if (key.isReadable())
+							read(ex);
+					} catch (Exception e) {
+						fail(ex, e);
+					}
+				}
+
+				detach();
+			} catch (Exception e) {
+				// keep the loop running, failed exchanges are handled above
+			}
+		}
+
+		IOException e = new IOException("Client is closed");
+		for (Exchange ex : new ArrayList<>(idle))
+			fail(ex, e);
+
+		try {
+			for (SelectionKey key : selector.keys()) {
+				Object att = key.attachment();
+				if (att instanceof Exchange)
+					fail((Exchange) att, e);
+			}
+		} catch (Exception ex) {
+			// ignore
+		}
+
+		Exchange ex;
+		while ((ex = pending.poll()) != null)
+			fail(ex, e);
+
+		Streams.closeUnchecked(selector);
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		selector.wakeup();
+	}
+
+	// a request on its way to the response head, callbacks are run on the loop thread
+	abstract static class Exchange {
+		final String origin;
+		final ByteBuffer data;
+		// runs name lookups of unresolved addresses
+		final Executor executor;
+
+		final int connectTimeout;
+		final int socketTimeout;
+		final int maxHeaderSize;
+
+		private ClientLoop loop;
+		private int state = created;
+		private long deadline;
+
+		@Nullable
+		private ConnectionPool.Connection conn;
+		// a slot for a new connection was reserved in the pool
+		private boolean reserved = false;
+		private boolean done = false;
+		private volatile boolean aborted = false;
+		// resolved on the executor once a new connection is needed
+		private volatile InetSocketAddress address;
+		@Nullable
+		private volatile Exception error;
+
+		private SocketChannel channel;
+		private SelectionKey key;
+		private boolean received = false;
+		private int scanned = 0;
+		private String head;
+
+		Exchange(@NotNull String origin, @NotNull InetSocketAddress address, @NotNull byte[] data, @NotNull Executor executor,
+		         int connectTimeout, int socketTimeout, int maxHeaderSize) {
+			this.origin = origin;
+			this.address = address;
+			this.data = ByteBuffer.wrap(data);
+			this.executor = executor;
+			this.connectTimeout = connectTimeout;
+			this.socketTimeout = socketTimeout;
+			this.maxHeaderSize = maxHeaderSize;
+		}
+
+		// the response head has been read, the connection is in blocking mode and owned by the callee
+		abstract void completed(@NotNull ConnectionPool.Connection conn, @NotNull String head);
+
+		// the connection has been discarded, stale is set if it was a pooled connection closed by the server
+		abstract void failed(@NotNull Exception e, boolean stale);
+
+		private void resolve() {
+			try {
+				executor.execute(() -> {
+					InetSocketAddress resolved = new InetSocketAddress(address.getHostString(), address.getPort());
+					synchronized (this) {
+						if (done)
+							return;
+
+						if (resolved.isUnresolved())
+							error = new UnknownHostException(address.getHostString());
+						else
+							address = resolved;
+
+						state = assigned;
+					}
+
+					loop.submit(this);
+				});
+			} catch (RejectedExecutionException e) {
+				error = e;
+				loop.submit(this);
+			}
+		}
+
+		private void assign(@Nullable ConnectionPool.Connection conn) {
+			synchronized (this) {
+				if (!done) {
+					this.conn = conn;
+					this.reserved = conn == null;
+					this.state = assigned;
+					loop.submit(this);
+					return;
+				}
+			}
+
+			// the request timed out or was cancelled while waiting
+			if (conn == null)
+				loop.pool.cancel(origin);
+			else
+				loop.pool.release(conn, -1L);
+		}
+
+		void abort() {
+			aborted = true;
+			ClientLoop loop = this.loop;
+			if (loop != null)
+				loop.selector.wakeup();
+		}
+	}
+}
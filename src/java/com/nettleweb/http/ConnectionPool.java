@@ -0,0 +1,365 @@
+package com.nettleweb.http;
+
+import org.jetbrains.annotations.*;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+
+// persistent client connections grouped by origin, idle connections are reused most recently used first
+final class ConnectionPool {
+	// connections idle for longer than this are probed for a close from the server before they are reused
+	private static final long validateAfter = 2000L;
+
+	private final ConcurrentHashMap<String, Host> hosts = new ConcurrentHashMap<>();
+
+	final LongAdder created = new LongAdder();
+	final LongAdder reused = new LongAdder();
+	final LongAdder evicted = new LongAdder();
+
+	volatile int maxPerHost = 8;
+	volatile long idleTimeout = 60000L;
+
+	private volatile boolean closed = false;
+	private volatile long nextSweep = 0L;
+
+	interface Connector {
+		@NotNull
+		Socket connect() throws IOException;
+	}
+
+	// returns an idle connection to the origin, or a new one if none is left and the limit allows it,
+	// otherwise waits up to timeout milliseconds for a connection to be released
+	@NotNull
+	Connection acquire(@NotNull String key, @NotNull Connector connector, long timeout) throws IOException {
+		if (closed)
+			throw new IOException("Connection pool is closed");
+
+		sweep();
+
+		Host host = hosts.computeIfAbsent(key, Host::new);
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(timeout, 0L));
+
+		for (;;) {
+			Connection conn;
+
+			host.lock.lock();
+			try {
+				while ((conn = host.idle.pollFirst()) == null && host.total >= maxPerHost) {
+					long wait = deadline - System.nanoTime();
+					if (wait <= 0L)
+						throw new SocketTimeoutException("Timed out waiting for a connection to " + key);
+
+					try {
+						host.available.awaitNanos(wait);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Interrupted while waiting for a connection to " + key);
+					}
+				}
+
+				if (conn == null)
+					host.total++;
+			} finally {
+				host.lock.unlock();
+			}
+
+			if (conn == null) {
+				try {
+					return open(key, connector.connect());
+				} catch (Throwable e) {
+					host.closed();
+					throw e;
+				}
+			}
+
+			if (conn.alive()) {
+				conn.reused = true;
+				reused.increment();
+				return conn;
+			}
+
+			evicted.increment();
+			discard(conn);
+		}
+	}
+
+	// like the blocking acquire, but the callback is queued until a connection is released instead of waiting,
+	// it receives null once a slot for a new connection is reserved, which must be followed by open or cancel
+	void acquire(@NotNull String key, @NotNull Consumer<Connection> callback) {
+		Host host = hosts.computeIfAbsent(key, Host::new);
+
+		for (;;) {
+			Connection conn;
+
+			host.lock.lock();
+			try {
+				if ((conn = host.idle.pollFirst()) == null) {
+					if (host.total >= maxPerHost) {
+						host.waiters.offer(() -> acquire(key, callback));
+						return;
+					}
+
+					host.total++;
+				}
+			} finally {
+				host.lock.unlock();
+			}
+
+			if (conn == null) {
+				callback.accept(null);
+				return;
+			}
+
+			if (conn.alive()) {
+				conn.reused = true;
+				reused.increment();
+				callback.accept(conn);
+				return;
+			}
+
+			evicted.increment();
+			discard(conn);
+		}
+	}
+
+	// wraps a new socket for a reserved slot
+	@NotNull
+	Connection open(@NotNull String key, @NotNull Socket socket) throws IOException {
+		Connection conn;
+
+		try {
+			conn = new Connection(hosts.computeIfAbsent(key, Host::new), socket);
+		} catch (IOException e) {
+			Streams.closeUnchecked(socket);
+			throw e;
+		}
+
+		created.increment();
+		return conn;
+	}
+
+	// gives up a reserved slot after the connection could not be opened
+	void cancel(@NotNull String key) {
+		Host host = hosts.get(key);
+		if (host != null)
+			host.closed();
+	}
+
+	// returns a connection whose last response has been read completely, keepAlive is the idle time
+	// allowed by the server in milliseconds or -1 if it did not say
+	void release(@NotNull Connection conn, long keepAlive) {
+		// anything left in the read buffer belongs to no response
+		if (closed || conn.in.available() > 0 || conn.socket.isClosed()) {
+			discard(conn);
+			return;
+		}
+
+		conn.in.release();
+		conn.out.release();
+
+		long now = System.currentTimeMillis();
+		long timeout = keepAlive < 0L ? idleTimeout : Math.min(idleTimeout, keepAlive);
+		conn.idleSince = now;
+		conn.expires = now + timeout;
+
+		Host host = conn.host;
+		Runnable waiter;
+
+		host.lock.lock();
+		try {
+			host.idle.addFirst(conn);
+			host.available.signal();
+			waiter = host.waiters.poll();
+		} finally {
+			host.lock.unlock();
+		}
+
+		if (waiter != null)
+			waiter.run();
+
+		sweep();
+	}
+
+	// closes a connection that can not be reused
+	void discard(@NotNull Connection conn) {
+		conn.close();
+		conn.host.closed();
+	}
+
+	// closes connections that have been idle for too long, at most once per second unless forced
+	void evictIdle(boolean force) {
+		long now = System.currentTimeMillis();
+		if (!force && now < nextSweep)
+			return;
+
+		nextSweep = now + 1000L;
+
+		for (Host host : hosts.values()) {
+			List<Connection> expired = null;
+
+			host.lock.lock();
+			try {
+				Connection conn;
+				while ((conn = host.idle.peekLast()) != null && (closed || now >= conn.expires)) {
+					host.idle.pollLast();
+					if (expired == null)
+						expired = new ArrayList<>();
+
+					expired.add(conn);
+				}
+			} finally {
+				host.lock.unlock();
+			}
+
+			if (expired != null) {
+				for (Connection conn : expired) {
+					evicted.increment();
+					discard(conn);
+				}
+			}
+		}
+	}
+
+	private void sweep() {
+		evictIdle(false);
+	}
+
+	// closes all idle connections, connections in use are closed when they are released
+	void close() {
+		closed = true;
+		evictIdle(true);
+	}
+
+	int active() {
+		int n = 0;
+		for (Host host : hosts.values()) {
+			host.lock.lock();
+			try {
+				n += host.total - host.idle.size();
+			} finally {
+				host.lock.unlock();
+			}
+		}
+		return n;
+	}
+
+	int idle() {
+		int n = 0;
+		for (Host host : hosts.values()) {
+			host.lock.lock();
+			try {
+				n += host.idle.size();
+			} finally {
+				host.lock.unlock();
+			}
+		}
+		return n;
+	}
+
+	private static final class Host {
+		final String key;
+		final ReentrantLock lock = new ReentrantLock();
+		final Condition available = lock.newCondition();
+		final ArrayDeque<Connection> idle = new ArrayDeque<>();
+		// asynchronous requests waiting for a connection
+		final ArrayDeque<Runnable> waiters = new ArrayDeque<>();
+
+		// open connections including the idle ones
+		int total = 0;
+
+		Host(@NotNull String key) {
+			this.key = key;
+		}
+
+		void closed() {
+			Runnable waiter;
+
+			lock.lock();
+			try {
+				total--;
+				available.signal();
+				waiter = waiters.poll();
+			} finally {
+				lock.unlock();
+			}
+
+			if (waiter != null)
+				waiter.run();
+		}
+	}
+
+	static final class Connection {
+		final Host host;
+		final Socket socket;
+		final InputBuffer in;
+		final OutputBuffer out;
+
+		boolean reused = false;
+		long idleSince;
+		long expires;
+
+		private Connection(@NotNull Host host, @NotNull Socket socket) throws IOException {
+			InputStream is = socket.getInputStream();
+			OutputStream os = socket.getOutputStream();
+
+			this.host = host;
+			this.socket = socket;
+			this.in = new InputBuffer(8192) {
+				@Override
+				protected int receive(@NotNull byte[] b, int off, int len) throws IOException {
+					return is.read(b, off, len);
+				}
+			};
+			this.out = new OutputBuffer(8192) {
+				@Override
+				protected void send(@NotNull byte[] b, int off, int len) throws IOException {
+					os.write(b, off, len);
+				}
+			};
+		}
+
+		// a server may close an idle connection at any time, which only shows up as the end of stream
+		boolean alive() {
+			if (socket.isClosed() || socket.isInputShutdown())
+				return false;
+
+			long now = System.currentTimeMillis();
+			if (now >= expires)
+				return false;
+			if (now - idleSince < validateAfter)
+				return true;
+
+			try {
+				int timeout = socket.getSoTimeout();
+				socket.setSoTimeout(1);
+
+				try {
+					// either the end of stream or bytes that no request asked for
+					in.fill();
+					return false;
+				} finally {
+					socket.setSoTimeout(timeout);
+				}
+			} catch (SocketTimeoutException e) {
+				return true;
+			} catch (IOException e) {
+				return false;
+			}
+		}
+
+		void close() {
+			in.pos = in.limit;
+			in.release();
+			try {
+				socket.close();
+			} catch (Exception e) {
+				// ignore
+			}
+		}
+	}
+}
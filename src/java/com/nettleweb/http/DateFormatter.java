@@ -1,12 +1,20 @@
 package com.nettleweb.http;
 
+import org.jetbrains.annotations.*;
+
+import java.nio.charset.*;
 import java.text.*;
+import java.time.*;
+import java.time.format.*;
 import java.util.*;
 
 final class DateFormatter {
 	private static final SimpleDateFormat utcDate = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz");
 	private static final SimpleDateFormat isoDate = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS zzz", Locale.ROOT);
 
+	// the HTTP date only has a resolution of one second, so it is formatted at most once per second
+	private static volatile CachedDate cached = new CachedDate(-1L, "", new byte[0]);
+
 	static {
 		utcDate.setTimeZone(TimeZone.getTimeZone("GMT"));
 		isoDate.setTimeZone(TimeZone.getTimeZone("UTC"));
@@ -14,11 +22,58 @@ final class DateFormatter {
 
 	private DateFormatter() {}
 
+	private static CachedDate cachedDate() {
+		long second = System.currentTimeMillis() / 1000L;
+		CachedDate date = cached;
+
+		if (date.second != second) {
+			String value;
+			synchronized (utcDate) {
+				value = utcDate.format(new Date(second * 1000L));
+			}
+
+			cached = date = new CachedDate(second, value, ("date: " + value + "\r\n").getBytes(StandardCharsets.UTF_8));
+		}
+
+		return date;
+	}
+
 	public static String iso() {
-		return isoDate.format(new Date(System.currentTimeMillis()));
+		synchronized (isoDate) {
+			return isoDate.format(new Date(System.currentTimeMillis()));
+		}
 	}
 
 	public static String utc() {
-		return utcDate.format(new Date(System.currentTimeMillis()));
+		return cachedDate().value;
+	}
+
+	// the complete date header line, the returned array must not be modified
+	public static byte[] utcHeader() {
+		return cachedDate().header;
+	}
+
+	// parses an HTTP date in the preferred format (RFC 9110 5.6.7), returns -1 if the value is not one
+	public static long parse(@Nullable String value) {
+		if (value == null)
+			return -1L;
+
+		try {
+			return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+		} catch (DateTimeException e) {
+			return -1L;
+		}
+	}
+
+	private static final class CachedDate {
+		private final long second;
+		private final String value;
+		private final byte[] header;
+
+		private CachedDate(long second, String value, byte[] header) {
+			this.second = second;
+			this.value = value;
+			this.header = header;
+		}
 	}
-}
\ No newline at end of file
+}
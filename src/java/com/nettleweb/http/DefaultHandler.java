@@ -5,11 +5,13 @@ import org.jetbrains.annotations.*;
 final class DefaultHandler implements HTTPHandler {
 	public static final DefaultHandler instance = new DefaultHandler();
 
+	private static final HTTPResponse msg404 = new HTTPResponse(404, "", new Headers("Content-Type: text/plain"), Body.from("404 Not Found")).freeze();
+
 	private DefaultHandler() {
 	}
 
 	@Override
 	public HTTPResponse handleRequest(@NotNull HTTPRequest request) {
-		return new HTTPResponse(404, "", new Headers("Content-Type: text/plain"), Body.from("404 Not Found"));
+		return msg404;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,509 @@
+package com.nettleweb.http;
+
+import org.jetbrains.annotations.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+final class EventLoop implements Runnable, Closeable {
+	private static final int bufferSize = 8192;
+	private static final ConcurrentLinkedQueue<Selector> selectors = new ConcurrentLinkedQueue<>();
+
+	private final HTTPServer server;
+	private final Executor executor;
+	private final HTTPLogger logger;
+	private final EventLoop[] group;
+	private final Selector selector;
+	private final ConcurrentLinkedQueue<Connection> pending = new ConcurrentLinkedQueue<>();
+	// parking and completion of asynchronous responses, run on the loop thread in order
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	// connections waiting for the response of an asynchronous handler
+	private final HashSet<Connection> parked = new HashSet<>();
+	// channel reads on the loop thread go through this buffer and are copied into the connection
+	private final ByteBuffer readBuffer = BufferPool.acquireDirect(bufferSize);
+
+	private final int maxHeaderSize;
+	private final int socketTimeout;
+	private final int keepAliveTimeout;
+	private final int handlerTimeout;
+
+	private int next = 0;
+	private volatile boolean closed = false;
+
+	EventLoop(@NotNull HTTPServer server, @NotNull Executor executor, @NotNull HTTPLogger logger, @NotNull EventLoop[] group,
+			  int maxHeaderSize, int socketTimeout, int keepAliveTimeout, int handlerTimeout) throws IOException {
+		this.server = server;
+		this.executor = executor;
+		this.logger = logger;
+		this.group = group;
+		this.selector = Selector.open();
+		this.maxHeaderSize = maxHeaderSize;
+		this.socketTimeout = socketTimeout;
+		this.keepAliveTimeout = keepAliveTimeout;
+		this.handlerTimeout = handlerTimeout;
+	}
+
+	// blocks the calling thread until the channel is ready, used by the request and response streams
+	static void await(@NotNull SelectableChannel channel, int ops, int timeout) throws IOException {
+		Selector selector = selectors.poll();
+		if (selector == null)
+			selector = Selector.open();
+
+		SelectionKey key = null;
+
+		try {
+			key = channel.register(selector, ops);
+			if (selector.select(Math.max(timeout, 0)) == 0)
+				throw new SocketTimeoutException("Timed out waiting for channel");
+		} finally {
+			if (key != null)
+				key.cancel();
+
+			try {
+				selector.selectNow();
+				selectors.offer(selector);
+			} catch (Exception e) {
+				Streams.closeUnchecked(selector);
+			}
+		}
+	}
+
+	void listen(@NotNull ServerSocketChannel channel) throws IOException {
+		channel.configureBlocking(false);
+		channel.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	private void accept(@NotNull ServerSocketChannel server) {
+		while (true) {
+			SocketChannel channel;
+
+			try {
+				if ((channel = server.accept()) == null)
+					return;
+
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				channel.socket().setKeepAlive(true);
+			} catch (Exception e) {
+				logger.error("Failed to setup TCP connection: ", e);
+				return;
+			}
+
+			EventLoop[] group = this.group;
+			EventLoop loop = group[next];
+			next = (next + 1) % group.length;
+			loop.submit(loop.new Connection(channel));
+		}
+	}
+
+	private void submit(@NotNull Connection conn) {
+		pending.offer(conn);
+		selector.wakeup();
+	}
+
+	private void execute(@NotNull Runnable task) {
+		tasks.offer(task);
+		selector.wakeup();
+	}
+
+	// hands the connection to the loop until the response is complete, the executor thread is free meanwhile
+	private void park(@NotNull Connection conn, @NotNull CompletableFuture<HTTPResponse> response) {
+		execute(() -> {
+			if (conn.response != response)
+				return;
+
+			parked.add(conn);
+			conn.deadline = deadline(System.currentTimeMillis(), handlerTimeout);
+
+			try {
+				// a request without a body leaves the channel to the loop, which sees the client going away
+				if (conn.request.body() == null)
+					conn.key.interestOps(SelectionKey.OP_READ);
+			} catch (Exception e) {
+				abandon(conn);
+				return;
+			}
+
+			if (response.isDone())
+				resume(conn);
+		});
+
+		response.whenComplete((r, e) -> execute(() -> {
+			if (conn.response == response && parked.contains(conn))
+				resume(conn);
+		}));
+	}
+
+	private void resume(@NotNull Connection conn) {
+		parked.remove(conn);
+
+		try {
+			conn.key.interestOps(0);
+		} catch (Exception e) {
+			conn.response = null;
+			conn.disconnect();
+			return;
+		}
+
+		dispatch(conn);
+	}
+
+	// the client is gone or the loop is closing, so the handler is cancelled
+	private void abandon(@NotNull Connection conn) {
+		parked.remove(conn);
+
+		CompletableFuture<HTTPResponse> response = conn.response;
+		conn.response = null;
+		if (response != null)
+			response.cancel(true);
+
+		conn.disconnect();
+	}
+
+	// a timeout of 0 or less means none, as it does for the blocking engine
+	private static long deadline(long now, int timeout) {
+		return timeout > 0 ? now + timeout : 0L;
+	}
+
+	private void register() {
+		Runnable task;
+		while ((task = tasks.poll()) != null)
+			task.run();
+
+		Connection conn;
+		long now = System.currentTimeMillis();
+
+		while ((conn = pending.poll()) != null) {
+			if (closed) {
+				conn.disconnect();
+				continue;
+			}
+
+			try {
+				if (conn.key == null)
+					conn.key = conn.channel.register(selector, SelectionKey.OP_READ, conn);
+				else
+					conn.key.interestOps(SelectionKey.OP_READ);
+
+				conn.deadline = deadline(now, conn.count > 0 ? keepAliveTimeout : socketTimeout);
+			} catch (Exception e) {
+				conn.disconnect();
+			}
+		}
+	}
+
+	private void read(@NotNull Connection conn) {
+		if (parked.contains(conn)) {
+			watch(conn);
+			return;
+		}
+
+		boolean started = conn.parser.started();
+
+		try {
+			if (fill(conn) < 0)
+				throw new EOFException();
+
+			conn.pos = conn.parser.parse(conn.buffer, conn.pos, conn.limit);
+		} catch (ProtocolError e) {
+			logger.warn("Invalid HTTP request: " + e.getMessage());
+
+			// fits in the send buffer of a connection that has nothing else to send
+			try {
+				conn.channel.write(ByteBuffer.wrap(HTTPServer.badRequest));
+			} catch (IOException ex) {
+				// ignore
+			}
+
+			conn.disconnect();
+			return;
+		} catch (Exception e) {
+			conn.disconnect();
+			return;
+		}
+
+		if (conn.parser.done()) {
+			conn.key.interestOps(0);
+			dispatch(conn);
+		} else if (!started && conn.parser.started()) {
+			conn.deadline = deadline(System.currentTimeMillis(), socketTimeout);
+		}
+	}
+
+	// data from a client waiting for its response is kept for the requests pipelined after it
+	private void watch(@NotNull Connection conn) {
+		try {
+			if (fill(conn) < 0) {
+				abandon(conn);
+				return;
+			}
+
+			if (conn.available() >= maxHeaderSize)
+				conn.key.interestOps(0);
+		} catch (Exception e) {
+			abandon(conn);
+		}
+	}
+
+	// reads what the channel has into the free space of the connection buffer
+	private int fill(@NotNull Connection conn) throws IOException {
+		byte[] buf = conn.prepare();
+		ByteBuffer dst = readBuffer;
+		((Buffer) dst).clear();
+		((Buffer) dst).limit(Math.min(dst.capacity(), buf.length - conn.limit));
+
+		int n = conn.channel.read(dst);
+		if (n > 0) {
+			((Buffer) dst).flip();
+			dst.get(buf, conn.limit, n);
+			conn.limit += n;
+		}
+		return n;
+	}
+
+	private void dispatch(@NotNull Connection conn) {
+		try {
+			executor.execute(conn);
+		} catch (Exception e) {
+			logger.error("Failed to dispatch HTTP request: ", e);
+			conn.disconnect();
+		}
+	}
+
+	private void expire() {
+		long now = System.currentTimeMillis();
+
+		for (SelectionKey key : selector.keys()) {
+			Object att = key.attachment();
+			if (att instanceof Connection && key.isValid() && key.interestOps() != 0) {
+				Connection conn = (Connection) att;
+				if (conn.deadline > 0L && now >= conn.deadline && !parked.contains(conn))
+					conn.disconnect();
+			}
+		}
+
+		// the response is sent once the completion task runs
+		for (Connection conn : parked) {
+			CompletableFuture<HTTPResponse> response = conn.response;
+			if (response != null && conn.deadline > 0L && now >= conn.deadline)
+				HTTPServer.timeout(response);
+		}
+	}
+
+	@Override
+	public void run() {
+		long lastExpire = System.currentTimeMillis();
+
+		while (!closed) {
+			try {
+				selector.select(1000L);
+				register();
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+
+					if (!key.isValid())
+						continue;
+
+					if (key.isAcceptable())
+						accept((ServerSocketChannel) key.channel());
+					else if (key.isReadable())
+						read((Connection) key.attachment());
+				}
+
+				long now = System.currentTimeMillis();
+				if (now - lastExpire >= 1000L) {
+					lastExpire = now;
+					expire();
+				}
+			} catch (Exception e) {
+				if (!closed)
+					logger.error("Error in HTTP selector loop: ", e);
+			}
+		}
+
+		for (Connection conn : new ArrayList<>(parked))
+			abandon(conn);
+
+		try {
+			for (SelectionKey key : selector.keys())
+				Streams.closeUnchecked(key.channel());
+		} catch (Exception e) {
+			// ignore
+		}
+
+		Streams.closeUnchecked(selector);
+		BufferPool.release(readBuffer);
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		selector.wakeup();
+	}
+
+	private final class Connection extends InputBuffer implements Runnable {
+		private final SocketChannel channel;
+		private final RequestParser parser = new RequestParser(maxHeaderSize);
+		private final Output output = new Output(HTTPServer.outputBufferSize);
+
+		private SelectionKey key;
+		private int count = 0;
+		private long deadline = 0L;
+
+		// the request whose response is being waited for while parked
+		private HTTPRequest request;
+		private volatile CompletableFuture<HTTPResponse> response;
+
+		private Connection(@NotNull SocketChannel channel) {
+			super(bufferSize);
+			this.channel = channel;
+		}
+
+		@Override
+		protected int receive(@NotNull byte[] b, int off, int len) throws IOException {
+			ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+
+			while (true) {
+				int n = channel.read(buf);
+				if (n != 0)
+					return n;
+
+				await(channel, SelectionKey.OP_READ, socketTimeout);
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				CompletableFuture<HTTPResponse> response = this.response;
+				if (response != null) {
+					HTTPRequest request = this.request;
+					this.request = null;
+					this.response = null;
+
+					if (!server.reply(request, response.join(), output, count + 1)) {
+						disconnect();
+						return;
+					}
+
+					count++;
+
+					if (pos < limit)
+						pos = parser.parse(buffer, pos, limit);
+				}
+
+				while (parser.done()) {
+					HTTPRequest request = Util.newRequest(parser, this);
+					int n;
+
+					if (server.deferrable(request, this)) {
+						response = server.handleAsync(request);
+						if (!response.isDone()) {
+							this.request = request;
+							this.response = response;
+							park(this, response);
+							return;
+						}
+
+						n = server.reply(request, response.join(), output, count + 1) ? 1 : -1;
+					} else {
+						n = server.pipeline(request, this, parser, output, count + 1);
+					}
+
+					if (n < 0) {
+						disconnect();
+						return;
+					}
+
+					count += n;
+
+					if (pos < limit)
+						pos = parser.parse(buffer, pos, limit);
+				}
+			} catch (ProtocolError e) {
+				logger.warn("Invalid HTTP request: " + e.getMessage());
+
+				try {
+					output.write(HTTPServer.badRequest, 0, HTTPServer.badRequest.length);
+					output.flush();
+				} catch (IOException ex) {
+					// ignore
+				}
+
+				disconnect();
+				return;
+			} catch (Exception e) {
+				logger.error("Error while handling HTTP request: ", e);
+				disconnect();
+				return;
+			}
+
+			release();
+			output.release();
+			submit(this);
+		}
+
+		private void disconnect() {
+			if (key != null)
+				key.cancel();
+
+			Streams.closeUnchecked(channel);
+		}
+
+		private final class Output extends OutputBuffer {
+			private Output(int size) {
+				super(size);
+			}
+
+			@Override
+			protected void send(@NotNull byte[] b, int off, int len) throws IOException {
+				ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+
+				while (buf.hasRemaining()) {
+					if (channel.write(buf) == 0)
+						await(channel, SelectionKey.OP_WRITE, socketTimeout);
+				}
+			}
+
+			@Override
+			void send(@NotNull ByteBuffer[] srcs) throws IOException {
+				long remaining = 0L;
+				for (ByteBuffer src : srcs)
+					remaining += src.remaining();
+
+				while (remaining > 0L) {
+					long n = channel.write(srcs);
+					if (n == 0L)
+						await(channel, SelectionKey.OP_WRITE, socketTimeout);
+
+					remaining -= n;
+				}
+			}
+
+			@Override
+			boolean sendFile(@NotNull FileChannel file, long position, long count) throws IOException {
+				while (count > 0L) {
+					long n = file.transferTo(position, count, channel);
+					if (n <= 0L) {
+						if (position >= file.size())
+							throw new EOFException("Unexpected end of file");
+
+						await(channel, SelectionKey.OP_WRITE, socketTimeout);
+						continue;
+					}
+
+					position += n;
+					count -= n;
+				}
+				return true;
+			}
+		}
+	}
+}
@@ -0,0 +1,882 @@
+package com.nettleweb.http;
+
+import org.jetbrains.annotations.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+// private response cache for HTTPClient (RFC 9111), responses are kept in memory in least recently used order and
+// optionally written to an append-only file, which is indexed when the cache is opened and compacted when it is full
+public final class HTTPCache implements Closeable {
+	private static final int recordMagic = 0x48435631;
+	private static final int maxVariants = 8;
+	// upper bound of the heuristic freshness lifetime of responses with only a Last-Modified date
+	private static final long maxHeuristic = 86400000L;
+
+	private final long maxMemorySize;
+	private final long maxEntrySize;
+	private final LinkedHashMap<String, ArrayList<Entry>> memory = new LinkedHashMap<>(16, 0.75f, true);
+	private long memorySize = 0L;
+
+	@Nullable
+	private final Path file;
+	@Nullable
+	private FileChannel channel;
+	private final long maxDiskSize;
+	// entries of the file in the order they were written, without their bodies
+	private final LinkedHashMap<String, ArrayList<Entry>> disk = new LinkedHashMap<>();
+	private long diskSize = 0L;
+
+	private final Set<String> revalidating = ConcurrentHashMap.newKeySet();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder revalidations = new LongAdder();
+
+	public HTTPCache(long maxMemorySize) {
+		this.maxMemorySize = maxMemorySize;
+		this.maxEntrySize = Math.min(maxMemorySize / 8L, Integer.MAX_VALUE - 8);
+		this.file = null;
+		this.maxDiskSize = 0L;
+	}
+
+	// the file is created if it does not exist, otherwise the entries in it are indexed
+	public HTTPCache(long maxMemorySize, @NotNull Path file, long maxDiskSize) throws IOException {
+		this.maxMemorySize = maxMemorySize;
+		this.maxEntrySize = Math.min(maxMemorySize / 8L, Integer.MAX_VALUE - 8);
+		this.file = file;
+		this.maxDiskSize = maxDiskSize;
+		this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+		try {
+			index();
+		} catch (IOException e) {
+			Streams.closeUnchecked(channel);
+			throw e;
+		}
+	}
+
+	// responses served from the cache without contacting the origin server
+	public long hits() {
+		return hits.sum();
+	}
+
+	// requests sent to the origin server without a cached response to revalidate
+	public long misses() {
+		return misses.sum();
+	}
+
+	// conditional requests sent to the origin server to validate a stale response
+	public long revalidations() {
+		return revalidations.sum();
+	}
+
+	// removes all responses for the URL
+	public synchronized void invalidate(@NotNull String url) {
+		String key = key(url);
+		remove(key);
+
+		if (channel != null && disk.remove(key) != null) {
+			try {
+				append(record(key, null));
+			} catch (IOException e) {
+				// the entry is stale anyway
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		memory.clear();
+		memorySize = 0L;
+
+		if (channel != null) {
+			disk.clear();
+			try {
+				channel.truncate(0L);
+				diskSize = 0L;
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		if (channel != null) {
+			Streams.closeUnchecked(channel);
+			channel = null;
+			disk.clear();
+		}
+	}
+
+	// whether the response to the request may be served from or stored in the cache
+	boolean accepts(@NotNull HTTPRequest request) {
+		if (!request.method.equals("GET") || request.body() != null)
+			return false;
+		if (!request.url.startsWith("http:") && !request.url.startsWith("https:"))
+			return false;
+
+		// requests with credentials or their own validators are passed through
+		Headers headers = request.headers;
+		if (headers.has("authorization") || headers.has("range") || headers.has("if-none-match") || headers.has("if-modified-since"))
+			return false;
+
+		return !hasDirective(cacheControl(headers), "no-store");
+	}
+
+	// invalidates the cached responses for the URL after a successful unsafe request (RFC 9111 4.4)
+	void invalidate(@NotNull HTTPRequest request, @NotNull HTTPResponse response) {
+		switch (request.method) {
+			case "GET":
+			case "HEAD":
+			case "OPTIONS":
+			case "TRACE":
+				return;
+			default:
+				if (response.status < 400)
+					invalidate(request.url);
+		}
+	}
+
+	// the network function may complete on any thread, the bodies of storable responses are read where it completes
+	@NotNull
+	CompletableFuture<HTTPResponse> fetch(@NotNull HTTPRequest request, @NotNull Function<HTTPRequest, CompletableFuture<HTTPResponse>> network,
+	                                      @NotNull Executor executor) {
+		String key = key(request.url);
+		String cc = cacheControl(request.headers);
+		Entry entry = lookup(key, request.headers);
+
+		if (entry != null) {
+			long age = entry.age(System.currentTimeMillis());
+			if (fresh(entry, cc, age)) {
+				hits.increment();
+				return CompletableFuture.completedFuture(entry.response(age));
+			}
+
+			// a stale response may be served while it is revalidated in the background
+			long stale = age - entry.lifetime;
+			if (!entry.noCache && !entry.mustRevalidate && !hasDirective(cc, "no-cache") && stale < entry.staleWhileRevalidate && entry.validated()) {
+				hits.increment();
+				revalidateLater(entry, request, network, executor);
+				return CompletableFuture.completedFuture(entry.response(age));
+			}
+		}
+
+		if (hasDirective(cc, "only-if-cached")) {
+			misses.increment();
+			return CompletableFuture.completedFuture(new HTTPResponse(504, "Gateway Timeout"));
+		}
+
+		if (entry != null && entry.validated())
+			return revalidate(entry, request, network);
+
+		misses.increment();
+		long requestTime = System.currentTimeMillis();
+		return network.apply(request).thenApply(response -> store(key, request, response, requestTime));
+	}
+
+	private boolean fresh(@NotNull Entry entry, @Nullable String cc, long age) {
+		if (entry.noCache || hasDirective(cc, "no-cache"))
+			return false;
+
+		long lifetime = entry.lifetime;
+		long maxAge = deltaMillis(directive(cc, "max-age"));
+		if (maxAge >= 0L)
+			lifetime = Math.min(lifetime, maxAge);
+
+		long minFresh = deltaMillis(directive(cc, "min-fresh"));
+		if (minFresh > 0L)
+			age += minFresh;
+
+		if (age < lifetime)
+			return true;
+
+		// the client accepts stale responses, unless the server requires them to be revalidated
+		if (entry.mustRevalidate || maxAge >= 0L)
+			return false;
+
+		String maxStale = directive(cc, "max-stale");
+		if (maxStale == null)
+			return false;
+
+		long limit = maxStale.isEmpty() ? Long.MAX_VALUE : deltaMillis(maxStale);
+		return age - lifetime < limit;
+	}
+
+	@NotNull
+	private CompletableFuture<HTTPResponse> revalidate(@NotNull Entry entry, @NotNull HTTPRequest request,
+	                                                   @NotNull Function<HTTPRequest, CompletableFuture<HTTPResponse>> network) {
+		Headers headers = new Headers(request.headers);
+		if (entry.etag != null)
+			headers.set("if-none-match", entry.etag);
+		if (entry.lastModified != null)
+			headers.set("if-modified-since", entry.lastModified);
+
+		revalidations.increment();
+		long requestTime = System.currentTimeMillis();
+
+		return network.apply(new HTTPRequest(request.url, "GET", headers)).thenApply(response -> {
+			if (response.status == 304) {
+				if (response.body() != null)
+					Streams.closeUnchecked(response.stream());
+
+				Entry updated = entry.refresh(response.headers, requestTime, System.currentTimeMillis());
+				put(updated);
+				return updated.response(updated.age(System.currentTimeMillis()));
+			}
+
+			return store(entry.key, request, response, requestTime);
+		});
+	}
+
+	private void revalidateLater(@NotNull Entry entry, @NotNull HTTPRequest request,
+	                             @NotNull Function<HTTPRequest, CompletableFuture<HTTPResponse>> network, @NotNull Executor executor) {
+		String id = entry.key + '\n' + entry.variant;
+		if (!revalidating.add(id))
+			return;
+
+		// the stale response stays until the next request if the revalidation fails
+		try {
+			executor.execute(() -> {
+				CompletableFuture<HTTPResponse> future;
+
+				try {
+					future = revalidate(entry, request, network);
+				} catch (RuntimeException e) {
+					revalidating.remove(id);
+					return;
+				}
+
+				future.whenComplete((response, e) -> {
+					revalidating.remove(id);
+					if (response != null && response.body() != null)
+						Streams.closeUnchecked(response.stream());
+				});
+			});
+		} catch (RejectedExecutionException e) {
+			revalidating.remove(id);
+		}
+	}
+
+	// reads the body of a storable response into the cache, other responses are returned as they are
+	@NotNull
+	private HTTPResponse store(@NotNull String key, @NotNull HTTPRequest request, @NotNull HTTPResponse response, long requestTime) {
+		long responseTime = System.currentTimeMillis();
+		if (!storable(response))
+			return response;
+
+		Body body = response.body();
+		if (body != null && body.length() > maxEntrySize)
+			return response;
+
+		byte[] data;
+
+		if (body == null) {
+			data = new byte[0];
+		} else {
+			InputStream in = response.stream();
+
+			try {
+				data = Streams.readNBytes(in, (int) maxEntrySize + 1);
+			} catch (IOException e) {
+				Streams.closeUnchecked(in);
+				throw new StreamError("Failed to read response body", e);
+			}
+
+			// too large after all, the part read so far is put back in front of the rest
+			if (data.length > maxEntrySize)
+				return new HTTPResponse(response.status, response.message, response.headers, Body.from(new SequenceInputStream(new ByteArrayInputStream(data), in)));
+
+			Streams.closeUnchecked(in);
+		}
+
+		String[] vary = varyNames(response.headers);
+		Entry entry = new Entry(key, vary, variant(vary, request.headers), response.status, response.message,
+				new Headers(response.headers), data, requestTime, responseTime);
+
+		if (entry.lifetime > 0L || entry.validated())
+			put(entry);
+
+		return new HTTPResponse(response.status, response.message, response.headers, Body.from(data));
+	}
+
+	// RFC 9111 3, the freshness and validators are checked once the entry is built
+	private static boolean storable(@NotNull HTTPResponse response) {
+		Headers headers = response.headers;
+		String cc = cacheControl(headers);
+		if (hasDirective(cc, "no-store"))
+			return false;
+
+		String vary = headers.get("vary");
+		if (vary != null && Util.hasToken(vary, "*"))
+			return false;
+
+		if (heuristic(response.status))
+			return true;
+
+		// other final responses only with explicit freshness
+		return response.status >= 200 && response.status != 206 && response.status != 304 &&
+				(directive(cc, "max-age") != null || headers.has("expires") || hasDirective(cc, "public"));
+	}
+
+	// status codes that are cacheable by default (RFC 9110 15.1)
+	private static boolean heuristic(int status) {
+		switch (status) {
+			case 200:
+			case 203:
+			case 204:
+			case 300:
+			case 301:
+			case 308:
+			case 404:
+			case 405:
+			case 410:
+			case 414:
+			case 501:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	@Nullable
+	private synchronized Entry lookup(@NotNull String key, @NotNull Headers headers) {
+		ArrayList<Entry> entries = memory.get(key);
+		if (entries != null) {
+			for (Entry entry : entries) {
+				if (entry.matches(headers))
+					return entry;
+			}
+		}
+
+		if (channel == null || (entries = disk.get(key)) == null)
+			return null;
+
+		for (Entry entry : entries) {
+			if (entry.matches(headers)) {
+				try {
+					Entry loaded = entry.withBody(read(entry.bodyOffset, entry.bodyLength));
+					putMemory(loaded);
+					return loaded;
+				} catch (IOException e) {
+					entries.remove(entry);
+					return null;
+				}
+			}
+		}
+
+		return null;
+	}
+
+	private synchronized void put(@NotNull Entry entry) {
+		putMemory(entry);
+
+		if (channel != null) {
+			try {
+				byte[] record = record(entry.key, entry);
+				if (record.length <= maxDiskSize) {
+					long offset = append(record);
+					Entry indexed = entry.withBody(null);
+					indexed.bodyOffset = offset + record.length - entry.body.length;
+					indexed.bodyLength = entry.body.length;
+					indexed.recordLength = record.length;
+					replace(disk, indexed, false);
+
+					if (diskSize > maxDiskSize)
+						compact();
+				}
+			} catch (IOException e) {
+				// the entry stays in memory
+			}
+		}
+	}
+
+	private void putMemory(@NotNull Entry entry) {
+		Entry old = replace(memory, entry, true);
+		if (old != null)
+			memorySize -= old.size();
+
+		memorySize += entry.size();
+
+		// the entry was just used and comes last
+		Iterator<Map.Entry<String, ArrayList<Entry>>> it = memory.entrySet().iterator();
+		while (memorySize > maxMemorySize && it.hasNext()) {
+			Map.Entry<String, ArrayList<Entry>> next = it.next();
+			if (next.getKey().equals(entry.key))
+				break;
+
+			for (Entry e : next.getValue())
+				memorySize -= e.size();
+
+			it.remove();
+		}
+	}
+
+	private void remove(@NotNull String key) {
+		ArrayList<Entry> entries = memory.remove(key);
+		if (entries != null) {
+			for (Entry e : entries)
+				memorySize -= e.size();
+		}
+	}
+
+	// stores the entry in place of the one for the same variant and returns that one
+	@Nullable
+	private static Entry replace(@NotNull LinkedHashMap<String, ArrayList<Entry>> map, @NotNull Entry entry, boolean memory) {
+		ArrayList<Entry> entries = map.get(entry.key);
+		if (entries == null) {
+			map.put(entry.key, entries = new ArrayList<>(1));
+		} else if (!memory) {
+			// the disk index is kept in write order
+			map.remove(entry.key);
+			map.put(entry.key, entries);
+		}
+
+		for (int i = 0; i < entries.size(); i++) {
+			if (entries.get(i).variant.equals(entry.variant))
+				return entries.set(i, entry);
+		}
+
+		entries.add(0, entry);
+		return entries.size() > maxVariants ? entries.remove(entries.size() - 1) : null;
+	}
+
+	// record: length, magic, key, then either a tombstone flag or the entry with its body last
+	@NotNull
+	private static byte[] record(@NotNull String key, @Nullable Entry entry) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(entry == null ? 64 : entry.body.length + 512);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0);
+		out.writeInt(recordMagic);
+		out.writeUTF(key);
+		out.writeBoolean(entry != null);
+
+		if (entry != null) {
+			out.writeUTF(entry.variant);
+			out.writeInt(entry.vary.length);
+			for (String name : entry.vary)
+				out.writeUTF(name);
+
+			out.writeInt(entry.status);
+			out.writeUTF(entry.message);
+			out.writeLong(entry.requestTime);
+			out.writeLong(entry.responseTime);
+
+			Header[] headers = entry.headers.entries();
+			out.writeInt(headers.length);
+			for (Header header : headers) {
+				out.writeUTF(header.getKey());
+				out.writeUTF(header.getValue());
+			}
+
+			out.writeInt(entry.body.length);
+			out.write(entry.body);
+		}
+
+		out.flush();
+		byte[] record = bytes.toByteArray();
+		ByteBuffer.wrap(record).putInt(0, record.length - 4);
+		return record;
+	}
+
+	// the offset the record was written at
+	private long append(@NotNull byte[] record) throws IOException {
+		FileChannel channel = this.channel;
+		long offset = diskSize;
+		ByteBuffer buf = ByteBuffer.wrap(record);
+
+		while (buf.hasRemaining())
+			channel.write(buf, offset + buf.position());
+
+		diskSize += record.length;
+		return offset;
+	}
+
+	@NotNull
+	private byte[] read(long offset, int length) throws IOException {
+		byte[] data = new byte[length];
+		ByteBuffer buf = ByteBuffer.wrap(data);
+
+		while (buf.hasRemaining()) {
+			if (channel.read(buf, offset + buf.position()) < 0)
+				throw new EOFException("Unexpected end of cache file");
+		}
+
+		return data;
+	}
+
+	// reads the records of the file, a partly written record at the end is cut off
+	private void index() throws IOException {
+		FileChannel channel = this.channel;
+		long size = channel.size();
+		long offset = 0L;
+		ByteBuffer head = ByteBuffer.allocate(4);
+
+		while (offset + 4L <= size) {
+			((Buffer) head).clear();
+			while (head.hasRemaining()) {
+				if (channel.read(head, offset + head.position()) < 0)
+					break;
+			}
+
+			int length = head.getInt(0);
+			if (length < 4 || offset + 4L + length > size)
+				break;
+
+			Entry entry;
+			String key;
+
+			try {
+				byte[] payload = read(offset + 4L, length);
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+				if (in.readInt() != recordMagic)
+					break;
+
+				key = in.readUTF();
+				entry = in.readBoolean() ? readEntry(key, in) : null;
+
+				if (entry != null) {
+					entry.bodyOffset = offset + 4L + length - entry.bodyLength;
+					entry.recordLength = length + 4;
+				}
+			} catch (IOException e) {
+				break;
+			}
+
+			if (entry == null)
+				disk.remove(key);
+			else
+				replace(disk, entry, false);
+
+			offset += 4L + length;
+		}
+
+		if (offset < size)
+			channel.truncate(offset);
+
+		diskSize = offset;
+	}
+
+	@NotNull
+	private static Entry readEntry(@NotNull String key, @NotNull DataInputStream in) throws IOException {
+		String variant = in.readUTF();
+		String[] vary = new String[in.readInt()];
+		for (int i = 0; i < vary.length; i++)
+			vary[i] = in.readUTF();
+
+		int status = in.readInt();
+		String message = in.readUTF();
+		long requestTime = in.readLong();
+		long responseTime = in.readLong();
+
+		Headers headers = new Headers();
+		for (int i = in.readInt(); i > 0; i--)
+			headers.add(in.readUTF(), in.readUTF());
+
+		Entry entry = new Entry(key, vary, variant, status, message, headers, null, requestTime, responseTime);
+		entry.bodyLength = in.readInt();
+		return entry;
+	}
+
+	// rewrites the live entries to a new file, dropping the oldest ones until half of the limit is used
+	private void compact() throws IOException {
+		long live = 0L;
+		for (ArrayList<Entry> entries : disk.values()) {
+			for (Entry entry : entries)
+				live += entry.recordLength;
+		}
+
+		Iterator<ArrayList<Entry>> it = disk.values().iterator();
+		while (live > maxDiskSize / 2L && it.hasNext()) {
+			for (Entry entry : it.next())
+				live -= entry.recordLength;
+
+			it.remove();
+		}
+
+		Path file = this.file;
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		LinkedHashMap<String, ArrayList<Entry>> index = new LinkedHashMap<>();
+		long offset = 0L;
+
+		try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			for (ArrayList<Entry> entries : disk.values()) {
+				// written oldest first so that the newest variant is indexed first again
+				for (int i = entries.size() - 1; i >= 0; i--) {
+					Entry entry = entries.get(i);
+					byte[] record = record(entry.key, entry.withBody(read(entry.bodyOffset, entry.bodyLength)));
+					ByteBuffer buf = ByteBuffer.wrap(record);
+					while (buf.hasRemaining())
+						out.write(buf);
+
+					Entry indexed = entry.withBody(null);
+					indexed.bodyOffset = offset + record.length - entry.bodyLength;
+					indexed.bodyLength = entry.bodyLength;
+					indexed.recordLength = record.length;
+					replace(index, indexed, false);
+					offset += record.length;
+				}
+			}
+
+			out.force(false);
+		}
+
+		Streams.closeUnchecked(channel);
+		channel = null;
+
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		disk.clear();
+		disk.putAll(index);
+		diskSize = offset;
+	}
+
+	// the URL without its fragment
+	@NotNull
+	private static String key(@NotNull String url) {
+		int i = url.indexOf('#');
+		return i < 0 ? url : url.substring(0, i);
+	}
+
+	@Nullable
+	static String cacheControl(@NotNull Headers headers) {
+		String[] values = headers.getAll("cache-control");
+		if (values == null || values.length == 0) {
+			// HTTP/1.0 caches
+			String pragma = headers.get("pragma");
+			return pragma != null && Util.hasToken(pragma, "no-cache") ? "no-cache" : null;
+		}
+
+		return values.length == 1 ? values[0] : String.join(",", values);
+	}
+
+	// the value of a directive, an empty string if it has none or null if it is not present
+	@Nullable
+	static String directive(@Nullable String cc, @NotNull String name) {
+		if (cc == null)
+			return null;
+
+		for (String item : cc.split(",")) {
+			item = item.trim();
+			int i = item.indexOf('=');
+			String key = i < 0 ? item : item.substring(0, i).trim();
+			if (key.equalsIgnoreCase(name)) {
+				if (i < 0)
+					return "";
+
+				String value = item.substring(i + 1).trim();
+				if (value.length() >= 2 && value.charAt(0) == '"' && value.charAt(value.length() - 1) == '"')
+					value = value.substring(1, value.length() - 1);
+
+				return value;
+			}
+		}
+
+		return null;
+	}
+
+	static boolean hasDirective(@Nullable String cc, @NotNull String name) {
+		return directive(cc, name) != null;
+	}
+
+	// a delta-seconds value in milliseconds, or -1
+	static long deltaMillis(@Nullable String value) {
+		if (value == null || value.isEmpty())
+			return -1L;
+
+		try {
+			long n = Long.parseLong(value, 10);
+			return n < 0L ? -1L : n > Long.MAX_VALUE / 1000L ? Long.MAX_VALUE : n * 1000L;
+		} catch (NumberFormatException e) {
+			// values that overflow mean forever
+			return value.chars().allMatch(Character::isDigit) ? Long.MAX_VALUE : -1L;
+		}
+	}
+
+	@NotNull
+	static String[] varyNames(@NotNull Headers headers) {
+		String vary = headers.get("vary");
+		if (vary == null)
+			return new String[0];
+
+		ArrayList<String> names = new ArrayList<>();
+		for (String name : vary.split(",")) {
+			name = name.trim().toLowerCase(Locale.ROOT);
+			if (!name.isEmpty())
+				names.add(name);
+		}
+
+		return names.toArray(new String[0]);
+	}
+
+	// the request header values a response varies on, without whitespace and case differences
+	@NotNull
+	static String variant(@NotNull String[] vary, @NotNull Headers headers) {
+		if (vary.length == 0)
+			return "";
+
+		StringBuilder builder = new StringBuilder();
+		for (String name : vary) {
+			String[] values = headers.getAll(name);
+			if (values == null || values.length == 0) {
+				builder.append('\0');
+			} else {
+				for (String value : values) {
+					for (int i = 0; i < value.length(); i++) {
+						char c = value.charAt(i);
+						if (c != ' ' && c != '\t')
+							builder.append(Character.toLowerCase(c));
+					}
+					builder.append(',');
+				}
+			}
+			builder.append('\n');
+		}
+
+		return builder.toString();
+	}
+
+	private static final class Entry {
+		final String key;
+		final String[] vary;
+		final String variant;
+
+		final int status;
+		@NotNull
+		final String message;
+		final Headers headers;
+		final byte[] body;
+
+		final long requestTime;
+		final long responseTime;
+		final long dateValue;
+		final long ageValue;
+
+		final long lifetime;
+		final long staleWhileRevalidate;
+		final boolean noCache;
+		final boolean mustRevalidate;
+		@Nullable
+		final String etag;
+		@Nullable
+		final String lastModified;
+
+		// where the body is in the cache file
+		long bodyOffset = -1L;
+		int bodyLength = 0;
+		int recordLength = 0;
+
+		Entry(@NotNull String key, @NotNull String[] vary, @NotNull String variant, int status, @NotNull String message, @NotNull Headers headers,
+		      byte[] body, long requestTime, long responseTime) {
+			this.key = key;
+			this.vary = vary;
+			this.variant = variant;
+			this.status = status;
+			this.message = message;
+			this.headers = headers;
+			this.body = body;
+			this.requestTime = requestTime;
+			this.responseTime = responseTime;
+			this.dateValue = DateFormatter.parse(headers.get("date"));
+
+			long age = deltaMillis(headers.get("age"));
+			this.ageValue = Math.max(age, 0L);
+
+			String cc = cacheControl(headers);
+			this.noCache = hasDirective(cc, "no-cache");
+			this.mustRevalidate = hasDirective(cc, "must-revalidate");
+			this.staleWhileRevalidate = Math.max(deltaMillis(directive(cc, "stale-while-revalidate")), 0L);
+			this.etag = headers.get("etag");
+			this.lastModified = headers.get("last-modified");
+			this.lifetime = lifetime(cc);
+		}
+
+		// RFC 9111 4.2.1
+		private long lifetime(@Nullable String cc) {
+			long maxAge = deltaMillis(directive(cc, "max-age"));
+			if (maxAge >= 0L)
+				return maxAge;
+
+			String expires = headers.get("expires");
+			long date = dateValue >= 0L ? dateValue : responseTime;
+			if (expires != null) {
+				long time = DateFormatter.parse(expires);
+				return time < 0L ? 0L : Math.max(time - date, 0L);
+			}
+
+			// a tenth of the time since the last modification (RFC 9111 4.2.2)
+			long modified = DateFormatter.parse(lastModified);
+			if (heuristic(status) && modified >= 0L && modified < date)
+				return Math.min((date - modified) / 10L, maxHeuristic);
+
+			return 0L;
+		}
+
+		// RFC 9111 4.2.3, in milliseconds
+		long age(long now) {
+			long apparent = dateValue < 0L ? 0L : Math.max(responseTime - dateValue, 0L);
+			long corrected = ageValue + (responseTime - requestTime);
+			return Math.max(apparent, corrected) + (now - responseTime);
+		}
+
+		boolean validated() {
+			return etag != null || lastModified != null;
+		}
+
+		boolean matches(@NotNull Headers headers) {
+			return variant.equals(variant(vary, headers));
+		}
+
+		long size() {
+			long size = 256L + body.length;
+			for (Header header : headers.entries())
+				size += 2L * (header.getKey().length() + header.getValue().length()) + 32L;
+
+			return size;
+		}
+
+		@NotNull
+		HTTPResponse response(long age) {
+			Headers headers = new Headers(this.headers);
+			headers.set("age", Long.toString(Math.max(age, 0L) / 1000L));
+			return new HTTPResponse(status, message, headers, Body.from(body));
+		}
+
+		@NotNull
+		Entry withBody(@Nullable byte[] body) {
+			Entry entry = new Entry(key, vary, variant, status, message, headers, body, requestTime, responseTime);
+			entry.bodyOffset = bodyOffset;
+			entry.bodyLength = bodyLength;
+			entry.recordLength = recordLength;
+			return entry;
+		}
+
+		// the stored response updated with the headers of a 304 response (RFC 9111 4.3.4)
+		@NotNull
+		Entry refresh(@NotNull Headers update, long requestTime, long responseTime) {
+			Headers headers = new Headers(this.headers);
+			for (String name : update.keys()) {
+				switch (name) {
+					case "content-length":
+					case "content-encoding":
+					case "transfer-encoding":
+					case "connection":
+					case "keep-alive":
+						continue;
+					default:
+						headers.remove(name);
+						for (String value : update.getAll(name))
+							headers.add(name, value);
+				}
+			}
+
+			return new Entry(key, vary, variant, status, message, headers, body, requestTime, responseTime);
+		}
+	}
+}
@@ -5,16 +5,34 @@ import org.jetbrains.annotations.*;
 import javax.net.*;
 import java.io.*;
 import java.net.*;
+import java.nio.channels.*;
 import java.nio.charset.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class HTTPClient {
 	private int timeout = 5000;
 	private int socketTimeout = 15000;
 	private int maxHeaderSize = 65536;
+	private int bufferLimit = 8192;
+	private boolean decompression = true;
+	@Nullable
+	private HTTPCache cache;
+
+	// request bodies up to this size are buffered so that fetchAsync can send them from the selector threads
+	private static final long maxBufferedBody = 65536L;
 
 	@NotNull
 	private SocketFactory factory = SocketFactory.getDefault();
+	@NotNull
+	private Executor executor = ForkJoinPool.commonPool();
+	private final ConnectionPool pool = new ConnectionPool();
+
+	private int selectorThreads = 1;
+	@Nullable
+	private ClientLoop[] loops;
+	private int next = 0;
+	private boolean closed = false;
 
 	public HTTPClient() {
 	}
@@ -35,6 +53,79 @@ public class HTTPClient {
 		this.maxHeaderSize = maxHeaderSize;
 	}
 
+	// sends Accept-Encoding for gzip and deflate and decodes compressed responses while they are read,
+	// requests that set their own Accept-Encoding header are left alone
+	public void setDecompression(boolean decompression) {
+		this.decompression = decompression;
+	}
+
+	// GET requests are answered from the cache when it holds a fresh response, the cache is not closed with the client
+	public void setCache(@Nullable HTTPCache cache) {
+		this.cache = cache;
+	}
+
+	// Content-Length bodies up to this size are read before fetch returns, larger ones are streamed from the
+	// connection as they are consumed and must be read to the end or closed to free the connection
+	public void setBufferLimit(int bufferLimit) {
+		this.bufferLimit = Math.max(Math.min(bufferLimit, Integer.MAX_VALUE - 8), 0);
+	}
+
+	// runs the completion of fetchAsync, which includes reading small Content-Length bodies, callbacks attached
+	// with the non-async methods of the returned future run here as well
+	public void setExecutor(@Nullable Executor executor) {
+		this.executor = executor == null ? ForkJoinPool.commonPool() : executor;
+	}
+
+	// number of threads sending requests for fetchAsync, takes effect before its first call
+	public void setSelectorThreads(int selectorThreads) {
+		if (selectorThreads < 1)
+			throw new IllegalArgumentException("Invalid selector thread count: " + selectorThreads);
+
+		this.selectorThreads = selectorThreads;
+	}
+
+	// connections kept open per origin, fetch waits up to the connect timeout for a free one once the limit is reached
+	public void setMaxConnectionsPerHost(int maxConnections) {
+		if (maxConnections < 1)
+			throw new IllegalArgumentException("Invalid connection limit: " + maxConnections);
+
+		pool.maxPerHost = maxConnections;
+	}
+
+	// how long an idle connection is kept open, in milliseconds
+	public void setIdleTimeout(long idleTimeout) {
+		pool.idleTimeout = Math.max(idleTimeout, 0L);
+	}
+
+	@NotNull
+	public PoolStats poolStats() {
+		return new PoolStats(pool.created.sum(), pool.reused.sum(), pool.evicted.sum(), pool.active(), pool.idle());
+	}
+
+	// closes connections that have exceeded the idle timeout, this otherwise happens as requests are made
+	public void evictIdleConnections() {
+		pool.evictIdle(true);
+	}
+
+	// closes all idle connections and fails pending asynchronous requests, connections still reading
+	// a response body are closed once it ends
+	public void close() {
+		ClientLoop[] loops;
+
+		synchronized (this) {
+			closed = true;
+			loops = this.loops;
+			this.loops = null;
+		}
+
+		if (loops != null) {
+			for (ClientLoop loop : loops)
+				loop.close();
+		}
+
+		pool.close();
+	}
+
 	@Nullable
 	public HTTPResponse opt(@Nullable HTTPRequest request) {
 		if (request == null)
@@ -49,91 +140,522 @@ public class HTTPClient {
 
 	@NotNull
 	public HTTPResponse fetch(@NotNull HTTPRequest request) {
-		URI uri = Util.optURL(request.url);
-		String scheme;
+		HTTPCache cache = this.cache;
+		if (cache == null)
+			return send(request);
+		if (cache.accepts(request)) {
+			// send runs on this thread, so the future is already complete
+			try {
+				return cache.fetch(request, r -> CompletableFuture.completedFuture(send(r)), executor).join();
+			} catch (CompletionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof RuntimeException)
+					throw (RuntimeException) cause;
+				if (cause instanceof Error)
+					throw (Error) cause;
+				throw e;
+			}
+		}
 
-		if (uri == null || (scheme = uri.getScheme()) == null)
-			throw new IllegalArgumentException("Invalid request URL: " + uri);
+		HTTPResponse response = send(request);
+		cache.invalidate(request, response);
+		return response;
+	}
 
-		String host = uri.getHost();
-		int port = uri.getPort();
+	@NotNull
+	private HTTPResponse send(@NotNull HTTPRequest request) {
+		URI uri = uri(request);
+		if (uri.getScheme().equals("data"))
+			return fetchDataURL(uri.getRawSchemeSpecificPart());
 
-		switch (scheme) {
-			case "data":
-				return fetchDataURL(uri.getRawSchemeSpecificPart());
-			case "http":
-				if (port < 0 || port > 65535)
-					port = 80;
-				break;
-			case "https":
-				if (port < 0 || port > 65535)
-					port = 443;
-				break;
-			default:
-				throw new IllegalArgumentException("Unsupported URL protocol: " + scheme);
+		Target target = new Target(request, uri, decompression);
+		Body body = target.body;
+
+		for (;;) {
+			ConnectionPool.Connection conn;
+
+			try {
+				conn = pool.acquire(target.key, () -> connect(target.host, target.port), timeout);
+			} catch (Exception e) {
+				throw new NetworkError("Failed to connect to origin server", e);
+			}
+
+			try {
+				conn.socket.setSoTimeout(socketTimeout);
+				send(conn.out, target);
+				return receive(conn, request, target, Util.parseResponse(readHead(conn.in)));
+			} catch (IOException e) {
+				pool.discard(conn);
+
+				// the server may have closed a pooled connection just before the request was sent, which is
+				// safe to retry on another connection as long as the request can be sent again
+				if (!conn.reused || body != null || !idempotent(request.method))
+					throw new NetworkError("Failed to connect to origin server", e);
+			} catch (RuntimeException | Error e) {
+				pool.discard(conn);
+				throw e;
+			}
 		}
+	}
+
+	// sends the request from the selector threads and completes once the response head has arrived, the executor
+	// then reads the response body as fetch does, requests through a custom socket factory and requests with a
+	// body that is not known to be small are run with fetch on the executor instead, misses and revalidations of
+	// the cache are sent the same way
+	@NotNull
+	public CompletableFuture<HTTPResponse> fetchAsync(@NotNull HTTPRequest request) {
+		HTTPCache cache = this.cache;
+		if (cache != null) {
+			if (cache.accepts(request))
+				return cache.fetch(request, this::sendAsync, executor);
+
+			return sendAsync(request).thenApply(response -> {
+				cache.invalidate(request, response);
+				return response;
+			});
+		}
+
+		return sendAsync(request);
+	}
+
+	@NotNull
+	private CompletableFuture<HTTPResponse> sendAsync(@NotNull HTTPRequest request) {
+		CompletableFuture<HTTPResponse> future = new CompletableFuture<>();
+		byte[] data;
+		Target target;
+
+		try {
+			URI uri = uri(request);
+			if (uri.getScheme().equals("data")) {
+				future.complete(fetchDataURL(uri.getRawSchemeSpecificPart()));
+				return future;
+			}
+
+			target = new Target(request, uri, decompression);
+
+			Body body = target.body;
+			if (factory != SocketFactory.getDefault() || (body != null && (body.length() < 0L || body.length() > maxBufferedBody)))
+				return CompletableFuture.supplyAsync(() -> send(request), executor);
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream(target.head.length + (body == null ? 0 : (int) body.length() + 16));
+			send(out, target);
+			data = out.toByteArray();
+		} catch (Exception e) {
+			future.completeExceptionally(e);
+			return future;
+		}
+
+		try {
+			// resolved by the loop on the executor, and only if a new connection has to be opened
+			attempt(future, request, target, InetSocketAddress.createUnresolved(target.host, target.port), data);
+		} catch (Exception e) {
+			future.completeExceptionally(new NetworkError("Failed to connect to origin server", e));
+		}
+
+		return future;
+	}
+
+	private void attempt(@NotNull CompletableFuture<HTTPResponse> future, @NotNull HTTPRequest request, @NotNull Target target,
+	                     @NotNull InetSocketAddress address, @NotNull byte[] message) throws IOException {
+		ClientLoop.Exchange ex = new ClientLoop.Exchange(target.key, address, message, executor, timeout, socketTimeout, maxHeaderSize) {
+			@Override
+			void completed(@NotNull ConnectionPool.Connection conn, @NotNull String head) {
+				try {
+					executor.execute(() -> {
+						HTTPResponse response;
+
+						try {
+							conn.socket.setSoTimeout(socketTimeout);
+							response = receive(conn, request, target, Util.parseResponse(head));
+						} catch (Exception e) {
+							pool.discard(conn);
+							future.completeExceptionally(e instanceof RuntimeException ? e : new NetworkError("Failed to connect to origin server", e));
+							return;
+						}
+
+						// cancelled in the meantime, closing the body frees the connection
+						if (!future.complete(response) && response.body() != null)
+							Streams.closeUnchecked(response.stream());
+					});
+				} catch (Exception e) {
+					pool.discard(conn);
+					future.completeExceptionally(e);
+				}
+			}
+
+			@Override
+			void failed(@NotNull Exception e, boolean stale) {
+				if (stale && target.body == null && idempotent(request.method) && !future.isDone()) {
+					try {
+						attempt(future, request, target, address, message);
+						return;
+					} catch (Exception err) {
+						e = err;
+					}
+				}
+
+				// dependent stages of the future must not run on the loop thread
+				NetworkError error = new NetworkError("Failed to connect to origin server", e);
+				try {
+					executor.execute(() -> future.completeExceptionally(error));
+				} catch (RejectedExecutionException err) {
+					future.completeExceptionally(error);
+				}
+			}
+		};
+
+		future.whenComplete((response, e) -> {
+			if (e != null)
+				ex.abort();
+		});
+		loop().submit(ex);
+	}
+
+	@NotNull
+	private synchronized ClientLoop loop() throws IOException {
+		ClientLoop[] loops = this.loops;
+		if (loops == null) {
+			if (closed)
+				throw new IOException("Client is closed");
+
+			loops = new ClientLoop[selectorThreads];
+
+			try {
+				for (int i = 0; i < loops.length; i++)
+					loops[i] = new ClientLoop(pool);
+			} catch (IOException e) {
+				for (ClientLoop loop : loops) {
+					if (loop != null)
+						loop.close();
+				}
+				throw e;
+			}
+
+			for (int i = 0; i < loops.length; i++) {
+				Thread thread = new Thread(loops[i], "http-client-selector-" + i);
+				thread.setDaemon(true);
+				thread.start();
+			}
+
+			this.loops = loops;
+		}
+
+		ClientLoop loop = loops[next];
+		next = (next + 1) % loops.length;
+		return loop;
+	}
+
+	@NotNull
+	private static URI uri(@NotNull HTTPRequest request) {
+		URI uri = Util.optURL(request.url);
+		if (uri == null || uri.getScheme() == null)
+			throw new IllegalArgumentException("Invalid request URL: " + uri);
+
+		return uri;
+	}
+
+	@NotNull
+	private Socket connect(@NotNull String host, int port) throws IOException {
+		// sockets of the default factory are backed by a channel so that fetchAsync can use them as well
+		Socket socket = factory == SocketFactory.getDefault() ? SocketChannel.open().socket() : factory.createSocket();
 
 		try {
-			Socket socket = factory.createSocket();
 			socket.connect(new InetSocketAddress(host, port), timeout);
-			socket.setSoTimeout(socketTimeout);
-			socket.setKeepAlive(false);
-			socket.setTcpNoDelay(false);
-			socket.setReuseAddress(true);
+			socket.setKeepAlive(true);
+			socket.setTcpNoDelay(true);
 			socket.setSendBufferSize(65536);
 			socket.setReceiveBufferSize(65536);
+		} catch (IOException e) {
+			Streams.closeUnchecked(socket);
+			throw e;
+		}
 
-			InputStream in = socket.getInputStream();
-			OutputStream out = socket.getOutputStream();
+		return socket;
+	}
 
-			{
-				StringBuilder builder = new StringBuilder(request.method).append(' ');
-
-				{
-					String path = uri.getRawPath();
-					if (path == null || path.isEmpty())
-						builder.append('/');
-					else
-						builder.append(path);
+	private static void send(@NotNull OutputStream out, @NotNull Target target) throws IOException {
+		out.write(target.head, 0, target.head.length);
+
+		Body body = target.body;
+		if (body != null) {
+			if (target.chunked) {
+				Streams.ChunkedOutput co = new Streams.ChunkedOutput(out);
+				body.pipeTo(co, false);
+				co.finish();
+			} else {
+				body.pipeTo(out, false);
+			}
+		}
+
+		out.flush();
+	}
+
+	// reads the response body, or what follows an interim response, from a connection in blocking mode
+	@NotNull
+	private HTTPResponse receive(@NotNull ConnectionPool.Connection conn, @NotNull HTTPRequest request, @NotNull Target target,
+	                             @NotNull HTTPResponse response) throws IOException {
+		while (response.status >= 100 && response.status < 200 && response.status != 101)
+			response = Util.parseResponse(readHead(conn.in));
+
+		int status = response.status;
+		Headers headers = response.headers;
+		boolean reusable = Util.keepAlive(headers) && Util.keepAlive(request.headers) && status != 101;
+		long keepAlive = keepAliveTimeout(headers);
+
+		if (request.method.equals("HEAD") || status == 204 || status == 304 || status == 101) {
+			if (status == 101 || !reusable)
+				pool.discard(conn);
+			else
+				pool.release(conn, keepAlive);
+
+			return response;
+		}
+
+		{
+			String encoding = headers.get("transfer-encoding");
+			if (encoding != null) {
+				int i = encoding.lastIndexOf(',');
+				if (!encoding.substring(i + 1).trim().equalsIgnoreCase("chunked"))
+					return new HTTPResponse(status, response.message, headers, Body.from(untilClose(conn), encoding));
+
+				Streams.ChunkedStream stream = new Streams.ChunkedStream(conn.in);
+				stream.onEnd(() -> ended(conn, stream, reusable, keepAlive));
+				if (i >= 0)
+					return new HTTPResponse(status, response.message, headers, Body.from(stream, encoding.substring(0, i).trim()));
+
+				return new HTTPResponse(status, response.message, headers, Body.from(decode(target, headers, stream)));
+			}
+		}
+
+		{
+			String value = headers.get("content-length");
+			if (value != null) {
+				long length;
+
+				try {
+					length = Long.parseLong(value.trim(), 10);
+				} catch (NumberFormatException e) {
+					length = -1L;
 				}
 
-				{
-					String query = uri.getRawQuery();
-					if (query != null)
-						builder.append('?').append(query);
+				if (length < 0L)
+					throw new ProtocolError("Invalid content length: " + value);
+
+				Streams.LengthStream stream = new Streams.LengthStream(conn.in, length);
+				stream.onEnd(() -> ended(conn, stream, reusable, keepAlive));
+
+				if (length == 0L) {
+					stream.close();
+					return new HTTPResponse(status, response.message, headers, Body.emptyBody);
 				}
-				{
-					String fragment = uri.getRawFragment();
-					if (fragment != null)
-						builder.append('#').append(fragment);
+
+				// larger bodies are read from the connection as the caller consumes them
+				if (length <= bufferLimit) {
+					byte[] data = Streams.readNBytes(stream, (int) length);
+					InputStream in = new ByteArrayInputStream(data);
+					InputStream decoded = decode(target, headers, in);
+					return new HTTPResponse(status, response.message, headers, decoded == in ? Body.from(data) : Body.from(decoded));
 				}
 
-				Body body = request.body();
-				Headers headers = request.headers;
-				boolean chunked = body != null && !headers.has("content-length");
+				return new HTTPResponse(status, response.message, headers, Body.from(decode(target, headers, stream)));
+			}
+		}
 
-				if (port == 80 || port == 443)
-					headers.set("host", host);
-				else
-					headers.set("host", host + ":" + port);
-				if (chunked)
-					headers.set("transfer-encoding", "chunked");
+		// the body ends when the server closes the connection
+		return new HTTPResponse(status, response.message, headers, Body.from(decode(target, headers, untilClose(conn))));
+	}
 
-				headers.toString(builder.append(" HTTP/1.1\r\n")).append("\r\n");
+	// wraps the body in a decoder for its content coding if the client asked for it, the headers are changed to
+	// describe the decoded body
+	@NotNull
+	private static InputStream decode(@NotNull Target target, @NotNull Headers headers, @NotNull InputStream stream) {
+		String coding;
+		if (!target.decode || (coding = headers.get("content-encoding")) == null)
+			return stream;
+
+		boolean gzip;
+		switch (coding.trim().toLowerCase(Locale.ROOT)) {
+			case "gzip":
+			case "x-gzip":
+				gzip = true;
+				break;
+			case "deflate":
+				gzip = false;
+				break;
+			default:
+				return stream;
+		}
 
-				{
-					byte[] data = builder.toString().getBytes(StandardCharsets.UTF_8);
-					out.write(data, 0, data.length);
-					out.flush();
+		headers.remove("content-encoding");
+		headers.remove("content-length");
+		return new Streams.InflateInput(stream, gzip);
+	}
+
+	private void ended(@NotNull ConnectionPool.Connection conn, @NotNull Streams.FramedStream stream, boolean reusable, long keepAlive) {
+		if (reusable && stream.finished())
+			pool.release(conn, keepAlive);
+		else
+			pool.discard(conn);
+	}
+
+	@NotNull
+	private InputStream untilClose(@NotNull ConnectionPool.Connection conn) {
+		return new FilterInputStream(conn.in) {
+			private boolean closed = false;
+
+			@Override
+			public void close() {
+				if (!closed) {
+					closed = true;
+					pool.discard(conn);
 				}
+			}
+		};
+	}
 
-				if (body != null)
-					body.pipeTo(chunked ? new Streams.ChunkedOutput(out) : out, false);
+	// reads the status line and header fields up to the empty line that ends them
+	@NotNull
+	private String readHead(@NotNull InputBuffer in) throws IOException {
+		int scanned = 0;
+
+		for (;;) {
+			int end = headEnd(in, scanned);
+			if (end >= 0) {
+				String head = new String(in.buffer, in.pos, end - in.pos, StandardCharsets.UTF_8);
+				in.pos = end;
+				return head;
 			}
 
-			return Util.parseRawResponse(new String(Streams.readUntil(in, Util.headerEndMark, maxHeaderSize), StandardCharsets.UTF_8), in);
-		} catch (Exception e) {
-			throw new NetworkError("Failed to connect to origin server", e);
+			if ((scanned = in.limit - in.pos) >= maxHeaderSize)
+				throw new ProtocolError("Response header too large");
+			if (!in.fill())
+				throw new EOFException("Connection closed before the response was received");
+		}
+	}
+
+	// the index after the empty line that ends the head in the buffered bytes, or -1,
+	// scanned is the number of bytes after pos that are already known to not contain it
+	static int headEnd(@NotNull InputBuffer in, int scanned) {
+		byte[] buf = in.buffer;
+		int start = in.pos;
+
+		for (int i = start + Math.max(scanned - 2, 0); i < in.limit; i++) {
+			if (buf[i] == '\n' && ((i - 1 >= start && buf[i - 1] == '\n') || (i - 2 >= start && buf[i - 1] == '\r' && buf[i - 2] == '\n')))
+				return i + 1;
+		}
+
+		return -1;
+	}
+
+	// the idle timeout from a Keep-Alive header in milliseconds with a second to spare, or -1
+	private static long keepAliveTimeout(@NotNull Headers headers) {
+		String value = headers.get("keep-alive");
+		if (value == null)
+			return -1L;
+
+		for (String param : value.split(",")) {
+			param = param.trim();
+			if (param.regionMatches(true, 0, "timeout=", 0, 8)) {
+				try {
+					return Math.max(Long.parseLong(param.substring(8).trim(), 10) - 1L, 0L) * 1000L;
+				} catch (NumberFormatException e) {
+					return -1L;
+				}
+			}
+		}
+
+		return -1L;
+	}
+
+	private static boolean idempotent(@NotNull String method) {
+		switch (method) {
+			case "GET":
+			case "HEAD":
+			case "OPTIONS":
+			case "TRACE":
+			case "PUT":
+			case "DELETE":
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	// where a request is sent and its serialized head
+	private static final class Target {
+		final String key;
+		final String host;
+		final int port;
+		final byte[] head;
+		@Nullable
+		final Body body;
+		final boolean chunked;
+		// the client negotiated the content coding and decodes the response
+		final boolean decode;
+
+		Target(@NotNull HTTPRequest request, @NotNull URI uri, boolean decompression) {
+			String scheme = uri.getScheme();
+			String host = uri.getHost();
+			int port = uri.getPort();
+
+			switch (scheme) {
+				case "http":
+					if (port < 0 || port > 65535)
+						port = 80;
+					break;
+				case "https":
+					if (port < 0 || port > 65535)
+						port = 443;
+					break;
+				default:
+					throw new IllegalArgumentException("Unsupported URL protocol: " + scheme);
+			}
+
+			Body body = request.body();
+			Headers headers = request.headers;
+			boolean chunked = body != null && !headers.has("content-length");
+			StringBuilder builder = new StringBuilder(request.method).append(' ');
+
+			{
+				String path = uri.getRawPath();
+				if (path == null || path.isEmpty())
+					builder.append('/');
+				else
+					builder.append(path);
+			}
+
+			{
+				String query = uri.getRawQuery();
+				if (query != null)
+					builder.append('?').append(query);
+			}
+			{
+				String fragment = uri.getRawFragment();
+				if (fragment != null)
+					builder.append('#').append(fragment);
+			}
+
+			if (port == 80 || port == 443)
+				headers.set("host", host);
+			else
+				headers.set("host", host + ":" + port);
+			if (chunked)
+				headers.set("transfer-encoding", "chunked");
+
+			// a request that sets its own Accept-Encoding receives the body as sent, the header is not added
+			// to the request itself so that sending it again does not count as setting it
+			boolean decode = decompression && !headers.has("accept-encoding");
+			headers.toString(builder.append(" HTTP/1.1\r\n"));
+			if (decode)
+				builder.append("accept-encoding: gzip, deflate\r\n");
+
+			this.key = scheme + "://" + host + ":" + port;
+			this.host = host;
+			this.port = port;
+			this.head = builder.append("\r\n").toString().getBytes(StandardCharsets.UTF_8);
+			this.body = body;
+			this.chunked = chunked;
+			this.decode = decode;
 		}
 	}
 
@@ -156,4 +678,29 @@ public class HTTPClient {
 		else
 			return new HTTPResponse(200, "", new Headers("Content-Type: " + head), Body.from(data));
 	}
-}
\ No newline at end of file
+
+	public static final class PoolStats {
+		// connections opened
+		public final long created;
+		// requests sent on a connection that was already used
+		public final long reused;
+		// idle connections closed because they expired or the server had closed them
+		public final long evicted;
+		public final int active;
+		public final int idle;
+
+		PoolStats(long created, long reused, long evicted, int active, int idle) {
+			this.created = created;
+			this.reused = reused;
+			this.evicted = evicted;
+			this.active = active;
+			this.idle = idle;
+		}
+
+		@NotNull
+		@Override
+		public String toString() {
+			return "PoolStats{created=" + created + ", reused=" + reused + ", evicted=" + evicted + ", active=" + active + ", idle=" + idle + "}";
+		}
+	}
+}
@@ -3,6 +3,7 @@ package com.nettleweb.http;
 import org.jetbrains.annotations.*;
 
 import java.io.*;
+import java.nio.charset.*;
 
 public final class HTTPResponse extends Body.Wrapper {
 	@Serial
@@ -13,6 +14,14 @@ public final class HTTPResponse extends Body.Wrapper {
 	public String message;
 	@NotNull
 	public final Headers headers;
+	// sent after the body, which makes the response use the chunked transfer coding, can be filled while the body is sent
+	@Nullable
+	public Headers trailers;
+
+	// serialized status line and headers of a frozen response, without the date and connection headers
+	@Nullable
+	transient byte[] head;
+	transient boolean keepAlive = true;
 
 	public HTTPResponse() {
 		this(200);
@@ -37,6 +46,30 @@ public final class HTTPResponse extends Body.Wrapper {
 		this.headers = headers == null ? new Headers() : headers;
 	}
 
+	// caches the serialized head so that the server can send this response without rebuilding it,
+	// a frozen response can be shared between requests and must not be modified afterwards
+	@NotNull
+	public HTTPResponse freeze() {
+		Body body = body();
+		long length = body == null ? 0L : body.length();
+		if (length < 0L || (body != null && body.bodyUsed()) || trailers != null)
+			throw new IllegalStateException("Only responses with a body of known length and no trailers can be frozen");
+
+		Headers headers = new Headers(this.headers);
+		headers.remove("date");
+		headers.remove("connection");
+		headers.remove("transfer-encoding");
+		headers.set("server", HTTPServer.serverName);
+		if (Util.bodyAllowed(status))
+			headers.set("content-length", Long.toString(length));
+		else
+			headers.remove("content-length");
+
+		this.keepAlive = Util.keepAlive(this.headers);
+		this.head = headers.toString(Util.statusLine(status, message)).toString().getBytes(StandardCharsets.UTF_8);
+		return this;
+	}
+
 	public boolean ok() {
 		return status >= 200 && status < 300;
 	}
@@ -4,16 +4,32 @@ import org.jetbrains.annotations.*;
 
 import javax.net.*;
 import java.io.*;
-import java.lang.reflect.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.nio.charset.*;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.zip.*;
 
 public class HTTPServer implements Runnable, Flushable, Closeable {
+	static final String serverName = "NettleWeb v0.1.0";
+
+	private static final int maxDiscardSize = 65536;
+	// responses up to this size, head included, are sent with a single write
+	static final int outputBufferSize = 16384;
+	private static final byte[] keepAliveEnd = "connection: keep-alive\r\n\r\n".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] closeEnd = "connection: close\r\n\r\n".getBytes(StandardCharsets.UTF_8);
+	// sent before a connection is closed because of a malformed request
+	static final byte[] badRequest = "HTTP/1.1 400 Bad Request\r\ncontent-length: 0\r\nconnection: close\r\n\r\n".getBytes(StandardCharsets.UTF_8);
+
 	private static final HTTPResponse msg500 = new HTTPResponse(500, "", new Headers(
 			"Connection: close",
 			"Content-Type: text/plain"
-	), Body.from("500 Internal Server Error"));
+	), Body.from("500 Internal Server Error")).freeze();
+	private static final HTTPResponse msg503 = new HTTPResponse(503, "", new Headers(
+			"Content-Type: text/plain"
+	), Body.from("503 Service Unavailable")).freeze();
 
 	@NotNull
 	public final String host;
@@ -22,6 +38,18 @@ public class HTTPServer implements Runnable, Flushable, Closeable {
 
 	private int socketTimeout = 10000;
 	private int maxHeaderSize = 65536;
+	private int maxRequests = 1000;
+	private int keepAliveTimeout = 5000;
+	private int selectorThreads = 0;
+	private int acceptorThreads = 1;
+	private boolean virtualThreads = false;
+	private int pipelineDepth = 16;
+	private boolean pipelineParallel = false;
+	private int chunkSize = Streams.ChunkedOutput.defaultChunkSize;
+	private boolean compression = false;
+	private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+	private int compressionMinSize = 1024;
+	private int handlerTimeout = 30000;
 
 	@NotNull
 	private Executor executor;
@@ -30,7 +58,13 @@ public class HTTPServer implements Runnable, Flushable, Closeable {
 	@NotNull
 	private HTTPHandler handler;
 	@Nullable
-	private ServerSocket socket;
+	private AsyncHTTPHandler asyncHandler;
+	@Nullable
+	private EventLoop[] loops;
+	@Nullable
+	private ServerSocket[] sockets;
+	@Nullable
+	private ServerSocketChannel[] channels;
 	@NotNull
 	private ServerSocketFactory factory;
 
@@ -70,10 +104,39 @@ public class HTTPServer implements Runnable, Flushable, Closeable {
 		this.handler = handler == null ? DefaultHandler.instance : handler;
 	}
 
+	// takes the place of the handler set with setHandler, or null to use that one again
+	public void setAsyncHandler(@Nullable AsyncHTTPHandler asyncHandler) {
+		this.asyncHandler = asyncHandler;
+	}
+
+	// time an asynchronous handler has for its response before it is cancelled and 503 is sent, or 0 for no limit
+	public void setHandlerTimeout(int handlerTimeout) {
+		this.handlerTimeout = handlerTimeout;
+	}
+
 	public void setExecutor(@Nullable Executor executor) {
 		this.executor = executor == null ? DefaultExecutor.instance : executor;
 	}
 
+	// run connections and handlers on virtual threads instead of the executor when the runtime supports them
+	public void setVirtualThreads(boolean virtualThreads) {
+		this.virtualThreads = virtualThreads;
+	}
+
+	public static boolean virtualThreadsSupported() {
+		return Threads.virtualExecutor() != null;
+	}
+
+	@NotNull
+	private Executor executor() {
+		if (virtualThreads) {
+			Executor executor = Threads.virtualExecutor();
+			if (executor != null)
+				return executor;
+		}
+		return executor;
+	}
+
 	public void setSocketFactory(@Nullable ServerSocketFactory factory) {
 		this.factory = factory == null ? ServerSocketFactory.getDefault() : factory;
 	}
@@ -86,95 +149,712 @@ public class HTTPServer implements Runnable, Flushable, Closeable {
 		this.maxHeaderSize = maxHeaderSize;
 	}
 
+	public void setMaxRequests(int maxRequests) {
+		this.maxRequests = maxRequests;
+	}
+
+	public void setKeepAliveTimeout(int keepAliveTimeout) {
+		this.keepAliveTimeout = keepAliveTimeout;
+	}
+
+	// number of threads accepting connections, each with its own listener where SO_REUSEPORT is available
+	public void setAcceptorThreads(int acceptorThreads) {
+		if (acceptorThreads < 1)
+			throw new IllegalArgumentException("Invalid acceptor thread count: " + acceptorThreads);
+
+		this.acceptorThreads = acceptorThreads;
+	}
+
+	// maximum number of pipelined requests read ahead and in flight on a single connection
+	public void setPipelineDepth(int pipelineDepth) {
+		this.pipelineDepth = pipelineDepth;
+	}
+
+	// handle pipelined requests concurrently on the executor, responses are still written in request order
+	public void setPipelineParallel(boolean pipelineParallel) {
+		this.pipelineParallel = pipelineParallel;
+	}
+
+	// use a non-blocking engine with the given number of selector threads, or blocking sockets if zero
+	public void setSelectorThreads(int selectorThreads) {
+		if (selectorThreads < 0)
+			throw new IllegalArgumentException("Invalid selector thread count: " + selectorThreads);
+
+		this.selectorThreads = selectorThreads;
+	}
+
+	// maximum size of the chunks of responses sent with the chunked transfer coding
+	public void setChunkSize(int chunkSize) {
+		if (chunkSize <= 0)
+			throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+
+		this.chunkSize = chunkSize;
+	}
+
+	// compress responses with a compressible content type when the client accepts gzip or deflate
+	public void setCompression(boolean compression) {
+		this.compression = compression;
+	}
+
+	public void setCompressionLevel(int compressionLevel) {
+		if (compressionLevel < Deflater.DEFAULT_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION)
+			throw new IllegalArgumentException("Invalid compression level: " + compressionLevel);
+
+		this.compressionLevel = compressionLevel;
+	}
+
+	// responses with a known length below this size are sent uncompressed
+	public void setCompressionMinSize(int compressionMinSize) {
+		this.compressionMinSize = compressionMinSize;
+	}
+
+	private void serve(@NotNull Socket socket) {
+		try {
+			socket.setKeepAlive(true);
+			socket.setTcpNoDelay(true);
+			socket.setSendBufferSize(65536);
+			socket.setReceiveBufferSize(8192);
+
+			if (socketTimeout > 0)
+				socket.setSoTimeout(socketTimeout);
+		} catch (Exception e) {
+			logger.error("Failed to setup TCP connection: ", e);
+			Streams.closeUnchecked(socket);
+			return;
+		}
+
+		try {
+			final InputStream stream = socket.getInputStream();
+			final OutputStream output = socket.getOutputStream();
+			final SocketChannel channel = socket.getChannel();
+
+			InputBuffer in = new InputBuffer(8192) {
+				@Override
+				protected int receive(@NotNull byte[] b, int off, int len) throws IOException {
+					return stream.read(b, off, len);
+				}
+
+				@Override
+				boolean closed() throws IOException {
+					int timeout = socket.getSoTimeout();
+					socket.setSoTimeout(1);
+
+					try {
+						return !fill();
+					} catch (SocketTimeoutException e) {
+						return false;
+					} finally {
+						socket.setSoTimeout(timeout);
+					}
+				}
+			};
+
+			OutputBuffer os = new OutputBuffer(outputBufferSize) {
+				@Override
+				protected void send(@NotNull byte[] b, int off, int len) throws IOException {
+					output.write(b, off, len);
+				}
+
+				@Override
+				void send(@NotNull ByteBuffer[] srcs) throws IOException {
+					if (channel == null) {
+						super.send(srcs);
+						return;
+					}
+
+					long remaining = 0L;
+					for (ByteBuffer src : srcs)
+						remaining += src.remaining();
+
+					while (remaining > 0L)
+						remaining -= channel.write(srcs);
+				}
+
+				@Override
+				boolean sendFile(@NotNull FileChannel file, long position, long count) throws IOException {
+					if (channel == null)
+						return false;
+
+					while (count > 0L) {
+						long n = file.transferTo(position, count, channel);
+						if (n <= 0L && position >= file.size())
+							throw new EOFException("Unexpected end of file");
+
+						position += n;
+						count -= n;
+					}
+					return true;
+				}
+			};
+
+			RequestParser parser = new RequestParser(maxHeaderSize);
+			int count = 0;
+
+			while (true) {
+				if (count > 0 && in.available() <= 0) {
+					// wait for the next request on an idle connection
+					try {
+						socket.setSoTimeout(keepAliveTimeout);
+						if (!in.fill())
+							break;
+					} catch (SocketTimeoutException e) {
+						break;
+					}
+
+					socket.setSoTimeout(Math.max(socketTimeout, 0));
+				}
+
+				HTTPRequest request = Util.readRequest(in, parser);
+				if (request == null)
+					break;
+
+				int n = pipeline(request, in, parser, os, count + 1);
+				if (n < 0)
+					break;
+
+				count += n;
+			}
+
+			in.pos = in.limit;
+			in.release();
+			os.release();
+		} catch (ProtocolError e) {
+			logger.warn("Invalid HTTP request: " + e.getMessage());
+
+			// responses to earlier requests have all been flushed by now
+			try {
+				socket.getOutputStream().write(badRequest);
+			} catch (IOException ex) {
+				// ignore
+			}
+		} catch (Exception e) {
+			logger.error("Error while handling HTTP request: ", e);
+		} finally {
+			Streams.closeUnchecked(socket);
+		}
+	}
+
+	private boolean keepAlive(@NotNull HTTPRequest request, int count) {
+		return keepAliveTimeout > 0 && (maxRequests <= 0 || count < maxRequests) && Util.keepAlive(request.headers);
+	}
+
+	// handles a single request and returns whether the connection can be reused
+	private boolean exchange(@NotNull HTTPRequest request, @NotNull InputBuffer in, @NotNull OutputBuffer os, int count) throws IOException {
+		HTTPResponse response = await(handleAsync(request), request.body() == null ? in : null);
+		return response != null && reply(request, response, os, count);
+	}
+
+	// writes the response to a request that was handled on its own, returns whether the connection can be reused
+	boolean reply(@NotNull HTTPRequest request, @NotNull HTTPResponse response, @NotNull OutputBuffer os, int count) throws IOException {
+		boolean keepAlive = respond(request, response, os, keepAlive(request, count));
+		os.flush();
+		return keepAlive && request.discard(maxDiscardSize);
+	}
+
+	// true if the request goes to an asynchronous handler and is not part of a pipelined batch,
+	// so its response can be written later by another thread
+	boolean deferrable(@NotNull HTTPRequest request, @NotNull InputBuffer in) {
+		return asyncHandler != null && (pipelineDepth <= 1 || request.body() != null || in.available() <= 0);
+	}
+
+	// serves a request together with the requests already pipelined behind it in the read buffer,
+	// returns the number of requests served, or -1 if the connection must be closed
+	int pipeline(@NotNull HTTPRequest request, @NotNull InputBuffer in, @NotNull RequestParser parser, @NotNull OutputBuffer os, int count) throws IOException {
+		if (pipelineDepth <= 1 || request.body() != null || in.available() <= 0)
+			return exchange(request, in, os, count) ? 1 : -1;
+
+		List<HTTPRequest> batch = new ArrayList<>();
+		batch.add(request);
+		boolean broken = false;
+
+		// the head of a request can only be read ahead once the body of the previous one has been consumed
+		while (batch.size() < pipelineDepth && request.body() == null && in.available() > 0) {
+			try {
+				in.pos = parser.parse(in.buffer, in.pos, in.limit);
+				if (!parser.done())
+					break;
+
+				batch.add(request = Util.newRequest(parser, in));
+			} catch (ProtocolError e) {
+				logger.warn("Invalid pipelined HTTP request: " + e.getMessage());
+				broken = true;
+				break;
+			}
+		}
+
+		final int size = batch.size();
+		List<FutureTask<HTTPResponse>> tasks = new ArrayList<>(size);
+
+		for (HTTPRequest r : batch)
+			tasks.add(new FutureTask<>(() -> await(handleAsync(r), null)));
+
+		if (pipelineParallel) {
+			Executor executor = executor();
+			for (int i = 1; i < size; i++) {
+				try {
+					executor.execute(tasks.get(i));
+				} catch (Exception e) {
+					// run on this thread below
+				}
+			}
+		}
+
+		try {
+			for (int i = 0; i < size; i++) {
+				FutureTask<HTTPResponse> task = tasks.get(i);
+				task.run(); // no-op if already started by the executor
+
+				HTTPResponse response;
+
+				try {
+					response = task.get();
+				} catch (Exception e) {
+					logger.error("HTTP handler returned error: ", e);
+					response = msg500;
+				}
+
+				request = batch.get(i);
+				boolean keepAlive = !(broken && i == size - 1) && keepAlive(request, count + i);
+				if (!respond(request, response, os, keepAlive) || !request.discard(maxDiscardSize))
+					return -1;
+
+				// responses are sent together unless the next one is still being produced
+				if (i == size - 1 || !tasks.get(i + 1).isDone())
+					os.flush();
+			}
+		} finally {
+			os.flush();
+			for (FutureTask<HTTPResponse> task : tasks)
+				task.cancel(false);
+		}
+
+		return size;
+	}
+
+	@NotNull
+	private HTTPResponse handle(@NotNull HTTPRequest request) {
+		try {
+			HTTPResponse response = handler.handleRequest(request);
+			if (response != null)
+				return response;
+
+			logger.warn("HTTP handler returned null response");
+		} catch (Exception e) {
+			logger.error("HTTP handler returned error: ", e);
+		}
+
+		return msg500;
+	}
+
+	// the response as a future that never fails, the server completes it itself when the handler times out,
+	// and cancelling it cancels the stage of the handler if that is a future
+	@NotNull
+	CompletableFuture<HTTPResponse> handleAsync(@NotNull HTTPRequest request) {
+		AsyncHTTPHandler handler = this.asyncHandler;
+		if (handler == null)
+			return CompletableFuture.completedFuture(handle(request));
+
+		CompletionStage<HTTPResponse> stage;
+
+		try {
+			stage = handler.handleRequest(request);
+		} catch (Exception e) {
+			logger.error("HTTP handler returned error: ", e);
+			return CompletableFuture.completedFuture(msg500);
+		}
+
+		if (stage == null) {
+			logger.warn("HTTP handler returned null response");
+			return CompletableFuture.completedFuture(msg500);
+		}
+
+		CompletableFuture<HTTPResponse> future = new CompletableFuture<HTTPResponse>() {
+			@Override
+			public boolean cancel(boolean interrupt) {
+				boolean cancelled = super.cancel(interrupt);
+				if (stage instanceof Future)
+					((Future<?>) stage).cancel(interrupt);
+
+				return cancelled;
+			}
+		};
+
+		stage.whenComplete((response, e) -> {
+			if (e != null) {
+				if (!(e instanceof CancellationException) && !(e.getCause() instanceof CancellationException))
+					logger.error("HTTP handler returned error: ", e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+			} else if (response == null) {
+				logger.warn("HTTP handler returned null response");
+			}
+
+			future.complete(e == null && response != null ? response : msg500);
+		});
+
+		return future;
+	}
+
+	// answers a request whose handler has run out of time
+	static void timeout(@NotNull CompletableFuture<HTTPResponse> future) {
+		if (future.complete(msg503))
+			future.cancel(true);
+	}
+
+	// waits for the response on the calling thread, which is what the blocking engine and pipelined batches do,
+	// the connection is checked for a close from the client if given, which cancels the handler and returns null
+	@Nullable
+	private HTTPResponse await(@NotNull CompletableFuture<HTTPResponse> future, @Nullable InputBuffer in) {
+		long deadline = handlerTimeout > 0 ? System.currentTimeMillis() + handlerTimeout : Long.MAX_VALUE;
+
+		try {
+			while (!future.isDone()) {
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0L) {
+					timeout(future);
+					break;
+				}
+
+				try {
+					return future.get(in == null ? wait : Math.min(wait, 250L), TimeUnit.MILLISECONDS);
+				} catch (TimeoutException e) {
+					// pipelined data is kept up to the header size limit, the check stops after that
+					if (in != null && in.available() < maxHeaderSize && in.closed()) {
+						future.cancel(true);
+						return null;
+					}
+				}
+			}
+
+			return future.get();
+		} catch (IOException e) {
+			future.cancel(true);
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			future.cancel(true);
+			return msg500;
+		} catch (Exception e) {
+			return msg500;
+		}
+	}
+
+	private boolean respond(@NotNull HTTPRequest request, @NotNull HTTPResponse response, @NotNull OutputBuffer os, boolean keepAlive) throws IOException {
+		if (response.head != null)
+			return respondFrozen(request, response, os, keepAlive);
+
+		final int status = response.status;
+		StringBuilder builder = Util.statusLine(status, response.message);
+
+		Body body = response.body();
+		Headers trailers = response.trailers;
+
+		boolean head = "HEAD".equals(request.method);
+		boolean allowed = Util.bodyAllowed(status);
+		boolean hasBody = body != null && allowed && !head;
+
+		// handlers may return the same response to every request and from several connections at once, so the
+		// headers of this exchange are set on a copy
+		Headers headers = new Headers(response.headers);
+		String coding = body != null && allowed ? contentCoding(request, headers, body) : null;
+		boolean chunked = hasBody && (trailers != null || coding != null || !headers.has("content-length"));
+
+		if (coding != null) {
+			// the length of the compressed body is not known in advance
+			headers.remove("content-length");
+			headers.set("content-encoding", coding);
+
+			String etag = headers.get("etag");
+			if (etag != null && etag.startsWith("\""))
+				headers.set("etag", "W/" + etag);
+		}
+
+		if (chunked && trailers == null && coding == null) {
+			long length = body.length();
+			if (length >= 0L) {
+				headers.set("content-length", Long.toString(length));
+				chunked = false;
+			}
+		}
+
+		if (keepAlive)
+			keepAlive = Util.keepAlive(headers);
+
+		headers.set("date", DateFormatter.utc());
+		headers.set("server", serverName);
+		headers.set("connection", keepAlive ? "keep-alive" : "close");
+		if (chunked) {
+			headers.set("transfer-encoding", "chunked");
+			headers.remove("content-length");
+
+			if (trailers != null && trailers.size() > 0 && !headers.has("trailer"))
+				headers.set("trailer", String.join(", ", trailers.keys()));
+		} else if (allowed && !head && body == null && !headers.has("content-length"))
+			headers.set("content-length", "0");
+
+		headers.toString(builder).append("\r\n");
+		byte[] data = builder.toString().getBytes(StandardCharsets.UTF_8);
+		os.write(data, 0, data.length);
+
+		if (hasBody) {
+			if (chunked) {
+				Streams.ChunkedOutput out = new Streams.ChunkedOutput(os, chunkSize);
+				if (coding != null)
+					compress(body, out, coding);
+				else
+					body.writeTo(out);
+
+				// the only flush of the response, unless the body stalled on the way
+				out.finish(trailers);
+			} else if (!body.transfer(os)) {
+				body.writeTo(os);
+			}
+		}
+
+		return keepAlive;
+	}
+
+	// picks the content coding for a compressible response, or null to send the body as is
+	@Nullable
+	private String contentCoding(@NotNull HTTPRequest request, @NotNull Headers headers, @NotNull Body body) {
+		if (!compression || headers.has("content-encoding") || headers.has("content-range"))
+			return null;
+
+		long length = body.length();
+		if (length >= 0L && length < compressionMinSize)
+			return null;
+		if (!Util.compressible(headers.get("content-type")))
+			return null;
+
+		// the representation depends on the request from here on, even if it is sent uncompressed
+		String vary = headers.get("vary");
+		if (vary == null || vary.isEmpty())
+			headers.set("vary", "accept-encoding");
+		else if (!vary.equals("*") && !Util.hasToken(vary, "accept-encoding"))
+			headers.set("vary", vary + ", accept-encoding");
+
+		return Util.acceptedCoding(request.headers.get("accept-encoding"));
+	}
+
+	private void compress(@NotNull Body body, @NotNull OutputStream out, @NotNull String coding) throws IOException {
+		final int level = compressionLevel;
+		final boolean gzip = coding.equals("gzip");
+		Deflater deflater = ZlibPool.deflater(level, gzip);
+
+		try {
+			Streams.DeflateOutput stream = new Streams.DeflateOutput(out, deflater, gzip);
+			// without flushing, which would end a deflate block every time the source has nothing buffered
+			try (InputStream in = body.stream()) {
+				Streams.pipe(in, stream, false);
+			}
+			stream.finish();
+		} finally {
+			ZlibPool.release(deflater, level, gzip);
+		}
+	}
+
+	// writes the cached head of a frozen response, only the date and connection headers are added per request
+	private static boolean respondFrozen(@NotNull HTTPRequest request, @NotNull HTTPResponse response, @NotNull OutputBuffer os, boolean keepAlive) throws IOException {
+		Body body = response.body();
+		boolean hasBody = body != null && Util.bodyAllowed(response.status) && !"HEAD".equals(request.method);
+		ByteBuffer[] buffers = hasBody ? body.buffers() : null;
+
+		keepAlive = keepAlive && response.keepAlive;
+
+		int count = buffers == null ? 3 : buffers.length + 3;
+		ByteBuffer[] parts = new ByteBuffer[count];
+		parts[0] = ByteBuffer.wrap(response.head);
+		parts[1] = ByteBuffer.wrap(DateFormatter.utcHeader());
+		parts[2] = ByteBuffer.wrap(keepAlive ? keepAliveEnd : closeEnd);
+		if (buffers != null)
+			System.arraycopy(buffers, 0, parts, 3, buffers.length);
+
+		os.write(parts);
+
+		if (hasBody && buffers == null && !body.transfer(os))
+			body.writeTo(os);
+
+		return keepAlive;
+	}
+
 	@Override
 	public void run() {
-		ServerSocket server = this.socket;
-		if (server == null || !server.isBound())
+		ServerSocket[] sockets = this.sockets;
+		if (sockets == null || !sockets[0].isBound())
 			throw new IllegalStateException("Invalid server socket state.");
 
+		accept(sockets[0]);
+	}
+
+	private void accept(@NotNull ServerSocket server) {
 		while (!server.isClosed()) {
+			Socket socket;
+
 			try {
-				Method m = Thread.class.getDeclaredMethod("sleep", long.class);
-				m.setAccessible(true);
-				m.invoke(null, 30L);
+				socket = server.accept();
 			} catch (Exception e) {
-				break;
+				if (server.isClosed())
+					break;
+
+				logger.error("Failed to accept TCP connection: ", e);
+
+				try {
+					// back off briefly so that errors such as file descriptor exhaustion do not spin
+					Thread.sleep(10L);
+				} catch (InterruptedException ex) {
+					break;
+				}
+				continue;
 			}
 
 			try {
-				Socket socket = server.accept();
-				socket.setKeepAlive(false);
-				socket.setTcpNoDelay(true);
-				socket.setReuseAddress(true);
-				socket.setSendBufferSize(65536);
-				socket.setReceiveBufferSize(8192);
-
-				if (socketTimeout > 0)
-					socket.setSoTimeout(socketTimeout);
-
-				executor.execute(() -> {
-					try (InputStream is = socket.getInputStream(); OutputStream os = socket.getOutputStream()) {
-						byte[] data = Streams.readUntil(is, Util.headerEndMark, maxHeaderSize);
-						HTTPRequest request = Util.parseRawRequest(new String(data, StandardCharsets.UTF_8), is);
-						HTTPResponse response = msg500;
-
-						try {
-							response = handler.handleRequest(request);
-							if (response == null) {
-								response = msg500;
-								logger.warn("HTTP handler returned null response");
-							}
-						} catch (Exception e) {
-							logger.error("HTTP handler returned error: ", e);
-						}
-
-						socket.shutdownInput();
-						StringBuilder builder = new StringBuilder("HTTP/1.1 ").append(response.status);
-
-						{
-							String msg = response.message;
-							if (!msg.isEmpty())
-								builder.append(' ').append(msg);
-						}
-
-						Body body = response.body();
-						Headers headers = response.headers;
-						boolean hasBody = body != null && !"HEAD".equals(request.method);
-						boolean chunked = hasBody && !headers.has("content-length");
-
-						headers.set("date", DateFormatter.utc());
-						headers.set("server", "NettleWeb v0.1.0");
-						if (chunked)
-							headers.set("transfer-encoding", "chunked");
-
-						headers.toString(builder.append("\r\n")).append("\r\n");
-						data = builder.toString().getBytes(StandardCharsets.UTF_8);
-						os.write(data, 0, data.length);
-						os.flush();
-
-						if (hasBody)
-							body.pipeTo(chunked ? new Streams.ChunkedOutput(os) : os, true);
-					} catch (Exception e) {
-						logger.error("Error while handling HTTP request: ", e);
-					}
-				});
+				Executor executor = executor();
+				if (executor == DefaultExecutor.instance) {
+					// the default executor runs tasks inline, so a kept-alive connection would hold the acceptor
+					// for as long as it stays open
+					Thread thread = new Thread(() -> serve(socket), "http-connection");
+					thread.setDaemon(true);
+					thread.start();
+				} else {
+					executor.execute(() -> serve(socket));
+				}
 			} catch (Exception e) {
-				logger.error("Failed to setup TCP connection: ", e);
+				logger.error("Failed to dispatch TCP connection: ", e);
+				Streams.closeUnchecked(socket);
 			}
 		}
 	}
 
-	public void start() {
+	@NotNull
+	private ServerSocket bind(boolean reusePort) throws IOException {
+		// sockets accepted from a channel can send files with FileChannel.transferTo
+		if (factory == ServerSocketFactory.getDefault())
+			return bindChannel(reusePort).socket();
+
+		ServerSocket socket = factory.createServerSocket();
+
 		try {
-			ServerSocket socket = factory.createServerSocket();
 			socket.setReuseAddress(true);
 			socket.setReceiveBufferSize(8192);
-			(this.socket = socket).bind(new InetSocketAddress(host, port), backlog);
+			if (reusePort && !Util.setReusePort(socket))
+				throw new IOException("SO_REUSEPORT is not supported");
+
+			socket.bind(new InetSocketAddress(host, port), backlog);
+			return socket;
+		} catch (Exception e) {
+			Streams.closeUnchecked(socket);
+			throw e;
+		}
+	}
+
+	@NotNull
+	private ServerSocketChannel bindChannel(boolean reusePort) throws IOException {
+		ServerSocketChannel channel = ServerSocketChannel.open();
+
+		try {
+			channel.socket().setReuseAddress(true);
+			channel.socket().setReceiveBufferSize(8192);
+			if (reusePort && !Util.setReusePort(channel))
+				throw new IOException("SO_REUSEPORT is not supported");
+
+			channel.bind(new InetSocketAddress(host, port), backlog);
+			return channel;
+		} catch (Exception e) {
+			Streams.closeUnchecked(channel);
+			throw e;
+		}
+	}
+
+	public void start() {
+		if (virtualThreads && !virtualThreadsSupported())
+			logger.warn("Virtual threads are not supported by this runtime, using the configured executor");
+
+		if (selectorThreads > 0) {
+			startSelectors();
+			return;
+		}
+
+		final int count = acceptorThreads;
+		ServerSocket[] sockets = new ServerSocket[1];
+
+		try {
+			// with SO_REUSEPORT every acceptor gets its own listener and the kernel balances connections between them
+			if (count > 1 && port != 0 && Util.reusePortSupported()) {
+				try {
+					sockets = new ServerSocket[count];
+					for (int i = 0; i < count; i++)
+						sockets[i] = bind(true);
+				} catch (Exception e) {
+					for (ServerSocket socket : sockets)
+						Streams.closeUnchecked(socket);
+
+					logger.warn("Failed to enable SO_REUSEPORT, falling back to a shared listener: " + e.getMessage());
+					sockets = new ServerSocket[1];
+				}
+			}
+
+			if (sockets[0] == null)
+				sockets[0] = bind(false);
 		} catch (Exception e) {
 			throw new ServerError("Failed to start HTTP server: ", e);
 		}
 
-		executor.execute(this);
+		this.sockets = sockets;
+		for (int i = 0; i < count; i++) {
+			ServerSocket socket = sockets[i % sockets.length];
+			Thread thread = new Thread(() -> accept(socket), "http-acceptor-" + i);
+			thread.setDaemon(false);
+			thread.start();
+		}
+	}
+
+	private void startSelectors() {
+		final int count = selectorThreads;
+		final int acceptors = Math.max(Math.min(acceptorThreads, count), 1);
+
+		EventLoop[] loops = new EventLoop[count];
+		ServerSocketChannel[] channels = new ServerSocketChannel[1];
+
+		try {
+			if (acceptors > 1 && port != 0 && Util.reusePortSupported()) {
+				try {
+					channels = new ServerSocketChannel[acceptors];
+					for (int i = 0; i < acceptors; i++)
+						channels[i] = bindChannel(true);
+				} catch (Exception e) {
+					for (ServerSocketChannel channel : channels)
+						Streams.closeUnchecked(channel);
+
+					logger.warn("Failed to enable SO_REUSEPORT, falling back to a shared listener: " + e.getMessage());
+					channels = new ServerSocketChannel[1];
+				}
+			}
+
+			if (channels[0] == null)
+				channels[0] = bindChannel(false);
+
+			this.channels = channels;
+
+			for (int i = 0; i < count; i++)
+				loops[i] = new EventLoop(this, executor(), logger, loops, maxHeaderSize, socketTimeout, keepAliveTimeout, handlerTimeout);
+
+			for (int i = 0; i < channels.length; i++)
+				loops[i].listen(channels[i]);
+		} catch (Exception e) {
+			for (ServerSocketChannel channel : channels)
+				Streams.closeUnchecked(channel);
+
+			for (EventLoop loop : loops) {
+				if (loop != null)
+					loop.close();
+			}
+			throw new ServerError("Failed to start HTTP server: ", e);
+		}
+
+		this.loops = loops;
+		for (int i = 0; i < count; i++) {
+			Thread thread = new Thread(loops[i], "http-selector-" + i);
+			thread.setDaemon(false);
+			thread.start();
+		}
 	}
 
 	@Override
@@ -183,12 +863,19 @@ public class HTTPServer implements Runnable, Flushable, Closeable {
 
 	@Override
 	public void close() {
-		if (socket != null) {
-			try {
-				socket.close();
-			} catch (Exception e) {
-				// ignore
-			}
+		if (sockets != null) {
+			for (ServerSocket socket : sockets)
+				Streams.closeUnchecked(socket);
+		}
+
+		if (channels != null) {
+			for (ServerSocketChannel channel : channels)
+				Streams.closeUnchecked(channel);
+		}
+
+		if (loops != null) {
+			for (EventLoop loop : loops)
+				loop.close();
 		}
 	}
 }
\ No newline at end of file
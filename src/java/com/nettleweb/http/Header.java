@@ -18,8 +18,13 @@ public final class Header extends Cloneable implements Map.Entry<String, String>
 	}
 
 	public Header(@NotNull String k, @NotNull String v) {
-		this.k = k.trim().toLowerCase(Locale.ROOT);
-		this.v = v.trim();
+		this(k, v, false);
+	}
+
+	// normalized skips trimming and lower casing for names and values that already are
+	Header(@NotNull String k, @NotNull String v, boolean normalized) {
+		this.k = normalized ? k : k.trim().toLowerCase(Locale.ROOT);
+		this.v = normalized ? v : v.trim();
 	}
 
 	@NotNull
@@ -5,211 +5,450 @@ import org.jetbrains.annotations.*;
 import java.io.*;
 import java.util.*;
 
+// insertion-ordered multimap of header fields with case-insensitive names, entries are indexed
+// by the hash of their lower case name once there are more than a few of them
 public final class Headers extends Cloneable implements Serializable {
+	// changed with the serialized form, which is now the entries array and its size
 	@Serial
-	private static final long serialVersionUID = 2716091711085762002L;
-
-	@NotNull
-	private Header[] headers;
-
-	private static Header[] merge(Header[] one, Header[] two) {
-		int len1 = one.length;
-		int len2 = two.length;
-
-		Header[] merged = new Header[len1 + len2];
-		System.arraycopy(one, 0, merged, 0, len1);
-		System.arraycopy(two, 0, merged, len1, len2);
-
-		return merged;
-	}
-
-	private static String[] append(String[] base, String value) {
-		int length = base.length;
-		String[] n = new String[length + 1];
-		System.arraycopy(base, 0, n, 0, length);
-		n[length] = value;
-		return n;
-	}
-
-	private static Header[] append(Header[] base, Header value) {
-		int length = base.length;
-		Header[] n = new Header[length + 1];
-		System.arraycopy(base, 0, n, 0, length);
-		n[length] = value;
-		return n;
+	private static final long serialVersionUID = 2491964749495535466L;
+
+	// headers with at most this many entries are searched linearly by name hash
+	private static final int indexThreshold = 8;
+
+	private static final String[] commonNames = {
+			"accept", "accept-charset", "accept-encoding", "accept-language", "accept-ranges",
+			"access-control-allow-origin", "age", "allow", "authorization", "cache-control",
+			"connection", "content-disposition", "content-encoding", "content-language", "content-length",
+			"content-location", "content-range", "content-security-policy", "content-type", "cookie",
+			"date", "etag", "expect", "expires", "forwarded", "host", "if-match", "if-modified-since",
+			"if-none-match", "if-range", "if-unmodified-since", "keep-alive", "last-modified", "link",
+			"location", "origin", "pragma", "range", "referer", "retry-after", "sec-fetch-dest",
+			"sec-fetch-mode", "sec-fetch-site", "server", "set-cookie", "strict-transport-security",
+			"te", "trailer", "transfer-encoding", "upgrade", "upgrade-insecure-requests", "user-agent",
+			"vary", "via", "www-authenticate", "x-content-type-options", "x-forwarded-for",
+			"x-forwarded-host", "x-forwarded-proto", "x-requested-with"
+	};
+
+	// open addressing table of the common names by String.hashCode
+	private static final String[] internTable = new String[256];
+
+	static {
+		for (String name : commonNames) {
+			int i = name.hashCode() & 255;
+			while (internTable[i] != null)
+				i = (i + 1) & 255;
+
+			internTable[i] = name;
+		}
 	}
 
-	private static Header[] remove(Header[] base, int i) {
-		int length = base.length;
-		Header[] n = new Header[length - 1];
-		System.arraycopy(base, 0, n, 0, i);
+	@NotNull
+	private Header[] entries;
+	private int size = 0;
 
-		if (i != length)
-			System.arraycopy(base, i + 1, n, i, length - i - 1);
+	// hashes[i] is the hash of the name of entries[i], table and next chain entries by hash when indexed
+	private transient int[] hashes;
+	private transient int[] table;
+	private transient int[] next;
 
-		return n;
-	}
+	public Headers(@NotNull Headers headers) {
+		int size = headers.size;
+		this.entries = new Header[Math.max(size, 4)];
+		this.hashes = new int[entries.length];
 
-	private static Header[] deepClone(Header[] headers) {
-		Header[] entries = headers.clone();
-		for (int i = 0; i < entries.length; i++)
-			entries[i] = new Header(headers[i]);
+		for (int i = 0; i < size; i++)
+			entries[i] = new Header(headers.entries[i]);
 
-		return entries;
-	}
-
-	public Headers(@NotNull Headers headers) {
-		this.headers = deepClone(headers.headers);
+		System.arraycopy(headers.hashes, 0, hashes, 0, size);
+		this.size = size;
+		reindex();
 	}
 
 	public Headers(@NotNull Map<String, ?> headers) {
-		List<Header> entries = new ArrayList<>(headers.size());
+		this(headers.size());
 
 		for (Map.Entry<String, ?> e : headers.entrySet()) {
-			String k = e.getKey().toLowerCase(Locale.ROOT);
+			String k = e.getKey();
 			Object v = e.getValue();
 
 			if (v instanceof String) {
-				entries.add(new Header(k, (String) v));
+				add(k, (String) v);
 				continue;
 			}
 
 			if (v instanceof String[]) {
 				for (String item : (String[]) v)
-					entries.add(new Header(k, item));
+					add(k, item);
 
 				continue;
 			}
 
 			if (v instanceof Collection) {
 				for (Object item : (Collection<?>) v)
-					entries.add(new Header(k, item.toString()));
+					add(k, item.toString());
 
 				continue;
 			}
 
-			entries.add(new Header(k, v.toString()));
+			add(k, v.toString());
 		}
-
-		this.headers = entries.toArray(new Header[0]);
 	}
 
 	public Headers(@NotNull String... headers) {
-		int length = headers.length;
-		Header[] entries = new Header[length];
+		this(headers.length);
 
-		for (int i = 0; i < length; i++) {
-			String e = headers[i].replace('=', ':');
+		for (String e : headers) {
+			e = e.replace('=', ':');
 
 			int p = e.indexOf(':', 1);
 			if (p <= 0)
 				throw new IllegalArgumentException("Invalid header entry: " + e);
 
-			entries[i] = new Header(e.substring(0, p), e.substring(p + 1));
+			add(e.substring(0, p), e.substring(p + 1));
 		}
-
-		this.headers = entries;
 	}
 
 	public Headers(@NotNull Iterable<String> headers) {
-		List<Header> entries = new ArrayList<>();
+		this(8);
+
 		for (String e : headers) {
 			int i = (e = e.replace('=', ':')).indexOf(':', 1);
 			if (i <= 0)
 				throw new IllegalArgumentException("Invalid header entry: " + e);
 
-			entries.add(new Header(e.substring(0, i), e.substring(i + 1)));
+			add(e.substring(0, i), e.substring(i + 1));
 		}
+	}
 
-		this.headers = entries.toArray(new Header[0]);
+	private Headers(int capacity) {
+		capacity = Math.max(capacity, 4);
+		this.entries = new Header[capacity];
+		this.hashes = new int[capacity];
 	}
 
-	public boolean has(@Nullable String k) {
-		if (k != null) {
-			k = k.trim().toLowerCase(Locale.ROOT);
-			for (Header e : headers) {
-				if (e.getKey().equals(k))
-					return true;
+	// the interned common name with the given hash that equals buf[start, end) ignoring case, or null
+	@Nullable
+	static String commonName(@NotNull byte[] buf, int start, int end) {
+		int h = 0;
+		for (int i = start; i < end; i++) {
+			int c = buf[i];
+			h = 31 * h + (c >= 'A' && c <= 'Z' ? c + 32 : c);
+		}
+
+		int len = end - start;
+
+		for (int i = h & 255; ; i = (i + 1) & 255) {
+			String name = internTable[i];
+			if (name == null)
+				return null;
+
+			if (name.hashCode() != h || name.length() != len)
+				continue;
+
+			int j = 0;
+			while (j < len) {
+				int c = buf[start + j];
+				if ((c >= 'A' && c <= 'Z' ? c + 32 : c) != name.charAt(j))
+					break;
+
+				j++;
+			}
+
+			if (j == len)
+				return name;
+		}
+	}
+
+	@Nullable
+	private static String commonName(@NotNull String name, int hash) {
+		for (int i = hash & 255; ; i = (i + 1) & 255) {
+			String n = internTable[i];
+			if (n == null || n == name)
+				return n;
+
+			if (n.hashCode() == hash && matches(n, name))
+				return n;
+		}
+	}
+
+	// hash of the trimmed lower case form of the name, equal to its String.hashCode
+	private static int hash(@NotNull String k) {
+		int h = k.hashCode();
+		if (internTable[h & 255] == k)
+			return h;
+
+		int start = 0;
+		int end = k.length();
+		while (start < end && k.charAt(start) <= ' ')
+			start++;
+		while (end > start && k.charAt(end - 1) <= ' ')
+			end--;
+
+		h = 0;
+		for (int i = start; i < end; i++) {
+			char c = k.charAt(i);
+			h = 31 * h + (c >= 'A' && c <= 'Z' ? c + 32 : Character.toLowerCase(c));
+		}
+		return h;
+	}
+
+	// compares a stored lower case name with a name as given by the caller
+	private static boolean matches(@NotNull String name, @NotNull String k) {
+		if (name == k)
+			return true;
+
+		int start = 0;
+		int end = k.length();
+		while (start < end && k.charAt(start) <= ' ')
+			start++;
+		while (end > start && k.charAt(end - 1) <= ' ')
+			end--;
+
+		int len = end - start;
+		if (len != name.length())
+			return false;
+
+		for (int i = 0; i < len; i++) {
+			char c = k.charAt(start + i);
+			if ((c >= 'A' && c <= 'Z' ? c + 32 : Character.toLowerCase(c)) != name.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	// the first entry with the given name
+	private int find(@NotNull String k, int hash) {
+		int[] table = this.table;
+		if (table != null) {
+			for (int i = table[hash & (table.length - 1)] - 1; i >= 0; i = next[i] - 1) {
+				if (hashes[i] == hash && matches(entries[i].getKey(), k))
+					return i;
 			}
+			return -1;
+		}
+
+		for (int i = 0; i < size; i++) {
+			if (hashes[i] == hash && matches(entries[i].getKey(), k))
+				return i;
+		}
+		return -1;
+	}
+
+	private int findNext(@NotNull String k, int hash, int i) {
+		if (table != null) {
+			for (i = next[i] - 1; i >= 0; i = next[i] - 1) {
+				if (hashes[i] == hash && matches(entries[i].getKey(), k))
+					return i;
+			}
+			return -1;
+		}
+
+		for (i++; i < size; i++) {
+			if (hashes[i] == hash && matches(entries[i].getKey(), k))
+				return i;
+		}
+		return -1;
+	}
+
+	private void link(int i) {
+		int[] table = this.table;
+		int b = hashes[i] & (table.length - 1);
+		next[i] = 0;
+
+		int j = table[b] - 1;
+		if (j < 0) {
+			table[b] = i + 1;
+			return;
+		}
+
+		while (next[j] != 0)
+			j = next[j] - 1;
+
+		next[j] = i + 1;
+	}
+
+	private void reindex() {
+		if (size <= indexThreshold) {
+			table = null;
+			next = null;
+			return;
 		}
-		return false;
+
+		int n = Integer.highestOneBit(entries.length * 2 - 1) << 1;
+		table = new int[n];
+		next = new int[entries.length];
+
+		for (int i = 0; i < size; i++)
+			link(i);
+	}
+
+	// appends an entry whose name is already trimmed and in lower case
+	void append(@NotNull String name, @NotNull String value) {
+		append(new Header(name, value, true), name.hashCode());
+	}
+
+	private void append(@NotNull Header header, int hash) {
+		int i = size;
+		if (i == entries.length) {
+			int capacity = i * 2;
+			entries = Arrays.copyOf(entries, capacity);
+			hashes = Arrays.copyOf(hashes, capacity);
+			if (next != null)
+				next = Arrays.copyOf(next, capacity);
+		}
+
+		entries[i] = header;
+		hashes[i] = hash;
+		size = i + 1;
+
+		if (table != null && table.length >= size * 2)
+			link(i);
+		else if (size > indexThreshold)
+			reindex();
+	}
+
+	@NotNull
+	private Header newHeader(@NotNull String k, @NotNull String v, int hash) {
+		String name = commonName(k, hash);
+		if (name == null)
+			name = k.trim().toLowerCase(Locale.ROOT);
+
+		return new Header(name, v.trim(), true);
+	}
+
+	public boolean has(@Nullable String k) {
+		return k != null && find(k, hash(k)) >= 0;
 	}
 
 	@Nullable
 	public String get(@Nullable String k) {
 		if (k != null) {
-			k = k.trim().toLowerCase(Locale.ROOT);
-			for (Header e : headers)
-				if (e.getKey().equals(k))
-					return e.getValue();
+			int i = find(k, hash(k));
+			if (i >= 0)
+				return entries[i].getValue();
 		}
 		return null;
 	}
 
 	public void add(@NotNull String k, @NotNull String v) {
-		headers = append(headers, new Header(k, v));
+		int hash = hash(k);
+		append(newHeader(k, v, hash), hash);
 	}
 
+	// replaces the first entry with the name in place and removes the others
 	public Header[] set(@NotNull String k, @NotNull String v) {
-		Header[] removed = remove(k);
-		headers = append(headers, new Header(k, v));
-		return removed;
+		int hash = hash(k);
+		int i = find(k, hash);
+		if (i < 0) {
+			append(newHeader(k, v, hash), hash);
+			return new Header[0];
+		}
+
+		Header old = entries[i];
+		entries[i] = new Header(old.getKey(), v.trim(), true);
+
+		if (findNext(k, hash, i) < 0)
+			return new Header[]{old};
+
+		List<Header> removed = new ArrayList<>(2);
+		removed.add(old);
+		int j = i + 1;
+
+		for (int n = j; n < size; n++) {
+			Header e = entries[n];
+			if (hashes[n] == hash && matches(e.getKey(), k)) {
+				removed.add(e);
+			} else {
+				entries[j] = e;
+				hashes[j++] = hashes[n];
+			}
+		}
+
+		Arrays.fill(entries, j, size, null);
+		size = j;
+		reindex();
+
+		return removed.toArray(new Header[0]);
 	}
 
 	public int size() {
-		return headers.length;
+		return size;
 	}
 
 	public void sort() {
-		Arrays.sort(headers);
+		Header[] sorted = Arrays.copyOf(entries, size);
+		Arrays.sort(sorted);
+
+		for (int i = 0; i < size; i++) {
+			entries[i] = sorted[i];
+			hashes[i] = sorted[i].getKey().hashCode();
+		}
+		reindex();
 	}
 
 	public void clear() {
-		headers = new Header[0];
+		Arrays.fill(entries, 0, size, null);
+		size = 0;
+		table = null;
+		next = null;
 	}
 
 	@NotNull
 	public String[] getAll(@Nullable String k) {
-		String[] result = new String[0];
-		if (k != null) {
-			k = k.trim().toLowerCase(Locale.ROOT);
+		if (k == null)
+			return new String[0];
 
-			for (Header e : headers) {
-				if (e.getKey().equals(k))
-					result = append(result, e.getValue());
-			}
-		}
-		return result;
+		int hash = hash(k);
+		int i = find(k, hash);
+		if (i < 0)
+			return new String[0];
+
+		List<String> result = new ArrayList<>(2);
+		for (; i >= 0; i = findNext(k, hash, i))
+			result.add(entries[i].getValue());
+
+		return result.toArray(new String[0]);
 	}
 
 	public void addAll(@NotNull Headers h) {
-		headers = merge(headers, h.headers);
+		int size = h.size;
+		for (int i = 0; i < size; i++)
+			append(new Header(h.entries[i]), h.hashes[i]);
 	}
 
 	public Header[] remove(@Nullable String k) {
-		Header[] removed = new Header[0];
-		if (k != null) {
-			k = k.trim().toLowerCase(Locale.ROOT);
-			Header[] entries = headers;
-
-			for (int i = 0; i < entries.length; i++) {
-				Header e = entries[i];
-				if (e.getKey().equals(k)) {
-					headers = entries = remove(entries, i);
-					removed = append(removed, e);
-				}
+		if (k == null)
+			return new Header[0];
+
+		int hash = hash(k);
+		int i = find(k, hash);
+		if (i < 0)
+			return new Header[0];
+
+		List<Header> removed = new ArrayList<>(1);
+		int j = i;
+
+		for (; i < size; i++) {
+			Header e = entries[i];
+			if (hashes[i] == hash && matches(e.getKey(), k)) {
+				removed.add(e);
+			} else {
+				entries[j] = e;
+				hashes[j++] = hashes[i];
 			}
 		}
-		return removed;
+
+		Arrays.fill(entries, j, size, null);
+		size = j;
+		reindex();
+
+		return removed.toArray(new Header[0]);
 	}
 
 	@NotNull
 	public String[] keys() {
-		Header[] entries = headers;
-		int length = entries.length;
-
-		String[] keys = new String[length];
-		for (int i = 0; i < length; i++)
+		String[] keys = new String[size];
+		for (int i = 0; i < size; i++)
 			keys[i] = entries[i].getKey();
 
 		return keys;
@@ -217,11 +456,8 @@ public final class Headers extends Cloneable implements Serializable {
 
 	@NotNull
 	public String[] values() {
-		Header[] entries = headers;
-		int length = entries.length;
-
-		String[] values = new String[length];
-		for (int i = 0; i < length; i++)
+		String[] values = new String[size];
+		for (int i = 0; i < size; i++)
 			values[i] = entries[i].getValue();
 
 		return values;
@@ -229,18 +465,28 @@ public final class Headers extends Cloneable implements Serializable {
 
 	@NotNull
 	public Header[] entries() {
-		return headers.clone();
+		return Arrays.copyOf(entries, size);
 	}
 
 	@Override
 	public Headers clone() {
-		return (Headers) super.clone();
+		return new Headers(this);
 	}
 
-	StringBuilder toString(StringBuilder builder) {
-		sort();
+	@Serial
+	private void readObject(@NotNull ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+
+		hashes = new int[entries.length];
+		for (int i = 0; i < size; i++)
+			hashes[i] = entries[i].getKey().hashCode();
 
-		for (Header header : headers) {
+		reindex();
+	}
+
+	StringBuilder toString(StringBuilder builder) {
+		for (int i = 0; i < size; i++) {
+			Header header = entries[i];
 			builder.append(header.getKey())
 					.append(": ")
 					.append(header.getValue())
@@ -253,4 +499,4 @@ public final class Headers extends Cloneable implements Serializable {
 	public String toString() {
 		return toString(new StringBuilder()).toString();
 	}
-}
\ No newline at end of file
+}
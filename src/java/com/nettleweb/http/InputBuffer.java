@@ -0,0 +1,104 @@
+package com.nettleweb.http;
+
+import org.jetbrains.annotations.*;
+
+import java.io.*;
+
+// connection-owned read buffer shared by the request parser and the request body streams
+abstract class InputBuffer extends Streams.CompatStream {
+	private final int size;
+
+	@Nullable
+	byte[] buffer;
+	int pos = 0;
+	int limit = 0;
+
+	InputBuffer(int size) {
+		this.size = size;
+	}
+
+	// reads directly from the underlying transport, blocking until data is available
+	protected abstract int receive(@NotNull byte[] b, int off, int len) throws IOException;
+
+	// returns the buffer with free space after limit, compacting or growing it as needed
+	@NotNull
+	final byte[] prepare() {
+		byte[] buf = buffer;
+		if (buf == null)
+			return buffer = BufferPool.acquire(size);
+
+		if (pos >= limit) {
+			pos = limit = 0;
+		} else if (limit == buf.length) {
+			if (pos > 0) {
+				System.arraycopy(buf, pos, buf, 0, limit -= pos);
+				pos = 0;
+			} else {
+				byte[] n = BufferPool.acquire(buf.length * 2);
+				System.arraycopy(buf, 0, n, 0, limit);
+				BufferPool.release(buf);
+				buffer = buf = n;
+			}
+		}
+
+		return buf;
+	}
+
+	// reads more data into the buffer, returns false at the end of stream
+	final boolean fill() throws IOException {
+		byte[] buf = prepare();
+		int n = receive(buf, limit, buf.length - limit);
+		if (n < 0)
+			return false;
+
+		limit += n;
+		return true;
+	}
+
+	// true if the peer has closed the connection, checked without blocking where the transport allows it,
+	// data that arrives meanwhile is kept in the buffer
+	boolean closed() throws IOException {
+		return false;
+	}
+
+	// returns the buffer of an idle connection to the pool
+	final void release() {
+		if (pos >= limit) {
+			BufferPool.release(buffer);
+			buffer = null;
+			pos = limit = 0;
+		}
+	}
+
+	@Override
+	public int available() {
+		return limit - pos;
+	}
+
+	@Override
+	public int read(@NotNull byte[] b, int off, int len) throws IOException {
+		if (len <= 0)
+			return 0;
+
+		if (pos >= limit) {
+			// large reads bypass the buffer
+			if (len >= size)
+				return receive(b, off, len);
+
+			do {
+				if (!fill())
+					return -1;
+			} while (pos >= limit);
+		}
+
+		int n = Math.min(len, limit - pos);
+		System.arraycopy(buffer, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public void close() {
+		// owned by the connection
+	}
+}
@@ -0,0 +1,156 @@
+package com.nettleweb.http;
+
+import org.jetbrains.annotations.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+// connection-owned output buffer for responses, the response head and small bodies are collected
+// and sent with a single write when the response is flushed or the buffer is full
+abstract class OutputBuffer extends OutputStream {
+	private final int size;
+
+	@Nullable
+	private byte[] buffer;
+	private int count = 0;
+
+	OutputBuffer(int size) {
+		this.size = size;
+	}
+
+	// writes directly to the underlying transport, blocking until all bytes are written
+	protected abstract void send(@NotNull byte[] b, int off, int len) throws IOException;
+
+	// writes the remaining bytes of the buffers to the transport, transports backed by a channel use a gathering write
+	void send(@NotNull ByteBuffer[] srcs) throws IOException {
+		byte[] tmp = null;
+
+		try {
+			for (ByteBuffer src : srcs) {
+				if (src.hasArray()) {
+					send(src.array(), src.arrayOffset() + src.position(), src.remaining());
+					((Buffer) src).position(src.limit());
+					continue;
+				}
+
+				if (tmp == null)
+					tmp = BufferPool.acquire(8192);
+
+				while (src.hasRemaining()) {
+					int n = Math.min(src.remaining(), tmp.length);
+					src.get(tmp, 0, n);
+					send(tmp, 0, n);
+				}
+			}
+		} finally {
+			BufferPool.release(tmp);
+		}
+	}
+
+	// sends part of a file without copying it through the heap, returns false if the transport does not support it
+	boolean sendFile(@NotNull FileChannel file, long position, long count) throws IOException {
+		return false;
+	}
+
+	@NotNull
+	private byte[] buffer() {
+		byte[] buf = buffer;
+		return buf == null ? buffer = BufferPool.acquire(size) : buf;
+	}
+
+	// the buffered bytes followed by the given buffers
+	@NotNull
+	private ByteBuffer[] prepend(@NotNull ByteBuffer[] srcs) {
+		ByteBuffer[] parts = new ByteBuffer[srcs.length + 1];
+		parts[0] = ByteBuffer.wrap(buffer, 0, count);
+		System.arraycopy(srcs, 0, parts, 1, srcs.length);
+		count = 0;
+		return parts;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (count >= size)
+			flush();
+
+		buffer()[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(@NotNull byte[] b, int off, int len) throws IOException {
+		if (len <= size - count) {
+			System.arraycopy(b, off, buffer(), count, len);
+			count += len;
+		} else if (count == 0) {
+			send(b, off, len);
+		} else if (len < size) {
+			// top up the buffer so that full-sized writes go out
+			int n = size - count;
+			System.arraycopy(b, off, buffer, count, n);
+			count = size;
+			flush();
+			System.arraycopy(b, off + n, buffer, 0, count = len - n);
+		} else {
+			send(prepend(new ByteBuffer[]{ByteBuffer.wrap(b, off, len)}));
+		}
+	}
+
+	// writes the remaining bytes of the buffers, joining them with the buffered bytes if they do not fit
+	void write(@NotNull ByteBuffer[] srcs) throws IOException {
+		long remaining = 0L;
+		for (ByteBuffer src : srcs)
+			remaining += src.remaining();
+
+		if (remaining > size - count) {
+			send(count == 0 ? srcs : prepend(srcs));
+			return;
+		}
+
+		byte[] buf = buffer();
+		for (ByteBuffer src : srcs) {
+			int n = src.remaining();
+			src.get(buf, count, n);
+			count += n;
+		}
+	}
+
+	// sends part of a file, small parts are read into the buffer to go out together with the response head
+	boolean transferFrom(@NotNull FileChannel file, long position, long count) throws IOException {
+		if (count <= size - this.count) {
+			ByteBuffer buf = ByteBuffer.wrap(buffer(), this.count, (int) count);
+			while (buf.hasRemaining()) {
+				if (file.read(buf, position + buf.position() - this.count) < 0)
+					throw new EOFException("Unexpected end of file");
+			}
+
+			this.count += (int) count;
+			return true;
+		}
+
+		flush();
+		return sendFile(file, position, count);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		int n = count;
+		if (n > 0) {
+			count = 0;
+			send(buffer, 0, n);
+		}
+	}
+
+	// returns the buffer of an idle connection to the pool
+	final void release() {
+		if (count == 0) {
+			BufferPool.release(buffer);
+			buffer = null;
+		}
+	}
+
+	@Override
+	public void close() {
+		// owned by the connection
+	}
+}
@@ -0,0 +1,255 @@
+package com.nettleweb.http;
+
+import org.jetbrains.annotations.*;
+
+import java.nio.charset.*;
+import java.util.*;
+
+// incremental HTTP/1.1 request head parser (RFC 9112), fed directly from connection read buffers
+final class RequestParser {
+	private static final int METHOD = 0;
+	private static final int TARGET = 1;
+	private static final int VERSION = 2;
+	private static final int LINE_END = 3;
+	private static final int FIELD_START = 4;
+	private static final int NAME = 5;
+	private static final int VALUE_START = 6;
+	private static final int VALUE = 7;
+	private static final int HEAD_END = 8;
+	private static final int DONE = 9;
+
+	private static final byte[] version = "HTTP/1.1".getBytes(StandardCharsets.US_ASCII);
+
+	// RFC 9110 tchar
+	private static final boolean[] tchar = new boolean[256];
+
+	static {
+		for (int c = '0'; c <= '9'; c++)
+			tchar[c] = true;
+		for (int c = 'a'; c <= 'z'; c++)
+			tchar[c] = true;
+		for (int c = 'A'; c <= 'Z'; c++)
+			tchar[c] = true;
+		for (char c : "!#$%&'*+-.^_`|~".toCharArray())
+			tchar[c] = true;
+	}
+
+	private final int maxHeaderSize;
+
+	private int state = METHOD;
+	private int next = 0;
+	private int size = 0;
+
+	private byte[] scratch = new byte[256];
+	private int scratchLen = 0;
+
+	private String method;
+	private String target;
+	private String name;
+	private Headers headers = new Headers();
+
+	RequestParser(int maxHeaderSize) {
+		this.maxHeaderSize = maxHeaderSize;
+	}
+
+	public boolean done() {
+		return state == DONE;
+	}
+
+	// true if a request head has been partially received
+	public boolean started() {
+		return state != METHOD || scratchLen > 0;
+	}
+
+	@NotNull
+	public String method() {
+		return method;
+	}
+
+	@NotNull
+	public String target() {
+		return target;
+	}
+
+	@NotNull
+	public Headers headers() {
+		return headers;
+	}
+
+	public void reset() {
+		state = METHOD;
+		next = 0;
+		size = 0;
+		scratchLen = 0;
+		method = null;
+		target = null;
+		name = null;
+		headers = new Headers();
+	}
+
+	private void save(byte[] buf, int start, int end) {
+		int len = end - start;
+		if (len <= 0)
+			return;
+
+		if (scratchLen + len > scratch.length)
+			scratch = Arrays.copyOf(scratch, Math.max(scratch.length * 2, scratchLen + len));
+
+		System.arraycopy(buf, start, scratch, scratchLen, len);
+		scratchLen += len;
+	}
+
+	// returns the token between start and end, including bytes saved from previous buffers
+	private String token(byte[] buf, int start, int end, boolean lowerCase) {
+		if (scratchLen > 0) {
+			save(buf, start, end);
+			buf = scratch;
+			start = 0;
+			end = scratchLen;
+			scratchLen = 0;
+		}
+
+		if (!lowerCase)
+			return new String(buf, start, end - start, StandardCharsets.UTF_8);
+
+		char[] chars = new char[end - start];
+		for (int i = start; i < end; i++) {
+			int c = buf[i];
+			chars[i - start] = (char) (c >= 'A' && c <= 'Z' ? c + 32 : c);
+		}
+
+		return new String(chars);
+	}
+
+	// consumes bytes from buf[off, end) and returns the offset where parsing stopped
+	public int parse(@NotNull byte[] buf, int off, int end) {
+		int state = this.state;
+		int start = off;
+		int i = off;
+
+		try {
+			for (; i < end && state != DONE; i++) {
+				final int c = buf[i] & 0xff;
+
+				switch (state) {
+					case METHOD:
+						if (c == ' ') {
+							if (i == start && scratchLen == 0)
+								throw new ProtocolError("Invalid request method");
+
+							method = token(buf, start, i, false);
+							start = i + 1;
+							state = TARGET;
+						} else if ((c == '\r' || c == '\n') && i == start && scratchLen == 0) {
+							// RFC 9112 2.2: ignore empty lines before the request line
+							start = i + 1;
+						} else if (!tchar[c]) {
+							throw new ProtocolError("Invalid character in request method");
+						}
+						break;
+					case TARGET:
+						if (c == ' ') {
+							if (i == start && scratchLen == 0)
+								throw new ProtocolError("Invalid request target");
+
+							target = token(buf, start, i, false);
+							start = i + 1;
+							next = 0;
+							state = VERSION;
+						} else if (c <= 0x20 || c == 0x7f) {
+							throw new ProtocolError("Invalid character in request target");
+						}
+						break;
+					case VERSION:
+						if (next < version.length) {
+							if (c != version[next++])
+								throw new ProtocolError("Unsupported protocol version");
+						} else if (c == '\r') {
+							state = LINE_END;
+						} else if (c == '\n') {
+							start = i + 1;
+							state = FIELD_START;
+						} else {
+							throw new ProtocolError("Invalid request line");
+						}
+						break;
+					case LINE_END:
+						if (c != '\n')
+							throw new ProtocolError("Invalid line ending");
+
+						start = i + 1;
+						state = FIELD_START;
+						break;
+					case FIELD_START:
+						if (c == '\r') {
+							state = HEAD_END;
+						} else if (c == '\n') {
+							state = DONE;
+						} else if (tchar[c]) {
+							start = i;
+							state = NAME;
+						} else {
+							// also rejects obsolete line folding (RFC 9112 5.2)
+							throw new ProtocolError("Invalid header field");
+						}
+						break;
+					case NAME:
+						if (c == ':') {
+							String common = scratchLen == 0 ? Headers.commonName(buf, start, i) : null;
+							name = common != null ? common : token(buf, start, i, true);
+							state = VALUE_START;
+						} else if (!tchar[c]) {
+							throw new ProtocolError("Invalid character in header field name");
+						}
+						break;
+					case VALUE_START:
+					case VALUE:
+						if (state == VALUE_START) {
+							if (c == ' ' || c == '\t')
+								break;
+
+							start = i;
+							state = VALUE;
+						}
+
+						if (c == '\r' || c == '\n') {
+							// leading whitespace was skipped above, trailing whitespace is trimmed here
+							headers.append(name, token(buf, start, i, false).trim());
+							state = c == '\r' ? LINE_END : FIELD_START;
+							start = i + 1;
+						} else if (c < 0x20 && c != '\t' || c == 0x7f) {
+							throw new ProtocolError("Invalid character in header field value");
+						}
+						break;
+					case HEAD_END:
+						if (c != '\n')
+							throw new ProtocolError("Invalid line ending");
+
+						state = DONE;
+						break;
+					default:
+						throw new IllegalStateException();
+				}
+			}
+		} finally {
+			this.state = state;
+		}
+
+		if ((size += i - off) > maxHeaderSize)
+			throw new ProtocolError("Request header exceeds maximum size of " + maxHeaderSize + " bytes");
+
+		switch (state) {
+			case METHOD:
+			case TARGET:
+			case NAME:
+			case VALUE:
+				// keep the unfinished token for the next buffer
+				save(buf, start, i);
+				break;
+			default:
+				break;
+		}
+
+		return i;
+	}
+}
@@ -0,0 +1,408 @@
+package com.nettleweb.http;
+
+import org.jetbrains.annotations.*;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+
+// dispatches requests by method and path through a radix tree of the registered routes, a pattern is made of
+// static text, {name} for a single path segment and * or {name*} as the last segment for the rest of the path,
+// static segments are preferred over parameters and parameters over wildcards
+public final class Router implements HTTPHandler {
+	private static final Params noParams = new Params("", new int[0], new String[0]);
+
+	private final Node root = new Node("");
+
+	@NotNull
+	private HTTPHandler fallback = DefaultHandler.instance;
+	// the largest number of parameters of a single route
+	private int maxParams = 0;
+
+	public interface Handler {
+		HTTPResponse handleRequest(@NotNull HTTPRequest request, @NotNull Params params) throws Exception;
+	}
+
+	// handles requests that match no route, a 404 response by default
+	public void setFallback(@NotNull HTTPHandler fallback) {
+		this.fallback = fallback;
+	}
+
+	// routes should be added before the server is started, a null method matches any method
+	// that has no route of its own
+	@NotNull
+	public synchronized Router route(@Nullable String method, @NotNull String pattern, @NotNull Handler handler) {
+		if (pattern.isEmpty() || pattern.charAt(0) != '/')
+			throw new IllegalArgumentException("Route pattern must start with '/': " + pattern);
+
+		List<String> names = new ArrayList<>();
+		Node node = root;
+		int start = 0;
+		int i = 0;
+
+		while (i < pattern.length()) {
+			char c = pattern.charAt(i);
+			if (c != '{' && c != '*') {
+				i++;
+				continue;
+			}
+
+			// parameters and wildcards always span a whole segment
+			if (pattern.charAt(i - 1) != '/')
+				throw new IllegalArgumentException("Parameter must start a path segment: " + pattern);
+
+			node = node.insert(pattern.substring(start, i));
+
+			int end = c == '*' ? i + 1 : pattern.indexOf('}', i);
+			if (end < 0)
+				throw new IllegalArgumentException("Unclosed parameter: " + pattern);
+			if (c == '{')
+				end++;
+
+			String name = c == '*' ? "*" : pattern.substring(i + 1, end - 1);
+			boolean wildcard = name.endsWith("*");
+			if (wildcard && c == '{')
+				name = name.substring(0, name.length() - 1);
+			if (name.isEmpty() || name.indexOf('/') >= 0 || name.indexOf('{') >= 0)
+				throw new IllegalArgumentException("Invalid parameter name: " + pattern);
+
+			if (wildcard) {
+				if (end != pattern.length())
+					throw new IllegalArgumentException("Wildcard must be the last segment: " + pattern);
+				if (node.wildcard == null)
+					node.wildcard = new Node("");
+
+				node = node.wildcard;
+			} else {
+				if (end < pattern.length() && pattern.charAt(end) != '/')
+					throw new IllegalArgumentException("Parameter must end a path segment: " + pattern);
+				if (node.param == null)
+					node.param = new Node("");
+
+				node = node.param;
+			}
+
+			names.add(name);
+			start = i = end;
+		}
+
+		node = node.insert(pattern.substring(start));
+
+		Route route = new Route(handler, names.toArray(new String[0]));
+		if (method == null) {
+			if (node.any != null)
+				throw new IllegalStateException("Duplicate route: * " + pattern);
+
+			node.any = route;
+		} else {
+			if (node.routes == null)
+				node.routes = new HashMap<>();
+			if (node.routes.putIfAbsent(method, route) != null)
+				throw new IllegalStateException("Duplicate route: " + method + " " + pattern);
+		}
+
+		maxParams = Math.max(maxParams, names.size());
+		return this;
+	}
+
+	@NotNull
+	public Router route(@Nullable String method, @NotNull String pattern, @NotNull HTTPHandler handler) {
+		return route(method, pattern, (request, params) -> handler.handleRequest(request));
+	}
+
+	@NotNull
+	public Router get(@NotNull String pattern, @NotNull Handler handler) {
+		return route("GET", pattern, handler);
+	}
+
+	@NotNull
+	public Router post(@NotNull String pattern, @NotNull Handler handler) {
+		return route("POST", pattern, handler);
+	}
+
+	@NotNull
+	public Router put(@NotNull String pattern, @NotNull Handler handler) {
+		return route("PUT", pattern, handler);
+	}
+
+	@NotNull
+	public Router delete(@NotNull String pattern, @NotNull Handler handler) {
+		return route("DELETE", pattern, handler);
+	}
+
+	@Override
+	public HTTPResponse handleRequest(@NotNull HTTPRequest request) throws Exception {
+		String url = request.url;
+		int start = 0;
+		int end = url.length();
+
+		// the path of an absolute-form target starts after the authority
+		if (!url.startsWith("/")) {
+			int i = url.indexOf("://");
+			start = i < 0 ? -1 : url.indexOf('/', i + 3);
+			if (start < 0)
+				return fallback.handleRequest(request);
+		}
+
+		for (int i = start; i < end; i++) {
+			char c = url.charAt(i);
+			if (c == '?' || c == '#') {
+				end = i;
+				break;
+			}
+		}
+
+		int[] slots = maxParams == 0 ? noParams.slots : new int[maxParams * 2];
+		Node node = match(root, url, start, end, slots, 0);
+		if (node == null)
+			return fallback.handleRequest(request);
+
+		String method = request.method;
+		Route route = node.routes == null ? null : node.routes.get(method);
+		if (route == null && node.routes != null && method.equals("HEAD"))
+			route = node.routes.get("GET");
+		if (route == null)
+			route = node.any;
+		if (route == null)
+			return methodNotAllowed(node);
+
+		return route.handler.handleRequest(request, route.names.length == 0 ? noParams : new Params(url, slots, route.names));
+	}
+
+	@NotNull
+	private static HTTPResponse methodNotAllowed(@NotNull Node node) {
+		TreeSet<String> methods = new TreeSet<>(node.routes.keySet());
+		if (methods.contains("GET"))
+			methods.add("HEAD");
+
+		return new HTTPResponse(405, "", new Headers(
+				"Allow: " + String.join(", ", methods),
+				"Content-Type: text/plain"
+		), Body.from("405 Method Not Allowed"));
+	}
+
+	// the static prefix of the node has been matched up to pos, returns the node of a route or null,
+	// parameter n is recorded as a pair of offsets in slots
+	@Nullable
+	private static Node match(@NotNull Node node, @NotNull String url, int pos, int end, @NotNull int[] slots, int n) {
+		if (pos == end && (node.routes != null || node.any != null))
+			return node;
+
+		if (pos < end) {
+			char c = url.charAt(pos);
+			char[] indices = node.indices;
+
+			for (int i = 0; i < indices.length; i++) {
+				if (indices[i] != c)
+					continue;
+
+				Node child = node.children[i];
+				int len = child.prefix.length();
+				if (end - pos >= len && url.regionMatches(pos, child.prefix, 0, len)) {
+					Node found = match(child, url, pos + len, end, slots, n);
+					if (found != null)
+						return found;
+				}
+				break;
+			}
+
+			Node param = node.param;
+			if (param != null && c != '/') {
+				int next = pos + 1;
+				while (next < end && url.charAt(next) != '/')
+					next++;
+
+				slots[n * 2] = pos;
+				slots[n * 2 + 1] = next;
+
+				Node found = match(param, url, next, end, slots, n + 1);
+				if (found != null)
+					return found;
+			}
+		}
+
+		Node wildcard = node.wildcard;
+		if (wildcard != null && (wildcard.routes != null || wildcard.any != null)) {
+			slots[n * 2] = pos;
+			slots[n * 2 + 1] = end;
+			return wildcard;
+		}
+
+		return null;
+	}
+
+	// the values of the parameters of a matched route, percent-decoded when they are read
+	public static final class Params {
+		private final String url;
+		private final int[] slots;
+		private final String[] names;
+
+		private Params(@NotNull String url, @NotNull int[] slots, @NotNull String[] names) {
+			this.url = url;
+			this.slots = slots;
+			this.names = names;
+		}
+
+		public int size() {
+			return names.length;
+		}
+
+		@NotNull
+		public String name(int index) {
+			return names[index];
+		}
+
+		@NotNull
+		public String value(int index) {
+			if (index < 0 || index >= names.length)
+				throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + names.length);
+
+			return decode(url, slots[index * 2], slots[index * 2 + 1]);
+		}
+
+		@Nullable
+		public String get(@NotNull String name) {
+			for (int i = 0; i < names.length; i++) {
+				if (names[i].equals(name))
+					return value(i);
+			}
+			return null;
+		}
+
+		// the value without percent-decoding
+		@Nullable
+		public String raw(@NotNull String name) {
+			for (int i = 0; i < names.length; i++) {
+				if (names[i].equals(name))
+					return url.substring(slots[i * 2], slots[i * 2 + 1]);
+			}
+			return null;
+		}
+
+		@NotNull
+		private static String decode(@NotNull String url, int start, int end) {
+			int i = url.indexOf('%', start);
+			if (i < 0 || i >= end)
+				return url.substring(start, end);
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream(end - start);
+			byte[] prefix = url.substring(start, i).getBytes(StandardCharsets.UTF_8);
+			out.write(prefix, 0, prefix.length);
+
+			while (i < end) {
+				char c = url.charAt(i);
+				int hi, lo;
+
+				if (c == '%' && i + 2 < end && (hi = Character.digit(url.charAt(i + 1), 16)) >= 0 &&
+						(lo = Character.digit(url.charAt(i + 2), 16)) >= 0) {
+					out.write(hi << 4 | lo);
+					i += 3;
+				} else if (c < 0x80) {
+					out.write(c);
+					i++;
+				} else {
+					int next = Character.isHighSurrogate(c) && i + 1 < end ? i + 2 : i + 1;
+					byte[] data = url.substring(i, next).getBytes(StandardCharsets.UTF_8);
+					out.write(data, 0, data.length);
+					i = next;
+				}
+			}
+
+			return new String(out.toByteArray(), StandardCharsets.UTF_8);
+		}
+	}
+
+	private static final class Route {
+		final Handler handler;
+		final String[] names;
+
+		Route(@NotNull Handler handler, @NotNull String[] names) {
+			this.handler = handler;
+			this.names = names;
+		}
+	}
+
+	private static final class Node {
+		String prefix;
+
+		// static children by the first character of their prefix
+		char[] indices = new char[0];
+		Node[] children = new Node[0];
+
+		@Nullable
+		Node param;
+		@Nullable
+		Node wildcard;
+
+		@Nullable
+		HashMap<String, Route> routes;
+		@Nullable
+		Route any;
+
+		Node(@NotNull String prefix) {
+			this.prefix = prefix;
+		}
+
+		// returns the node at the end of the static text below this one, splitting prefixes where they differ
+		@NotNull
+		Node insert(@NotNull String text) {
+			Node node = this;
+
+			while (!text.isEmpty()) {
+				Node child = null;
+				for (int i = 0; i < node.indices.length; i++) {
+					if (node.indices[i] == text.charAt(0)) {
+						child = node.children[i];
+						break;
+					}
+				}
+
+				if (child == null) {
+					child = new Node(text);
+					node.add(child);
+					return child;
+				}
+
+				int common = 0;
+				int max = Math.min(child.prefix.length(), text.length());
+				while (common < max && child.prefix.charAt(common) == text.charAt(common))
+					common++;
+
+				if (common < child.prefix.length())
+					child.split(common);
+
+				node = child;
+				text = text.substring(common);
+			}
+
+			return node;
+		}
+
+		private void add(@NotNull Node child) {
+			int n = indices.length;
+			indices = Arrays.copyOf(indices, n + 1);
+			children = Arrays.copyOf(children, n + 1);
+			indices[n] = child.prefix.charAt(0);
+			children[n] = child;
+		}
+
+		// moves everything below the first count characters of the prefix into a new child
+		private void split(int count) {
+			Node rest = new Node(prefix.substring(count));
+			rest.indices = indices;
+			rest.children = children;
+			rest.param = param;
+			rest.wildcard = wildcard;
+			rest.routes = routes;
+			rest.any = any;
+
+			prefix = prefix.substring(0, count);
+			indices = new char[]{rest.prefix.charAt(0)};
+			children = new Node[]{rest};
+			param = null;
+			wildcard = null;
+			routes = null;
+			any = null;
+		}
+	}
+}
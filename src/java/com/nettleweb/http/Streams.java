@@ -4,78 +4,89 @@ import org.jetbrains.annotations.*;
 
 import java.io.*;
 import java.lang.Cloneable;
+import java.nio.*;
+import java.nio.channels.*;
 import java.nio.charset.*;
 import java.util.*;
+import java.util.zip.*;
 
 final class Streams {
 	private Streams() {}
 
 	public static long pipe(InputStream is, OutputStream os) throws IOException {
-		byte[] buf = new byte[8192];
+		return pipe(is, os, true);
+	}
+
+	// with flush set, what has been written is pushed out whenever the next read may block, so that streamed bodies
+	// reach the client as they are produced, compressing streams turn it off as each flush ends a deflate block
+	public static long pipe(InputStream is, OutputStream os, boolean flush) throws IOException {
+		byte[] buf = BufferPool.acquire(8192);
 		long k = 0L;
 		int i;
 
-		while ((i = is.read(buf, 0, 8192)) >= 0) {
-			os.write(buf, 0, i);
-			os.flush();
-			k += i;
+		try {
+			while ((i = is.read(buf, 0, buf.length)) >= 0) {
+				os.write(buf, 0, i);
+				k += i;
+
+				if (flush && is.available() <= 0)
+					os.flush();
+			}
+		} finally {
+			BufferPool.release(buf);
 		}
 
 		return k;
 	}
 
+	// reads up to and including the mark, returns the bytes before it
 	@NotNull
 	public static byte[] readUntil(InputStream is, byte[] mark, int maxLength) throws IOException {
-		byte[] data = new byte[0];
+		final int m = mark.length;
+		byte[] data = new byte[Math.min(maxLength, 256)];
 		int length = 0;
 
-loop:
 		while (true) {
-			for (int i = 0; i < mark.length; i++) {
-				if ((length++) >= maxLength) {
-					System.out.println(Arrays.toString(data));
-					throw new IOException("Maximum buffer size exceeded: " + length);
-				}
+			if (length >= maxLength)
+				throw new IOException("Maximum buffer size exceeded: " + (length + 1));
 
-				final int b = is.read();
-				if (b < 0)
-					throw new EOFException();
+			final int b = is.read();
+			if (b < 0)
+				throw new EOFException();
 
-				if (b != mark[i]) {
-					final int len = data.length;
-					byte[] merged = new byte[length];
+			if (length == data.length)
+				data = Arrays.copyOf(data, (int) Math.min(length * 2L, maxLength));
 
-					System.arraycopy(data, 0, merged, 0, len);
-					if (i > 0)
-						System.arraycopy(mark, 0, merged, len, i);
+			data[length++] = (byte) b;
 
-					merged[length - 1] = (byte) b;
-					data = merged;
-					continue loop;
-				}
+			if (length >= m && b == (mark[m - 1] & 0xff)) {
+				int i = 0;
+				while (i < m && data[length - m + i] == mark[i])
+					i++;
+
+				if (i == m)
+					return Arrays.copyOf(data, length - m);
 			}
-			return data;
 		}
 	}
 
+	// reads up to len bytes, growing the result geometrically
 	public static byte[] readNBytes(InputStream is, int len) throws IOException {
-		byte[] buffer = new byte[8192];
-		byte[] outBuf = new byte[0];
+		byte[] data = new byte[Math.max(Math.min(len, 8192), 0)];
+		int n = 0;
 
-		while (len > 0) {
-			int i = is.read(buffer, 0, Math.min(8192, len));
+		while (n < len) {
+			if (n == data.length)
+				data = Arrays.copyOf(data, (int) Math.min(n * 2L, len));
+
+			int i = is.read(data, n, data.length - n);
 			if (i < 0)
 				break;
 
-			int length = outBuf.length;
-			byte[] buf = new byte[length + i];
-			System.arraycopy(outBuf, 0, buf, 0, length);
-			System.arraycopy(buffer, 0, buf, length, i);
-			outBuf = buf;
-			len -= i;
+			n += i;
 		}
 
-		return outBuf;
+		return n == data.length ? data : Arrays.copyOf(data, n);
 	}
 
 	public static void closeUnchecked(Closeable stream) {
@@ -104,78 +115,355 @@ loop:
 		}
 	}
 
-	public static final class ChunkedStream extends CompatStream {
-		private int chunkPos = 0;
-		private int chunkLen = 0;
+	public abstract static class FramedStream extends CompatStream {
+		@Nullable
+		private Runnable onEnd;
+
+		public abstract boolean finished();
+
+		// runs the action once the stream has been read to the end or closed, whichever comes first
+		final void onEnd(@NotNull Runnable action) {
+			this.onEnd = action;
+		}
+
+		protected final void ended() {
+			Runnable action = onEnd;
+			if (action != null) {
+				onEnd = null;
+				action.run();
+			}
+		}
+	}
+
+	public static final class LengthStream extends FramedStream {
+		private long remaining;
+		private boolean closed;
 
 		private final Object stream;
 
-		public ChunkedStream(@NotNull Object stream) {
+		public LengthStream(@NotNull Object stream, long length) {
 			this.stream = stream;
-			try {
-				nextChunk();
-			} catch (Exception e) {
-				throw new StreamError("Failed to initialize chunked stream", e);
+			this.remaining = length;
+		}
+
+		@Override
+		public boolean finished() {
+			return remaining <= 0L;
+		}
+
+		// bytes left in the body
+		public long remaining() {
+			return remaining;
+		}
+
+		@Override
+		public int read(@NotNull byte[] buf, int off, int len) throws IOException {
+			if (closed || remaining <= 0L) {
+				ended();
+				return -1;
 			}
+			if (len <= 0)
+				return 0;
+
+			int size = ((InputStream) stream).read(buf, off, (int) Math.min(remaining, len));
+			if (size < 0)
+				throw new EOFException("Unexpected end of stream, " + remaining + " bytes remaining");
+
+			if ((remaining -= size) <= 0L)
+				ended();
+
+			return size;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return closed ? 0 : (int) Math.min(remaining, ((InputStream) stream).available());
+		}
+
+		@Override
+		public void close() {
+			// the underlying stream belongs to the connection
+			closed = true;
+			ended();
+		}
+	}
+
+	// decoder for the chunked transfer coding (RFC 9112 7.1) working directly on a read buffer
+	public static final class ChunkedStream extends FramedStream {
+		private static final int maxLineSize = 4096;
+		private static final int maxTrailerSize = 8192;
+
+		private final InputBuffer in;
+
+		// bytes left in the current chunk, or -1 before the next chunk size line
+		private long remaining = -1L;
+		private boolean finished = false;
+		private boolean closed = false;
+		@Nullable
+		private Headers trailers;
+
+		public ChunkedStream(@NotNull Object stream) {
+			this.in = stream instanceof InputBuffer ? (InputBuffer) stream : new InputBuffer(8192) {
+				@Override
+				protected int receive(@NotNull byte[] b, int off, int len) throws IOException {
+					return ((InputStream) stream).read(b, off, len);
+				}
+
+				@Override
+				public void close() {
+					pos = limit;
+					release();
+					closeUnchecked((InputStream) stream);
+				}
+			};
+		}
+
+		// returns the offset of the line feed ending the next line in the buffer, reading more data as needed
+		private int line(int maxLength) throws IOException {
+			final InputBuffer in = this.in;
+			int i = in.pos;
+
+			while (true) {
+				byte[] buf = in.buffer;
+				for (int end = in.limit; i < end; i++) {
+					if (buf[i] == '\n')
+						return i;
+				}
+
+				if (i - in.pos > maxLength)
+					throw new IOException("Chunk line exceeds maximum length of " + maxLength + " bytes");
+
+				int scanned = i - in.pos;
+				if (!in.fill())
+					throw new EOFException("Unexpected end of chunked stream");
+
+				i = in.pos + scanned;
+			}
+		}
+
+		// end of a line without its line break
+		private int lineEnd(int lf) {
+			return lf > in.pos && in.buffer[lf - 1] == '\r' ? lf - 1 : lf;
 		}
 
 		private void nextChunk() throws IOException {
-			String header = new String(readUntil((InputStream) stream, Util.newLineMark, 1024), StandardCharsets.UTF_8);
+			final InputBuffer in = this.in;
 
-			int i = header.indexOf(';', 1);
-			if (i > 0)
-				header = header.substring(0, i);
+			if (remaining == 0L) {
+				// line break after the chunk data
+				int lf = line(2);
+				if (lineEnd(lf) != in.pos)
+					throw new IOException("Invalid chunk ending");
 
-			try {
-				chunkPos = 0;
-				chunkLen = Integer.parseInt(header, 16);
-			} catch (Exception e) {
-				throw new IOException("Invalid chunk length", e);
+				in.pos = lf + 1;
+			}
+
+			int lf = line(maxLineSize);
+			int end = lineEnd(lf);
+			byte[] buf = in.buffer;
+			long size = 0L;
+			int i = in.pos;
+
+			for (; i < end; i++) {
+				int c = buf[i];
+				int d = c >= '0' && c <= '9' ? c - '0' : c >= 'a' && c <= 'f' ? c - 'a' + 10 : c >= 'A' && c <= 'F' ? c - 'A' + 10 : -1;
+				if (d < 0)
+					break;
+
+				if (size > (Long.MAX_VALUE >>> 4))
+					throw new IOException("Chunk size is too large");
+
+				size = (size << 4) | d;
+			}
+
+			// anything after the size must be a chunk extension, which is ignored
+			if (i == in.pos || (i < end && buf[i] != ';' && buf[i] != ' ' && buf[i] != '\t'))
+				throw new IOException("Invalid chunk size");
+
+			in.pos = lf + 1;
+			remaining = size;
+
+			if (size == 0L)
+				readTrailers();
+		}
+
+		private void readTrailers() throws IOException {
+			final InputBuffer in = this.in;
+			int total = 0;
+
+			while (true) {
+				int lf = line(maxTrailerSize - total);
+				int start = in.pos;
+				int end = lineEnd(lf);
+				total += lf + 1 - start;
+
+				if (end == start) {
+					in.pos = lf + 1;
+					break;
+				}
+
+				byte[] buf = in.buffer;
+				int colon = start;
+				while (colon < end && buf[colon] != ':')
+					colon++;
+
+				if (colon == start || colon == end)
+					throw new IOException("Invalid trailer field");
+
+				String name = Headers.commonName(buf, start, colon);
+				if (name == null)
+					name = new String(buf, start, colon - start, StandardCharsets.UTF_8).trim().toLowerCase(Locale.ROOT);
+
+				Headers trailers = this.trailers;
+				if (trailers == null)
+					this.trailers = trailers = new Headers();
+
+				trailers.append(name, new String(buf, colon + 1, end - colon - 1, StandardCharsets.UTF_8).trim());
+				in.pos = lf + 1;
 			}
+
+			finished = true;
+			ended();
+		}
+
+		@Override
+		public boolean finished() {
+			return finished;
+		}
+
+		// the trailer fields received after the last chunk, null if there were none or the body has not been read to the end
+		@Nullable
+		public Headers trailers() {
+			return trailers;
+		}
+
+		// positions the buffer at the data of the current chunk, returns false at the end of the body
+		private boolean ensureChunk() throws IOException {
+			if (closed || finished)
+				return false;
+
+			if (remaining <= 0L)
+				nextChunk();
+
+			return !finished;
 		}
 
 		@Override
 		public int read(@NotNull byte[] buf, int off, int len) throws IOException {
-			final int cLen = chunkLen;
-			if (cLen <= 0)
+			if (len <= 0)
+				return 0;
+			if (!ensureChunk())
 				return -1;
 
-			InputStream stream = (InputStream) this.stream;
-			if (chunkPos >= cLen) {
-				int a = stream.read();
-				int b = stream.read();
+			int n = in.read(buf, off, (int) Math.min(remaining, len));
+			if (n < 0)
+				throw new EOFException("Unexpected end of chunked stream");
 
-				if (a != (int) '\r' || b != (int) '\n')
-					throw new IOException("Invalid chunk ending token: " + a + ", " + b);
+			remaining -= n;
+			return n;
+		}
 
-				nextChunk();
-			}
+		@Override
+		public int read(@NotNull ByteBuffer dst) throws IOException {
+			if (dst.hasArray() || !dst.hasRemaining())
+				return super.read(dst);
+			if (!ensureChunk())
+				return -1;
 
-			int size = stream.read(buf, off, Math.min(chunkLen - chunkPos, len));
-			chunkPos += size;
-			return size;
+			final InputBuffer in = this.in;
+			if (in.pos >= in.limit && !in.fill())
+				throw new EOFException("Unexpected end of chunked stream");
+
+			int n = (int) Math.min(Math.min(remaining, dst.remaining()), in.limit - in.pos);
+			dst.put(in.buffer, in.pos, n);
+			in.pos += n;
+			remaining -= n;
+			return n;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return !closed;
 		}
 
 		@Override
 		public void close() throws IOException {
-			chunkPos = 0;
-			chunkLen = 0;
-			((InputStream) stream).close();
+			closed = true;
+			in.close();
+			ended();
 		}
 	}
 
+	// chunked transfer coding (RFC 9112 7.1), writes are collected into chunks of up to chunkSize bytes
 	public static final class ChunkedOutput extends OutputStream {
-		private static final byte[] streamEnd = new byte[]{(byte) '0', (byte) '\r', (byte) '\n', (byte) '\r', (byte) '\n'};
+		public static final int defaultChunkSize = 16384;
+
+		private static final byte[] hexDigits = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+		// room for the hex size of a chunk of up to 2 GiB and its line break
+		private static final int frameSize = 10;
 
 		private final OutputStream stream;
+		private final int chunkSize;
+
+		// chunk data starts at frameSize, the chunk size line is written right before it
+		private byte[] buffer;
+		private int count = frameSize;
+		private boolean finished = false;
 
 		public ChunkedOutput(@NotNull OutputStream stream) {
+			this(stream, defaultChunkSize);
+		}
+
+		public ChunkedOutput(@NotNull OutputStream stream, int chunkSize) {
+			if (chunkSize <= 0)
+				throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+
 			this.stream = stream;
+			this.chunkSize = chunkSize;
+			this.buffer = BufferPool.acquire(frameSize + chunkSize + 2);
+		}
+
+		// writes the size line of a chunk of len bytes so that it ends at buf[end], returns its offset
+		private static int frame(@NotNull byte[] buf, int end, int len) {
+			buf[--end] = '\n';
+			buf[--end] = '\r';
+
+			do {
+				buf[--end] = hexDigits[len & 15];
+				len >>>= 4;
+			} while (len != 0);
+
+			return end;
+		}
+
+		private void ensureOpen() throws IOException {
+			if (finished)
+				throw new IOException("Chunked stream already finished");
+		}
+
+		// sends the buffered data as one chunk
+		private void drain() throws IOException {
+			int len = count - frameSize;
+			if (len <= 0)
+				return;
+
+			byte[] buf = buffer;
+			int start = frame(buf, frameSize, len);
+			buf[count++] = '\r';
+			buf[count++] = '\n';
+
+			stream.write(buf, start, count - start);
+			count = frameSize;
 		}
 
 		@Override
 		public void write(int b) throws IOException {
-			write(new byte[]{(byte) b}, 0, 1);
+			ensureOpen();
+
+			if (count - frameSize >= chunkSize)
+				drain();
+
+			buffer[count++] = (byte) b;
 		}
 
 		@Override
@@ -185,33 +473,428 @@ loop:
 
 		@Override
 		public void write(@NotNull byte[] b, int off, int len) throws IOException {
-			byte[] data = Integer.toString(len, 16).getBytes(StandardCharsets.UTF_8);
-			stream.write(data, 0, data.length);
+			ensureOpen();
+
+			int free = chunkSize - (count - frameSize);
+			if (len <= free) {
+				System.arraycopy(b, off, buffer, count, len);
+				count += len;
+				return;
+			}
+
+			drain();
+
+			// full chunks of large writes are sent without copying
+			byte[] buf = buffer;
+			while (len >= chunkSize) {
+				int start = frame(buf, frameSize, chunkSize);
+				stream.write(buf, start, frameSize - start);
+				stream.write(b, off, chunkSize);
+				stream.write(Util.newLineMark, 0, 2);
+				off += chunkSize;
+				len -= chunkSize;
+			}
+
+			System.arraycopy(b, off, buf, count, len);
+			count += len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (!finished)
+				drain();
 
-			data = Util.newLineMark;
-			stream.write(data, 0, 2);
-			stream.write(b, off, len);
-			stream.write(data, 0, 2);
 			stream.flush();
 		}
 
+		public void finish() throws IOException {
+			finish(null);
+		}
+
+		// sends the remaining data, the last chunk and the trailer section
+		public void finish(@Nullable Headers trailers) throws IOException {
+			if (finished)
+				return;
+
+			drain();
+			finished = true;
+
+			StringBuilder builder = new StringBuilder("0\r\n");
+			if (trailers != null)
+				trailers.toString(builder);
+
+			byte[] data = builder.append("\r\n").toString().getBytes(StandardCharsets.UTF_8);
+			stream.write(data, 0, data.length);
+			stream.flush();
+
+			BufferPool.release(buffer);
+			buffer = null;
+		}
+
+		@Override
+		public void close() throws IOException {
+			finish();
+			stream.close();
+		}
+	}
+
+	// gzip (RFC 1952) or zlib (RFC 1950) compressing stream over a pooled deflater, flush() emits a sync flush
+	public static final class DeflateOutput extends OutputStream {
+		private static final byte[] gzipHeader = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+		private final OutputStream stream;
+		private final Deflater deflater;
+		@Nullable
+		private final CRC32 crc;
+
+		private byte[] buffer = BufferPool.acquire(8192);
+		private final byte[] single = new byte[1];
+		private boolean finished = false;
+
+		// gzip streams need a deflater without the zlib wrapper
+		public DeflateOutput(@NotNull OutputStream stream, @NotNull Deflater deflater, boolean gzip) throws IOException {
+			this.stream = stream;
+			this.deflater = deflater;
+			this.crc = gzip ? new CRC32() : null;
+
+			if (gzip)
+				stream.write(gzipHeader, 0, gzipHeader.length);
+		}
+
+		private int deflate(int flush) throws IOException {
+			byte[] buf = buffer;
+			int n = deflater.deflate(buf, 0, buf.length, flush);
+			if (n > 0)
+				stream.write(buf, 0, n);
+
+			return n;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			single[0] = (byte) b;
+			write(single, 0, 1);
+		}
+
+		@Override
+		public void write(@NotNull byte[] b, int off, int len) throws IOException {
+			if (finished)
+				throw new IOException("Compressed stream already finished");
+			if (len <= 0)
+				return;
+
+			if (crc != null)
+				crc.update(b, off, len);
+
+			deflater.setInput(b, off, len);
+			while (!deflater.needsInput())
+				deflate(Deflater.NO_FLUSH);
+		}
+
 		@Override
 		public void flush() throws IOException {
+			if (!finished) {
+				while (deflate(Deflater.SYNC_FLUSH) == buffer.length)
+					;
+			}
+
 			stream.flush();
 		}
 
+		// writes the remaining compressed data and the stream trailer, the deflater can be released afterwards
+		public void finish() throws IOException {
+			if (finished)
+				return;
+
+			deflater.finish();
+			while (!deflater.finished())
+				deflate(Deflater.NO_FLUSH);
+
+			if (crc != null) {
+				byte[] buf = buffer;
+				writeIntLE(buf, 0, (int) crc.getValue());
+				writeIntLE(buf, 4, (int) deflater.getBytesRead());
+				stream.write(buf, 0, 8);
+			}
+
+			finished = true;
+			BufferPool.release(buffer);
+			buffer = null;
+		}
+
+		private static void writeIntLE(@NotNull byte[] buf, int off, int v) {
+			buf[off] = (byte) v;
+			buf[off + 1] = (byte) (v >>> 8);
+			buf[off + 2] = (byte) (v >>> 16);
+			buf[off + 3] = (byte) (v >>> 24);
+		}
+
 		@Override
 		public void close() throws IOException {
-			stream.write(streamEnd, 0, 5);
+			finish();
 			stream.close();
 		}
 	}
 
-	public abstract static class CompatStream extends InputStream implements Cloneable {
+	// decoder for the gzip and deflate content codings with a pooled inflater, the inflater is returned once the
+	// compressed data has ended or the stream is closed, deflate data is accepted with or without the zlib wrapper
+	public static final class InflateInput extends CompatStream {
+		private final InputStream stream;
+		private final boolean gzip;
+
+		@Nullable
+		private Inflater inflater;
+		private boolean nowrap;
+		@Nullable
+		private CRC32 crc;
+
+		@Nullable
+		private byte[] buffer = BufferPool.acquire(8192);
+		private int pos = 0;
+		private int limit = 0;
+		private boolean started = false;
+		private boolean finished = false;
+
+		public InflateInput(@NotNull InputStream stream, boolean gzip) {
+			this.stream = stream;
+			this.gzip = gzip;
+		}
+
+		private boolean fill() throws IOException {
+			int n;
+			while ((n = stream.read(buffer, 0, buffer.length)) == 0)
+				;
+
+			pos = 0;
+			limit = Math.max(n, 0);
+			return n > 0;
+		}
+
+		// the next byte of compressed input, or -1 at the end of the underlying stream
+		private int next() throws IOException {
+			if (pos >= limit && !fill())
+				return -1;
+
+			return buffer[pos++] & 0xff;
+		}
+
+		private int nextRequired() throws IOException {
+			int b = next();
+			if (b < 0)
+				throw new EOFException("Unexpected end of compressed stream");
+
+			return b;
+		}
+
+		// the gzip member header (RFC 1952 2.3) after the magic bytes
+		private void readHeader() throws IOException {
+			if (nextRequired() != Deflater.DEFLATED)
+				throw new ZipException("Unsupported compression method");
+
+			int flags = nextRequired();
+			for (int i = 0; i < 6; i++)
+				nextRequired(); // mtime, xfl and os
+
+			if ((flags & 4) != 0) {
+				int n = nextRequired() | nextRequired() << 8;
+				for (int i = 0; i < n; i++)
+					nextRequired();
+			}
+			if ((flags & 8) != 0) {
+				while (nextRequired() != 0)
+					;
+			}
+			if ((flags & 16) != 0) {
+				while (nextRequired() != 0)
+					;
+			}
+			if ((flags & 2) != 0) {
+				nextRequired();
+				nextRequired();
+			}
+		}
+
+		// returns false for an empty body
+		private boolean start() throws IOException {
+			started = true;
+
+			if (gzip) {
+				int b = next();
+				if (b < 0)
+					return false;
+				if (b != 0x1f || nextRequired() != 0x8b)
+					throw new ZipException("Not in GZIP format");
+
+				readHeader();
+				nowrap = true;
+				crc = new CRC32();
+			} else {
+				if (pos >= limit && !fill())
+					return false;
+				if (limit - pos < 2 && limit < buffer.length) {
+					int n = stream.read(buffer, limit, buffer.length - limit);
+					if (n > 0)
+						limit += n;
+				}
+
+				// some servers send raw deflate data without the zlib header
+				int cmf = buffer[pos] & 0xff;
+				nowrap = limit - pos < 2 || (cmf & 0x0f) != Deflater.DEFLATED || ((cmf << 8) | (buffer[pos + 1] & 0xff)) % 31 != 0;
+			}
+
+			Inflater inflater = this.inflater = ZlibPool.inflater(nowrap);
+			if (pos < limit)
+				inflater.setInput(buffer, pos, limit - pos);
+
+			return true;
+		}
+
+		// checks the gzip trailer and continues with the next member if there is one, returns false at the end
+		private boolean next(@NotNull Inflater inflater) throws IOException {
+			pos = limit - inflater.getRemaining();
+
+			if (crc != null) {
+				long value = 0L;
+				for (int i = 0; i < 8; i++)
+					value |= (long) nextRequired() << (i * 8);
+
+				if ((int) value != (int) crc.getValue() || (int) (value >>> 32) != (int) inflater.getBytesWritten())
+					throw new ZipException("Corrupt GZIP trailer");
+
+				if (next() == 0x1f && next() == 0x8b) {
+					readHeader();
+					inflater.reset();
+					crc.reset();
+
+					if (pos < limit)
+						inflater.setInput(buffer, pos, limit - pos);
+
+					return true;
+				}
+			}
+
+			// anything after the compressed data is ignored, reading the body to its end frees the connection
+			while (fill())
+				;
+
+			end();
+			return false;
+		}
+
+		private void end() {
+			finished = true;
+
+			Inflater inflater = this.inflater;
+			if (inflater != null) {
+				this.inflater = null;
+				ZlibPool.release(inflater, nowrap);
+			}
+
+			BufferPool.release(buffer);
+			buffer = null;
+		}
+
+		@Override
+		public int read(@NotNull byte[] b, int off, int len) throws IOException {
+			if (finished)
+				return -1;
+			if (len <= 0)
+				return 0;
+
+			if (!started && !start()) {
+				end();
+				return -1;
+			}
+
+			Inflater inflater = this.inflater;
+
+			while (true) {
+				int n;
+
+				try {
+					n = inflater.inflate(b, off, len);
+				} catch (DataFormatException e) {
+					throw new ZipException(e.getMessage());
+				}
+
+				if (n > 0) {
+					if (crc != null)
+						crc.update(b, off, n);
+
+					return n;
+				}
+
+				if (inflater.finished()) {
+					if (!next(inflater))
+						return -1;
+				} else if (inflater.needsDictionary()) {
+					throw new ZipException("Preset dictionaries are not supported");
+				} else if (inflater.needsInput()) {
+					if (!fill())
+						throw new EOFException("Unexpected end of compressed stream");
+
+					inflater.setInput(buffer, 0, limit);
+				}
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!finished)
+				end();
+
+			stream.close();
+		}
+	}
+
+	public abstract static class CompatStream extends InputStream implements ReadableByteChannel, Cloneable {
+		@Nullable
+		private transient byte[] single;
+
 		@Override
 		public final int read() throws IOException {
-			byte[] buf = new byte[1];
-			return read(buf, 0, 1) < 0 ? -1 : buf[0] & 0xff;
+			byte[] buf = single;
+			if (buf == null)
+				single = buf = new byte[1];
+
+			int n;
+			while ((n = read(buf, 0, 1)) == 0)
+				;
+
+			return n < 0 ? -1 : buf[0] & 0xff;
+		}
+
+		// reads into the remaining space of the buffer, returns -1 at the end of the stream
+		@Override
+		public int read(@NotNull ByteBuffer dst) throws IOException {
+			int len = dst.remaining();
+			if (len <= 0)
+				return 0;
+
+			if (dst.hasArray()) {
+				int n = read(dst.array(), dst.arrayOffset() + dst.position(), len);
+				if (n > 0)
+					((Buffer) dst).position(dst.position() + n);
+
+				return n;
+			}
+
+			byte[] buf = BufferPool.acquire(Math.min(len, 8192));
+
+			try {
+				int n = read(buf, 0, Math.min(len, buf.length));
+				if (n > 0)
+					dst.put(buf, 0, n);
+
+				return n;
+			} finally {
+				BufferPool.release(buf);
+			}
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
 		}
 
 		@Override
@@ -228,7 +911,9 @@ loop:
 		@Override
 		public InputStream clone() {
 			try {
-				return (InputStream) super.clone();
+				CompatStream stream = (CompatStream) super.clone();
+				stream.single = null;
+				return stream;
 			} catch (Exception e) {
 				return null;
 			}
@@ -236,7 +921,7 @@ loop:
 
 		@Override
 		public long transferTo(@NotNull OutputStream out) throws IOException {
-			return pipe(this, out);
+			return pipe(this, out, false);
 		}
 
 		@NotNull
@@ -263,18 +948,7 @@ loop:
 		@NotNull
 		@Override
 		public byte[] readAllBytes() throws IOException {
-			byte[] buffer = new byte[8192];
-			byte[] outBuf = new byte[0];
-
-			for (int i = read(buffer, 0, 8192); i >= 0; i = read(buffer, 0, 8192)) {
-				int length = outBuf.length;
-				byte[] buf = new byte[length + i];
-				System.arraycopy(outBuf, 0, buf, 0, length);
-				System.arraycopy(buffer, 0, buf, length, i);
-				outBuf = buf;
-			}
-
-			return outBuf;
+			return readNBytes(Integer.MAX_VALUE - 8);
 		}
 	}
 }
@@ -0,0 +1,19 @@
+package com.nettleweb.http;
+
+import org.jetbrains.annotations.*;
+
+import java.util.concurrent.*;
+
+// replaced by the Java 21 variant in META-INF/versions/21 of the multi-release jar
+final class Threads {
+	private Threads() {}
+
+	@Nullable
+	public static Executor virtualExecutor() {
+		return null;
+	}
+
+	public static boolean isVirtual(@NotNull Thread thread) {
+		return false;
+	}
+}
@@ -4,14 +4,63 @@ import org.jetbrains.annotations.*;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.*;
 import java.util.*;
 
 final class Util {
 	public static final byte[] newLineMark = new byte[]{(byte) '\r', (byte) '\n'};
 	public static final byte[] headerEndMark = new byte[]{(byte) '\r', (byte) '\n', (byte) '\r', (byte) '\n'};
 
+	@Nullable
+	private static final SocketOption<Boolean> reusePort = reusePortOption();
+
 	private Util() {}
 
+	@Nullable
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> reusePortOption() {
+		try {
+			// only available since Java 9
+			return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	public static boolean reusePortSupported() {
+		return reusePort != null;
+	}
+
+	public static boolean setReusePort(@NotNull ServerSocket socket) {
+		SocketOption<Boolean> option = reusePort;
+		if (option == null)
+			return false;
+
+		try {
+			Class<?> c = ServerSocket.class;
+			if (!((Set<?>) c.getMethod("supportedOptions").invoke(socket)).contains(option))
+				return false;
+
+			c.getMethod("setOption", SocketOption.class, Object.class).invoke(socket, option, Boolean.TRUE);
+			return true;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	public static boolean setReusePort(@NotNull NetworkChannel channel) {
+		SocketOption<Boolean> option = reusePort;
+		if (option == null || !channel.supportedOptions().contains(option))
+			return false;
+
+		try {
+			channel.setOption(option, Boolean.TRUE);
+			return true;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
 	public static URI optURL(String url) {
 		if (url == null)
 			return null;
@@ -23,46 +72,214 @@ final class Util {
 		}
 	}
 
-	@NotNull
-	public static HTTPRequest parseRawRequest(String message, InputStream stream) {
-		if ((message = message.trim()).isEmpty())
-			throw new ProtocolError("Empty message");
+	// reads the next request head from the connection, returns null if the stream ends before a request starts
+	@Nullable
+	public static HTTPRequest readRequest(@NotNull InputBuffer in, @NotNull RequestParser parser) throws IOException {
+		while (!parser.done()) {
+			if (in.pos >= in.limit && !in.fill()) {
+				if (parser.started())
+					throw new EOFException("Unexpected end of request header");
 
-		String[] lines = message.split("(\\r\\n|\\n)");
-		if (lines.length < 2)
-			throw new ProtocolError("Missing required values");
+				return null;
+			}
+
+			in.pos = parser.parse(in.buffer, in.pos, in.limit);
+		}
 
-		String[] parts = parseRequestHead(lines[0]);
-		if (parts == null || !parts[2].equals("HTTP/1.1"))
-			throw new ProtocolError("Invalid message header");
+		return newRequest(parser, in);
+	}
 
-		String rawPath = parts[1].trim();
-		if (rawPath.charAt(0) != '/')
+	@NotNull
+	public static HTTPRequest newRequest(@NotNull RequestParser parser, @NotNull InputStream stream) {
+		String target = parser.target();
+		if (target.charAt(0) != '/')
 			throw new ProtocolError("Invalid request path");
 
-		Headers headers = new Headers(Arrays.copyOfRange(lines, 1, lines.length));
+		Headers headers = parser.headers();
 
 		String host = headers.get("host");
 		if (host == null || host.isEmpty())
 			throw new ProtocolError("Invalid host header");
 
-		return new HTTPRequest("http://" + host + rawPath, parts[0].trim(), headers, Body.from(stream, headers.get("transfer-encoding")));
+		HTTPRequest request = new HTTPRequest("http://" + host + target, parser.method(), headers, Body.from(requestBody(stream, headers)));
+		parser.reset();
+		return request;
+	}
+
+	// RFC 9112 6.3, requests that could be framed in more than one way are rejected, as a proxy in front of the
+	// server may have framed them differently
+	@Nullable
+	private static InputStream requestBody(InputStream stream, Headers headers) {
+		String[] encodings = headers.getAll("transfer-encoding");
+		String[] lengths = headers.getAll("content-length");
+
+		if (encodings.length > 0) {
+			if (lengths.length > 0)
+				throw new ProtocolError("Both transfer encoding and content length present");
+			if (encodings.length > 1 || !encodings[0].equalsIgnoreCase("chunked"))
+				throw new ProtocolError("Unsupported transfer encoding: " + String.join(", ", encodings));
+
+			return new Streams.ChunkedStream(stream);
+		}
+
+		long value = -1L;
+		for (String length : lengths) {
+			// repeated values are allowed as long as they are all the same
+			for (String item : length.split(",", -1)) {
+				long n = parseLength(item.trim());
+				if (n < 0L || (value >= 0L && n != value))
+					throw new ProtocolError("Invalid content length: " + length);
+
+				value = n;
+			}
+		}
+
+		return value <= 0L ? null : new Streams.LengthStream(stream, value);
+	}
+
+	// a non-negative decimal number made of digits only, or -1
+	private static long parseLength(@NotNull String value) {
+		int len = value.length();
+		if (len == 0 || len > 18)
+			return -1L;
+
+		long n = 0L;
+		for (int i = 0; i < len; i++) {
+			char c = value.charAt(i);
+			if (c < '0' || c > '9')
+				return -1L;
+
+			n = n * 10L + (c - '0');
+		}
+		return n;
+	}
+
+	@NotNull
+	public static StringBuilder statusLine(int status, @NotNull String message) {
+		StringBuilder builder = new StringBuilder("HTTP/1.1 ").append(status);
+		if (!message.isEmpty())
+			builder.append(' ').append(message);
+
+		return builder.append("\r\n");
+	}
+
+	public static boolean bodyAllowed(int status) {
+		return status >= 200 && status != 204 && status != 304;
+	}
+
+	// true if the comma separated list contains the token, ignoring case
+	public static boolean hasToken(@NotNull String list, @NotNull String token) {
+		for (String item : list.split(",")) {
+			if (item.trim().equalsIgnoreCase(token))
+				return true;
+		}
+		return false;
+	}
+
+	// media types that are worth compressing
+	public static boolean compressible(@Nullable String type) {
+		if (type == null)
+			return false;
+
+		int i = type.indexOf(';');
+		type = (i >= 0 ? type.substring(0, i) : type).trim().toLowerCase(Locale.ROOT);
+
+		if (type.startsWith("text/") || type.endsWith("+json") || type.endsWith("+xml"))
+			return true;
+
+		switch (type) {
+			case "application/json":
+			case "application/javascript":
+			case "application/x-javascript":
+			case "application/xml":
+			case "application/wasm":
+			case "application/x-www-form-urlencoded":
+			case "font/ttf":
+			case "font/otf":
+				return true;
+			default:
+				return false;
+		}
 	}
 
+	// the preferred supported content coding of an Accept-Encoding header (RFC 9110 12.5.3), or null for identity
+	@Nullable
+	public static String acceptedCoding(@Nullable String accept) {
+		if (accept == null)
+			return null;
+
+		float gzip = -1f;
+		float deflate = -1f;
+		float any = -1f;
+
+		for (String item : accept.split(",")) {
+			int i = item.indexOf(';');
+			String coding = (i >= 0 ? item.substring(0, i) : item).trim().toLowerCase(Locale.ROOT);
+			float q = 1f;
+
+			if (i >= 0) {
+				String param = item.substring(i + 1).trim();
+				if (param.startsWith("q=") || param.startsWith("Q=")) {
+					try {
+						q = Float.parseFloat(param.substring(2).trim());
+					} catch (Exception e) {
+						q = 0f;
+					}
+				}
+			}
+
+			switch (coding) {
+				case "gzip":
+				case "x-gzip":
+					gzip = Math.max(gzip, q);
+					break;
+				case "deflate":
+					deflate = q;
+					break;
+				case "*":
+					any = q;
+					break;
+				default:
+					break;
+			}
+		}
+
+		if (gzip < 0f)
+			gzip = any;
+		if (deflate < 0f)
+			deflate = any;
+
+		if (gzip > 0f && gzip >= deflate)
+			return "gzip";
+		if (deflate > 0f)
+			return "deflate";
+
+		return null;
+	}
+
+	public static boolean keepAlive(@NotNull Headers headers) {
+		String value = headers.get("connection");
+		if (value != null) {
+			for (String token : value.split(",")) {
+				if (token.trim().equalsIgnoreCase("close"))
+					return false;
+			}
+		}
+		return true;
+	}
+
+	// parses a response head, the body is attached by the caller
 	@NotNull
-	public static HTTPResponse parseRawResponse(String message, InputStream stream) {
+	public static HTTPResponse parseResponse(@NotNull String message) {
 		if ((message = message.trim()).isEmpty())
 			throw new ProtocolError("Empty message");
 
 		String[] lines = message.split("(\\r\\n|\\n)");
-		if (lines.length < 2)
-			throw new NetworkError("missing required headers");
-
 		int status;
 
 		String[] parts = parseResponseHead(lines[0]);
 		if (parts == null)
-			throw new NetworkError("Missing required info");
+			throw new ProtocolError("Invalid status line");
 
 		try {
 			status = Integer.parseInt(parts[1], 10);
@@ -78,42 +295,24 @@ final class Util {
 				throw new ProtocolError("Unsupported protocol: " + parts[0]);
 		}
 
-		message = parts.length >= 3 ? parts[2] : "";
-		Headers headers = new Headers(Arrays.copyOfRange(lines, 1, lines.length));
-
-		{
-			String length = headers.get("content-length");
-			if (length != null) {
-				byte[] buffer;
-
-				try {
-					buffer = Streams.readNBytes(stream, Integer.parseInt(length, 10));
-					stream.close();
-				} catch (Exception e) {
-					throw new StreamError("Failed to read response body", e);
-				}
+		Headers headers = new Headers();
+		for (int i = 1; i < lines.length; i++) {
+			String line = lines[i];
+			int p = line.indexOf(':');
+			if (p <= 0)
+				throw new ProtocolError("Invalid header field: " + line);
 
-				return new HTTPResponse(status, message, headers, Body.from(buffer));
-			}
+			headers.add(line.substring(0, p), line.substring(p + 1));
 		}
 
-		return new HTTPResponse(status, message, headers, Body.from(stream, headers.get("transfer-encoding")));
-	}
-
-	private static String[] parseRequestHead(String head) {
-		int i = head.indexOf(' ', 1);
-		if (i < 1)
-			return null;
-
-		int i2 = head.lastIndexOf(' ');
-		if (i2 < 1)
-			return null;
+		// HTTP/1.0 connections are only persistent if the server asks for it
+		if (parts[0].equals("HTTP/1.0")) {
+			String connection = headers.get("connection");
+			if (connection == null || !hasToken(connection, "keep-alive"))
+				headers.set("connection", "close");
+		}
 
-		return new String[]{
-				head.substring(0, i),
-				head.substring(i + 1, i2),
-				head.substring(i2 + 1)
-		};
+		return new HTTPResponse(status, parts[2], headers);
 	}
 
 	private static String[] parseResponseHead(String head) {
@@ -121,9 +320,10 @@ final class Util {
 		if (i < 1)
 			return null;
 
+		// the reason phrase may be left out
 		int i2 = head.indexOf(' ', i + 1);
-		if (i2 < 1)
-			return null;
+		if (i2 < 0)
+			return new String[]{head.substring(0, i), head.substring(i + 1).trim(), ""};
 
 		return new String[]{
 				head.substring(0, i),
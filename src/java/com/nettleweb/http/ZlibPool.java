@@ -0,0 +1,59 @@
+package com.nettleweb.http;
+
+import org.jetbrains.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+// reusable zlib streams, each one holds native memory that is otherwise only freed by end() or the garbage collector
+final class ZlibPool {
+	private static final int maxPooled = 64;
+
+	// indexed by compression level from -1 to 9, raw deflate streams in the second half
+	private static final List<ArrayBlockingQueue<Deflater>> deflaters = new ArrayList<>(22);
+
+	// zlib and raw streams
+	private static final List<ArrayBlockingQueue<Inflater>> inflaters = new ArrayList<>(2);
+
+	static {
+		for (int i = 0; i < 22; i++)
+			deflaters.add(new ArrayBlockingQueue<>(maxPooled));
+		for (int i = 0; i < 2; i++)
+			inflaters.add(new ArrayBlockingQueue<>(maxPooled));
+	}
+
+	private ZlibPool() {}
+
+	private static int index(int level, boolean nowrap) {
+		if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+			throw new IllegalArgumentException("Invalid compression level: " + level);
+
+		return level + 1 + (nowrap ? 11 : 0);
+	}
+
+	@NotNull
+	static Deflater deflater(int level, boolean nowrap) {
+		Deflater deflater = deflaters.get(index(level, nowrap)).poll();
+		return deflater == null ? new Deflater(level, nowrap) : deflater;
+	}
+
+	// the deflater must have been obtained with the same level and nowrap setting
+	static void release(@NotNull Deflater deflater, int level, boolean nowrap) {
+		deflater.reset();
+		if (!deflaters.get(index(level, nowrap)).offer(deflater))
+			deflater.end();
+	}
+
+	@NotNull
+	static Inflater inflater(boolean nowrap) {
+		Inflater inflater = inflaters.get(nowrap ? 1 : 0).poll();
+		return inflater == null ? new Inflater(nowrap) : inflater;
+	}
+
+	static void release(@NotNull Inflater inflater, boolean nowrap) {
+		inflater.reset();
+		if (!inflaters.get(nowrap ? 1 : 0).offer(inflater))
+			inflater.end();
+	}
+}
@@ -17,6 +17,12 @@ public final class Main {
 		int parse = 0;
 		int threads = 4;
 		int backlog = 255;
+		int selectors = 0;
+		int acceptors = 1;
+		boolean virtual = false;
+		boolean gzip = false;
+		boolean precompress = false;
+		long mmap = 0L;
 
 		String host = "0.0.0.0";
 		String baseDir = new File(".").getAbsolutePath();
@@ -36,10 +42,34 @@ public final class Main {
 					case "backlog":
 						parse = 4;
 						break;
+					case "selectors":
+						parse = 5;
+						break;
+					case "acceptors":
+						parse = 6;
+						break;
+					case "mmap":
+						parse = 7;
+						break;
+					case "virtual":
+						virtual = true;
+						break;
+					case "gzip":
+						gzip = true;
+						break;
+					case "precompress":
+						precompress = true;
+						break;
 					case "help":
 						logger.println("Usage: simple-http [OPTION...]\n");
 						logger.println("\t--host <name>\t\tStart the HTTP server with the specified host.");
 						logger.println("\t--port <port>\t\tStart the HTTP server with the specified port.");
+						logger.println("\t--selectors <n>\t\tUse the non-blocking engine with n selector threads.");
+						logger.println("\t--acceptors <n>\t\tAccept connections on n threads.");
+						logger.println("\t--virtual\t\t\tRun connections on virtual threads (Java 21+).");
+						logger.println("\t--mmap <MiB>\t\tServe files of 1 MiB or more from a memory-mapped cache of this size.");
+						logger.println("\t--gzip\t\t\t\tCompress text responses for clients that accept it.");
+						logger.println("\t--precompress\t\tWrite .gz variants of compressible files before starting.");
 						logger.println("\t--help\t\t\t\tShow this help message and exit.");
 						logger.println("\t--version\t\t\t Show version information and exit.");
 						return;
@@ -98,6 +128,51 @@ public final class Main {
 						}
 						parse = 0;
 						break;
+					case 5:
+						try {
+							selectors = Integer.parseInt(arg, 10);
+							if (selectors < 0 || selectors > 256) {
+								logger.printErr("Error: Selectors must be between 0 and 256.");
+								System.exit(1);
+								return;
+							}
+						} catch (Exception e) {
+							logger.printErr("Error: Invalid selectors value: " + arg);
+							System.exit(1);
+							return;
+						}
+						parse = 0;
+						break;
+					case 6:
+						try {
+							acceptors = Integer.parseInt(arg, 10);
+							if (acceptors < 1 || acceptors > 256) {
+								logger.printErr("Error: Acceptors must be between 1 and 256.");
+								System.exit(1);
+								return;
+							}
+						} catch (Exception e) {
+							logger.printErr("Error: Invalid acceptors value: " + arg);
+							System.exit(1);
+							return;
+						}
+						parse = 0;
+						break;
+					case 7:
+						try {
+							mmap = Long.parseLong(arg, 10);
+							if (mmap < 0L) {
+								logger.printErr("Error: Memory map size must not be negative.");
+								System.exit(1);
+								return;
+							}
+						} catch (Exception e) {
+							logger.printErr("Error: Invalid mmap value: " + arg);
+							System.exit(1);
+							return;
+						}
+						parse = 0;
+						break;
 					default:
 						logger.printErr("Error: Invalid arguments.");
 						logger.printErr("Try '--help' for more information.");
@@ -110,8 +185,23 @@ public final class Main {
 		logger.println("Initializing...");
 
 		HTTPServer server = new HTTPServer(host, port, backlog, Executors.newFixedThreadPool(threads));
-		server.setHandler(new SimpleHTTPHandler(baseDir));
+		SimpleHTTPHandler handler = new SimpleHTTPHandler(baseDir);
+		handler.setMemoryMapping(1L << 20, mmap << 20);
+
+		if (precompress) {
+			try {
+				logger.println("Precompressed " + handler.precompress(1024L) + " files.");
+			} catch (Exception e) {
+				logger.error("Failed to precompress files: ", e);
+			}
+		}
+
+		server.setHandler(handler);
 		server.setLogger(logger);
+		server.setSelectorThreads(selectors);
+		server.setAcceptorThreads(acceptors);
+		server.setVirtualThreads(virtual);
+		server.setCompression(gzip);
 		server.start();
 
 		logger.println("HTTP server started on " + host + ":" + port + " (http://" + host + ":" + port + "/)");
@@ -0,0 +1,119 @@
+package com.nettleweb.http.test;
+
+import com.nettleweb.http.*;
+import org.jetbrains.annotations.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.*;
+
+// size-bounded table of memory-mapped files, remapped when the size or modification time of a file changes
+final class MappedFileCache {
+	// a single mapping cannot exceed 2 GiB, larger files are mapped in segments
+	private static final long segmentSize = 1L << 30;
+
+	private final long maxSize;
+	private long size = 0L;
+
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+	MappedFileCache(long maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	@NotNull
+	private static Entry map(@NotNull Path path, @NotNull BasicFileAttributes attrs) throws IOException {
+		long length = attrs.size();
+		int count = (int) ((length + segmentSize - 1L) / segmentSize);
+		MappedByteBuffer[] segments = new MappedByteBuffer[count];
+
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			for (int i = 0; i < count; i++) {
+				long pos = i * segmentSize;
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(segmentSize, length - pos));
+			}
+		}
+
+		return new Entry(segments, length, attrs.lastModifiedTime().toMillis());
+	}
+
+	// returns null if the file does not fit into the cache
+	@Nullable
+	Entry get(@NotNull Path path, @NotNull BasicFileAttributes attrs) throws IOException {
+		long length = attrs.size();
+		if (length > maxSize)
+			return null;
+
+		String key = path.toString();
+		long modified = attrs.lastModifiedTime().toMillis();
+
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry != null) {
+				if (entry.length == length && entry.modified == modified)
+					return entry;
+
+				// stale, the mapping is released by the garbage collector once in-flight responses are done
+				entries.remove(key);
+				size -= entry.length;
+			}
+		}
+
+		Entry entry = map(path, attrs);
+
+		synchronized (this) {
+			Entry old = entries.put(key, entry);
+			if (old != null)
+				size -= old.length;
+
+			size += length;
+
+			Iterator<Entry> it = entries.values().iterator();
+			while (size > maxSize && it.hasNext()) {
+				Entry e = it.next();
+				if (e == entry)
+					continue;
+
+				it.remove();
+				size -= e.length;
+			}
+		}
+
+		return entry;
+	}
+
+	static final class Entry {
+		private final MappedByteBuffer[] segments;
+		final long length;
+		final long modified;
+
+		private Entry(@NotNull MappedByteBuffer[] segments, long length, long modified) {
+			this.segments = segments;
+			this.length = length;
+			this.modified = modified;
+		}
+
+		// a body over the given range of the file, sharing the mapping
+		@NotNull
+		Body slice(long position, long count) {
+			List<ByteBuffer> parts = new ArrayList<>(2);
+
+			while (count > 0L) {
+				int index = (int) (position / segmentSize);
+				int offset = (int) (position % segmentSize);
+				ByteBuffer buf = segments[index].duplicate();
+				int n = (int) Math.min(count, buf.capacity() - offset);
+
+				((Buffer) buf).position(offset).limit(offset + n);
+				parts.add(buf.slice());
+				position += n;
+				count -= n;
+			}
+
+			return Body.from(parts.toArray(new ByteBuffer[0]));
+		}
+	}
+}
@@ -5,15 +5,271 @@ import org.jetbrains.annotations.*;
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.*;
 import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.time.*;
+import java.time.format.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
 
 public final class SimpleHTTPHandler implements HTTPHandler {
+	private static final HTTPResponse msg404 = new HTTPResponse(404, "", new Headers(
+			"Content-Type: text/plain"
+	), Body.from("404 Not Found")).freeze();
+
+	// precompressed variants in order of preference, by content coding and file suffix
+	private static final String[][] variants = {{"br", ".br"}, {"gzip", ".gz"}};
+
+	// the IMF-fixdate format of RFC 9110 5.6.7, which always has two digits for the day
+	private static final DateTimeFormatter httpDate = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.ROOT).withZone(ZoneOffset.UTC);
+
+	// requests for more ranges than this after merging get the whole file instead
+	private static final int maxRanges = 32;
+
 	private final String baseDir;
 
+	private long mapThreshold = Long.MAX_VALUE;
+	private MappedFileCache mappedFiles = null;
+
 	public SimpleHTTPHandler(String baseDir) {
 		this.baseDir = baseDir;
 	}
 
+	// serve files of at least minSize bytes from memory mappings, keeping at most maxSize bytes mapped
+	public void setMemoryMapping(long minSize, long maxSize) {
+		if (maxSize <= 0L) {
+			this.mapThreshold = Long.MAX_VALUE;
+			this.mappedFiles = null;
+		} else {
+			this.mapThreshold = Math.max(minSize, 1L);
+			this.mappedFiles = new MappedFileCache(maxSize);
+		}
+	}
+
+	// true if the Accept-Encoding header allows the content coding
+	private static boolean accepts(@Nullable String accept, @NotNull String coding) {
+		if (accept == null)
+			return false;
+
+		float any = 0f;
+
+		for (String item : accept.split(",")) {
+			int i = item.indexOf(';');
+			String name = (i >= 0 ? item.substring(0, i) : item).trim();
+			float q = 1f;
+
+			if (i >= 0) {
+				String param = item.substring(i + 1).trim();
+				if (param.startsWith("q=")) {
+					try {
+						q = Float.parseFloat(param.substring(2));
+					} catch (Exception e) {
+						q = 0f;
+					}
+				}
+			}
+
+			if (name.equalsIgnoreCase(coding))
+				return q > 0f;
+			if (name.equals("*"))
+				any = q;
+		}
+
+		return any > 0f;
+	}
+
+	private static boolean isCompressible(@NotNull String mime) {
+		return mime.startsWith("text/") || mime.equals("application/json") || mime.equals("application/xml") ||
+				mime.equals("application/rtf") || mime.equals("image/svg+xml") || mime.equals("image/bmp") ||
+				mime.equals("font/otf") || mime.equals("font/ttf");
+	}
+
+	// writes a gzip variant next to every compressible file of at least minSize bytes that does not
+	// have an up-to-date one yet, variants that would not be smaller than the file are not kept
+	public int precompress(long minSize) throws IOException {
+		final int[] count = {0};
+		final Path base = Paths.get(baseDir);
+
+		Files.walkFileTree(base, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				String name = file.getFileName().toString();
+				if (!attrs.isRegularFile() || attrs.size() < minSize || name.endsWith(".gz") || name.endsWith(".br"))
+					return FileVisitResult.CONTINUE;
+				if (!isCompressible(getMimeType(name)))
+					return FileVisitResult.CONTINUE;
+
+				Path target = file.resolveSibling(name + ".gz");
+				if (Files.exists(target) && Files.getLastModifiedTime(target).compareTo(attrs.lastModifiedTime()) >= 0)
+					return FileVisitResult.CONTINUE;
+
+				Path temp = file.resolveSibling("." + name + ".gz.tmp");
+
+				try {
+					try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(temp), 65536) {{
+						def.setLevel(Deflater.BEST_COMPRESSION);
+					}}) {
+						Files.copy(file, out);
+					}
+
+					if (Files.size(temp) < attrs.size()) {
+						Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+						count[0]++;
+					}
+				} finally {
+					Files.deleteIfExists(temp);
+				}
+
+				return FileVisitResult.CONTINUE;
+			}
+		});
+
+		return count[0];
+	}
+
+	// the entity tag of a file, only strong once the modification time can no longer change within its resolution
+	@NotNull
+	private static String entityTag(@NotNull BasicFileAttributes attrs, @Nullable String coding, long now) {
+		long modified = attrs.lastModifiedTime().toMillis();
+		String tag = "\"" + Long.toHexString(attrs.size()) + "-" + Long.toHexString(modified) + (coding == null ? "" : "-" + coding) + "\"";
+		return now - modified < 1000L ? "W/" + tag : tag;
+	}
+
+	private static long parseDate(@Nullable String value) {
+		if (value == null)
+			return -1L;
+
+		try {
+			return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+		} catch (DateTimeException e) {
+			return -1L;
+		}
+	}
+
+	// true if the list of an If-Match or If-None-Match header contains the tag, weak tags only match with weak comparison
+	private static boolean matches(@NotNull String list, @NotNull String tag, boolean weak) {
+		if (list.trim().equals("*"))
+			return true;
+		if (!weak && tag.startsWith("W/"))
+			return false;
+
+		String opaque = tag.startsWith("W/") ? tag.substring(2) : tag;
+
+		for (String item : list.split(",")) {
+			item = item.trim();
+			if (item.startsWith("W/")) {
+				if (!weak)
+					continue;
+
+				item = item.substring(2);
+			}
+
+			if (item.equals(opaque))
+				return true;
+		}
+
+		return false;
+	}
+
+	// parses a bytes range set into sorted and merged {first, last} pairs, returns null if the header is invalid
+	// and should be ignored, or an empty list if none of the ranges can be satisfied
+	@Nullable
+	private static List<long[]> parseRanges(@NotNull String value, long size) {
+		value = value.trim();
+		if (!value.regionMatches(true, 0, "bytes=", 0, 6))
+			return null;
+
+		List<long[]> ranges = new ArrayList<>();
+
+		for (String spec : value.substring(6).split(",")) {
+			spec = spec.trim();
+			if (spec.isEmpty())
+				continue;
+
+			int i = spec.indexOf('-');
+			if (i < 0)
+				return null;
+
+			long first, last;
+
+			try {
+				if (i == 0) {
+					// the last n bytes
+					long n = Long.parseLong(spec.substring(1));
+					if (n < 0L)
+						return null;
+					if (n == 0L || size == 0L)
+						continue;
+
+					first = Math.max(size - n, 0L);
+					last = size - 1L;
+				} else {
+					first = Long.parseLong(spec.substring(0, i));
+					last = i == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(i + 1));
+					if (first < 0L || last < first)
+						return null;
+					if (first >= size)
+						continue;
+
+					last = Math.min(last, size - 1L);
+				}
+			} catch (NumberFormatException e) {
+				return null;
+			}
+
+			ranges.add(new long[]{first, last});
+		}
+
+		if (ranges.size() > 1) {
+			// overlapping and adjacent ranges are sent as one, which also stops a request from asking for the same bytes many times
+			ranges.sort(Comparator.comparingLong(r -> r[0]));
+
+			List<long[]> merged = new ArrayList<>(ranges.size());
+			long[] prev = null;
+
+			for (long[] range : ranges) {
+				if (prev != null && range[0] <= prev[1] + 1L) {
+					prev[1] = Math.max(prev[1], range[1]);
+				} else {
+					merged.add(range);
+					prev = range;
+				}
+			}
+
+			ranges = merged;
+		}
+
+		return ranges;
+	}
+
+	@NotNull
+	private static HTTPResponse notModified(@NotNull Headers headers) {
+		headers.remove("Content-Type");
+		headers.remove("Content-Encoding");
+		return new HTTPResponse(304, "", headers);
+	}
+
+	// a range request with If-Range only gets a part if the representation is still the one the client has,
+	// which needs a strong validator
+	private static boolean rangeApplies(@Nullable String ifRange, @NotNull String etag, @Nullable String lastModified, long seconds, long now) {
+		if (ifRange == null)
+			return true;
+
+		ifRange = ifRange.trim();
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/"))
+			return !etag.startsWith("W/") && ifRange.equals(etag);
+
+		// a modification date is only strong if it is at least a second older than the response date
+		return lastModified != null && now - seconds >= 1000L && ifRange.equals(lastModified);
+	}
+
+	@NotNull
+	private static Body slice(@NotNull Path path, @Nullable MappedFileCache.Entry entry, long position, long length) {
+		return entry == null ? Body.from(path, position, length) : entry.slice(position, length);
+	}
+
 	private static String getFilePath(String base, String path) {
 		File file = new File(base, path);
 		if (file.exists()) {
@@ -163,22 +419,129 @@ public final class SimpleHTTPHandler implements HTTPHandler {
 				), Body.from("301 Moved Permanently"));
 			}
 
-			long size = new File(file).length();
+			Path filePath = Paths.get(file);
+			BasicFileAttributes attrs = Files.readAttributes(filePath, BasicFileAttributes.class);
 			String mime = getMimeType(file);
 
-			if (method.equals("HEAD")) {
-				return new HTTPResponse(200, "", new Headers(
-						"Content-Type: " + mime,
-						"Content-Length: " + size
-				));
+			Headers headers = new Headers("Content-Type: " + mime);
+			if (isCompressible(mime)) {
+				headers.set("Vary", "Accept-Encoding");
+
+				// serve a precompressed variant that is at least as new as the file itself
+				String accept = request.headers.get("accept-encoding");
+				for (String[] variant : variants) {
+					if (!accepts(accept, variant[0]))
+						continue;
+
+					Path encoded = Paths.get(file + variant[1]);
+					BasicFileAttributes a;
+
+					try {
+						a = Files.readAttributes(encoded, BasicFileAttributes.class);
+					} catch (IOException e) {
+						continue;
+					}
+
+					if (a.isRegularFile() && a.lastModifiedTime().compareTo(attrs.lastModifiedTime()) >= 0) {
+						headers.set("Content-Encoding", variant[0]);
+						filePath = encoded;
+						attrs = a;
+						break;
+					}
+				}
+			}
+
+			long size = attrs.size();
+			long now = System.currentTimeMillis();
+			long modified = attrs.lastModifiedTime().toMillis();
+			String etag = entityTag(attrs, headers.get("content-encoding"), now);
+
+			headers.set("Accept-Ranges", "bytes");
+			headers.set("ETag", etag);
+			// a date in the future is not a valid last modification time
+			if (modified <= now)
+				headers.set("Last-Modified", httpDate.format(Instant.ofEpochMilli(modified)));
+
+			// preconditions in the order of RFC 9110 13.2.2, dates only count to the second
+			long seconds = modified / 1000L * 1000L;
+			String ifMatch = request.headers.get("if-match");
+			if (ifMatch != null) {
+				if (!matches(ifMatch, etag, false))
+					return new HTTPResponse(412, "", headers);
+			} else {
+				long since = parseDate(request.headers.get("if-unmodified-since"));
+				if (since >= 0L && seconds > since)
+					return new HTTPResponse(412, "", headers);
+			}
+
+			String ifNoneMatch = request.headers.get("if-none-match");
+			if (ifNoneMatch != null) {
+				if (matches(ifNoneMatch, etag, true))
+					return notModified(headers);
 			} else {
-				return new HTTPResponse(200, "", new Headers(
-						"Content-Type: " + mime,
-						"Content-Length: " + size
-				), Body.from(Files.newInputStream(Paths.get(file), StandardOpenOption.READ)));
+				long since = parseDate(request.headers.get("if-modified-since"));
+				if (since >= 0L && seconds <= since)
+					return notModified(headers);
 			}
-		} else return new HTTPResponse(404, "", new Headers(
-				"Content-Type: text/plain"
-		), Body.from("404 Not Found"));
+
+			String range = method.equals("GET") ? request.headers.get("range") : null;
+			if (range != null && !rangeApplies(request.headers.get("if-range"), etag, headers.get("last-modified"), seconds, now))
+				range = null;
+
+			List<long[]> ranges = range == null ? null : parseRanges(range, size);
+			if (ranges != null && ranges.isEmpty()) {
+				headers.remove("Content-Type");
+				headers.set("Content-Range", "bytes */" + size);
+				return new HTTPResponse(416, "", headers);
+			}
+
+			if (ranges != null && ranges.size() > maxRanges)
+				ranges = null;
+
+			if (method.equals("HEAD")) {
+				headers.set("Content-Length", Long.toString(size));
+				return new HTTPResponse(200, "", headers);
+			}
+
+			MappedFileCache.Entry entry = null;
+			MappedFileCache mappedFiles = this.mappedFiles;
+			if (mappedFiles != null && size >= mapThreshold)
+				entry = mappedFiles.get(filePath, attrs);
+
+			if (ranges == null) {
+				headers.set("Content-Length", Long.toString(size));
+				return new HTTPResponse(200, "", headers, slice(filePath, entry, 0L, size));
+			}
+
+			if (ranges.size() == 1) {
+				long[] r = ranges.get(0);
+				long length = r[1] - r[0] + 1L;
+				headers.set("Content-Range", "bytes " + r[0] + "-" + r[1] + "/" + size);
+				headers.set("Content-Length", Long.toString(length));
+				return new HTTPResponse(206, "", headers, slice(filePath, entry, r[0], length));
+			}
+
+			String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+			Body[] parts = new Body[ranges.size() * 2 + 1];
+			long length = 0L;
+			int n = 0;
+
+			for (long[] r : ranges) {
+				byte[] head = ("\r\n--" + boundary + "\r\nContent-Type: " + mime + "\r\nContent-Range: bytes " +
+						r[0] + "-" + r[1] + "/" + size + "\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+
+				parts[n++] = Body.from(head);
+				parts[n++] = slice(filePath, entry, r[0], r[1] - r[0] + 1L);
+				length += head.length + r[1] - r[0] + 1L;
+			}
+
+			byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8);
+			parts[n] = Body.from(end);
+			length += end.length;
+
+			headers.set("Content-Type", "multipart/byteranges; boundary=" + boundary);
+			headers.set("Content-Length", Long.toString(length));
+			return new HTTPResponse(206, "", headers, Body.concat(parts));
+		} else return msg404;
 	}
 }
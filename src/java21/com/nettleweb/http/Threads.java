@@ -0,0 +1,21 @@
+package com.nettleweb.http;
+
+import org.jetbrains.annotations.*;
+
+import java.util.concurrent.*;
+
+final class Threads {
+	private static final ThreadFactory factory = Thread.ofVirtual().name("http-virtual-", 0L).factory();
+	private static final Executor executor = r -> factory.newThread(r).start();
+
+	private Threads() {}
+
+	@Nullable
+	public static Executor virtualExecutor() {
+		return executor;
+	}
+
+	public static boolean isVirtual(@NotNull Thread thread) {
+		return thread.isVirtual();
+	}
+}
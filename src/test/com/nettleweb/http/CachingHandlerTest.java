@@ -0,0 +1,133 @@
+package com.nettleweb.http;
+
+import org.junit.jupiter.api.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CachingHandlerTest {
+	private final AtomicInteger calls = new AtomicInteger();
+
+	// responds with the number of the call, with the headers given in the query
+	private HTTPResponse origin(HTTPRequest request) {
+		int n = calls.incrementAndGet();
+		Headers headers = new Headers();
+		int i = request.url.indexOf('?');
+		if (i >= 0) {
+			for (String field : request.url.substring(i + 1).split("&"))
+				headers.add(field.substring(0, field.indexOf('=')), field.substring(field.indexOf('=') + 1).replace('+', ' '));
+		}
+
+		return new HTTPResponse(200, "OK", headers, Body.from("call " + n + (headers.has("vary") ? " " + request.headers.get("accept-language") : "")));
+	}
+
+	private static HTTPRequest get(String url, String... headers) {
+		return new HTTPRequest("http://localhost" + url, "GET", new Headers(headers));
+	}
+
+	@Test
+	void servesFromCacheUntilExpired() throws Exception {
+		CachingHandler cache = new CachingHandler(this::origin, 1 << 20, 500L);
+
+		for (int i = 0; i < 3; i++)
+			assertEquals("call 1", cache.handleRequest(get("/a")).text());
+
+		assertEquals(1L, cache.misses());
+		assertEquals(2L, cache.hits());
+
+		Thread.sleep(600L);
+		assertEquals("call 2", cache.handleRequest(get("/a")).text());
+	}
+
+	@Test
+	void respectsResponseDirectives() throws Exception {
+		CachingHandler cache = new CachingHandler(this::origin, 1 << 20, 60000L);
+
+		// s-maxage wins over max-age, no-store, private and cookies are never shared
+		assertEquals("call 1", cache.handleRequest(get("/s?cache-control=max-age=0,+s-maxage=60")).text());
+		assertEquals("call 1", cache.handleRequest(get("/s?cache-control=max-age=0,+s-maxage=60")).text());
+
+		for (String url : new String[] { "/n?cache-control=no-store", "/p?cache-control=private", "/c?set-cookie=a=1", "/z?cache-control=max-age=0" }) {
+			int before = calls.get();
+			cache.handleRequest(get(url)).text();
+			cache.handleRequest(get(url)).text();
+			assertEquals(before + 2, calls.get(), url);
+		}
+	}
+
+	@Test
+	void passesThroughUnsafeRequests() throws Exception {
+		CachingHandler cache = new CachingHandler(this::origin, 1 << 20, 60000L);
+		cache.handleRequest(get("/a")).text();
+
+		assertEquals("call 2", cache.handleRequest(new HTTPRequest("http://localhost/a", "POST", new Headers(), Body.from("x"))).text());
+		assertEquals("call 3", cache.handleRequest(get("/a", "Authorization: Basic eA==")).text());
+		assertEquals("call 1", cache.handleRequest(get("/a")).text());
+
+		cache.invalidate("http://localhost/a");
+		assertEquals("call 4", cache.handleRequest(get("/a")).text());
+	}
+
+	@Test
+	void conditionalRequests() throws Exception {
+		CachingHandler cache = new CachingHandler(this::origin, 1 << 20, 60000L);
+		HTTPResponse response = cache.handleRequest(get("/e?etag=\"v1\""));
+		assertEquals(200, response.status);
+		response.text();
+
+		assertEquals(304, cache.handleRequest(get("/e?etag=\"v1\"", "If-None-Match: W/\"v1\"")).status);
+		assertEquals(200, cache.handleRequest(get("/e?etag=\"v1\"", "If-None-Match: \"v2\"")).status);
+		assertEquals(1, calls.get());
+	}
+
+	@Test
+	void variantsAreKeptApart() throws Exception {
+		CachingHandler cache = new CachingHandler(this::origin, 1 << 20, 60000L);
+		String url = "/v?vary=Accept-Language";
+
+		assertEquals("call 1 en", cache.handleRequest(get(url, "Accept-Language: en")).text());
+		assertEquals("call 2 de", cache.handleRequest(get(url, "Accept-Language: de")).text());
+		assertEquals("call 1 en", cache.handleRequest(get(url, "Accept-Language: en")).text());
+		assertEquals("call 2 de", cache.handleRequest(get(url, "Accept-Language: de")).text());
+	}
+
+	// concurrent misses for the same response reach the handler once
+	@Test
+	void coalescesConcurrentMisses() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		CachingHandler cache = new CachingHandler(request -> {
+			release.await();
+			return origin(request);
+		}, 1 << 20, 0L);
+
+		int count = 8;
+		ExecutorService executor = Executors.newFixedThreadPool(count);
+
+		try {
+			List<Future<String>> results = new ArrayList<>();
+			for (int i = 0; i < count; i++)
+				results.add(executor.submit(() -> cache.handleRequest(get("/slow")).text()));
+
+			// the first request is in the handler, the others queue up behind it
+			for (int i = 0; i < 100 && cache.misses() < 1; i++)
+				Thread.sleep(10L);
+
+			Thread.sleep(300L);
+			release.countDown();
+
+			for (Future<String> result : results)
+				assertEquals("call 1", result.get(5, TimeUnit.SECONDS));
+
+			assertEquals(1, calls.get());
+			assertEquals(count - 1L, cache.coalesced());
+
+			// a lifetime of 0 only shares the response with requests that arrived while it was handled
+			assertEquals("call 2", cache.handleRequest(get("/slow")).text());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
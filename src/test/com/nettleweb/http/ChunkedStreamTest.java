@@ -0,0 +1,126 @@
+package com.nettleweb.http;
+
+import org.junit.jupiter.api.*;
+
+import java.io.*;
+import java.nio.charset.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChunkedStreamTest {
+	private static final String encoded = "4;name=value\r\nWiki\r\n5\r\npedia\r\nE\r\n in\r\n\r\nchunks.\r\n0\r\nExpires: never\r\nX-Checksum: abc\r\n\r\n";
+	private static final String decoded = "Wiki" + "pedia" + " in\r\n\r\nchunks.";
+
+	private static InputStream source(String data, boolean byteByByte) {
+		InputStream in = new ByteArrayInputStream(data.getBytes(StandardCharsets.ISO_8859_1));
+		if (!byteByByte)
+			return in;
+
+		return new FilterInputStream(in) {
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return super.read(b, off, Math.min(len, 1));
+			}
+		};
+	}
+
+	private static String readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[7];
+		int n;
+		while ((n = in.read(buf, 0, buf.length)) >= 0)
+			out.write(buf, 0, n);
+
+		return new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+	}
+
+	@Test
+	void decodesWithTrailers() throws Exception {
+		for (boolean byteByByte : new boolean[] { false, true }) {
+			Streams.ChunkedStream stream = new Streams.ChunkedStream(source(encoded + "next", byteByByte));
+			assertNull(stream.trailers());
+
+			assertEquals(decoded, readAll(stream));
+			assertTrue(stream.finished());
+			assertEquals(-1, stream.read());
+			assertEquals("never", stream.trailers().get("expires"));
+			assertEquals("abc", stream.trailers().get("X-Checksum"));
+			assertEquals(2, stream.trailers().size());
+		}
+	}
+
+	@Test
+	void noTrailers() throws Exception {
+		Streams.ChunkedStream stream = new Streams.ChunkedStream(source("3\r\nabc\r\n0\r\n\r\n", false));
+		assertEquals("abc", readAll(stream));
+		assertTrue(stream.finished());
+		assertNull(stream.trailers());
+	}
+
+	@Test
+	void bareLineFeeds() throws Exception {
+		Streams.ChunkedStream stream = new Streams.ChunkedStream(source("3\nabc\n0\nX-T: 1\n\n", false));
+		assertEquals("abc", readAll(stream));
+		assertEquals("1", stream.trailers().get("x-t"));
+	}
+
+	@Test
+	void chunksLargerThanBuffer() throws Exception {
+		String data = RawClient.repeat('x', 50000);
+		String body = Integer.toHexString(data.length()) + "\r\n" + data + "\r\n1\r\ny\r\n0\r\n\r\n";
+
+		for (boolean byteByByte : new boolean[] { false, true })
+			assertEquals(data + "y", readAll(new Streams.ChunkedStream(source(body, byteByByte))));
+	}
+
+	@Test
+	void rejectsMalformedInput() {
+		for (String body : new String[] {
+				"zz\r\nabc\r\n0\r\n\r\n",
+				";ext\r\n0\r\n\r\n",
+				"3\r\nabcXX\r\n0\r\n\r\n",
+				"3\r\nab",
+				"3\r\nabc\r\n",
+				"11111111111111111\r\n",
+				"0\r\nno colon\r\n\r\n",
+				"0\r\n" + RawClient.repeat('x', 10000) + "\r\n\r\n",
+		}) {
+			assertThrows(IOException.class, () -> readAll(new Streams.ChunkedStream(source(body, false))), body);
+		}
+	}
+
+	// trailers sent by the server reach the client, and trailers sent by the client reach the handler
+	@Test
+	void trailersEndToEnd() throws Exception {
+		HTTPServer server = RawClient.start(28141, 0, r -> {
+			HTTPResponse response;
+			if (r.body() == null) {
+				response = new HTTPResponse(200, "OK", new Headers(), Body.from(new ByteArrayInputStream("streamed".getBytes(StandardCharsets.UTF_8))));
+			} else {
+				String text = r.body().text();
+				response = new HTTPResponse(200, "OK", new Headers(), Body.from(text + ":" + r.body().trailers().get("x-sum")));
+			}
+
+			response.trailers = new Headers("X-Checksum: 1234");
+			return response;
+		});
+		HTTPClient client = new HTTPClient();
+
+		try {
+			HTTPResponse response = client.fetch(new HTTPRequest("http://127.0.0.1:28141/"));
+			assertEquals("streamed", response.text());
+			assertEquals("1234", response.trailers().get("x-checksum"));
+
+			try (RawClient raw = new RawClient(28141)) {
+				raw.write("POST / HTTP/1.1\r\nHost: localhost\r\nTransfer-Encoding: chunked\r\n\r\n3\r\nabc\r\n0\r\nX-Sum: 6\r\n\r\n");
+
+				RawClient.Response posted = raw.read();
+				assertEquals("abc:6", posted.body);
+				assertEquals("1234", posted.trailers.get("x-checksum"));
+			}
+		} finally {
+			client.close();
+			server.close();
+		}
+	}
+}
@@ -0,0 +1,255 @@
+package com.nettleweb.http;
+
+import org.junit.jupiter.api.*;
+
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HTTPCacheTest {
+	// every server gets its own port, a closed listener may not have released the previous one yet
+	private static final AtomicInteger ports = new AtomicInteger(28151);
+
+	// requests that reached the server, with the validators they carried
+	private final List<String> origin = Collections.synchronizedList(new ArrayList<>());
+	private final AtomicInteger version = new AtomicInteger(1);
+	private HTTPClient client;
+	private String base;
+
+	private HTTPResponse handle(HTTPRequest request) {
+		String path = RawClient.path(request);
+		String etag = "\"v" + version.get() + "\"";
+		String inm = request.headers.get("if-none-match");
+		String ims = request.headers.get("if-modified-since");
+		origin.add(path + (inm != null ? " inm=" + inm : "") + (ims != null ? " ims" : ""));
+
+		Headers headers = new Headers();
+		headers.set("x-version", String.valueOf(version.get()));
+
+		switch (path.indexOf('?') < 0 ? path : path.substring(0, path.indexOf('?'))) {
+			case "/fresh":
+				headers.set("cache-control", "max-age=60");
+				break;
+			case "/stale":
+				headers.set("cache-control", "max-age=0");
+				headers.set("etag", etag);
+				break;
+			case "/aged":
+				headers.set("cache-control", "max-age=60");
+				headers.set("age", "120");
+				headers.set("etag", etag);
+				break;
+			case "/modified":
+				headers.set("cache-control", "no-cache");
+				headers.set("last-modified", "Mon, 01 Jan 2024 00:00:00 GMT");
+				if (ims != null)
+					return new HTTPResponse(304, "Not Modified", headers);
+				break;
+			case "/swr":
+				headers.set("cache-control", "max-age=0, stale-while-revalidate=60");
+				headers.set("etag", etag);
+				break;
+			case "/nostore":
+				headers.set("cache-control", "no-store, max-age=60");
+				break;
+			case "/vary":
+				headers.set("cache-control", "max-age=60");
+				headers.set("vary", "Accept-Language");
+				return new HTTPResponse(200, "OK", headers, Body.from(path + " " + request.headers.get("accept-language")));
+		}
+
+		if (etag.equals(inm))
+			return new HTTPResponse(304, "Not Modified", headers);
+
+		return new HTTPResponse(200, "OK", headers, Body.from(path + " v" + version.get()));
+	}
+
+	private void withClient(HTTPCache cache, Callable<?> test) throws Exception {
+		int port = ports.getAndIncrement();
+		HTTPServer server = RawClient.start(port, 0, this::handle);
+		base = "http://127.0.0.1:" + port;
+		client = new HTTPClient();
+		client.setCache(cache);
+
+		try {
+			test.call();
+		} finally {
+			client.close();
+			server.close();
+			cache.close();
+		}
+	}
+
+	private HTTPResponse get(String path, String... headers) {
+		return client.fetch(new HTTPRequest(base + path, "GET", new Headers(headers)));
+	}
+
+	@Test
+	void freshResponsesSkipOrigin() throws Exception {
+		HTTPCache cache = new HTTPCache(1 << 20);
+		withClient(cache, () -> {
+			for (int i = 0; i < 3; i++) {
+				HTTPResponse response = get("/fresh");
+				assertEquals(200, response.status);
+				assertEquals("/fresh v1", response.text());
+				assertEquals(i > 0, response.headers.has("age"));
+			}
+
+			assertEquals(1, origin.size());
+			assertEquals(1L, cache.misses());
+			assertEquals(2L, cache.hits());
+			return null;
+		});
+	}
+
+	@Test
+	void staleResponsesAreRevalidated() throws Exception {
+		HTTPCache cache = new HTTPCache(1 << 20);
+		withClient(cache, () -> {
+			assertEquals("/stale v1", get("/stale").text());
+
+			// not modified, the stored body is served with the headers of the 304 response
+			version.set(1);
+			HTTPResponse response = get("/stale");
+			assertEquals(200, response.status);
+			assertEquals("/stale v1", response.text());
+			assertEquals("/stale inm=\"v1\"", origin.get(1));
+			assertEquals(1L, cache.revalidations());
+
+			// modified, the new response replaces the stored one and its validator is used next
+			version.set(2);
+			assertEquals("/stale v2", get("/stale").text());
+			assertEquals("/stale inm=\"v1\"", origin.get(2));
+
+			assertEquals("/stale v2", get("/stale").text());
+			assertEquals("/stale inm=\"v2\"", origin.get(3));
+			assertEquals(0L, cache.hits());
+			return null;
+		});
+	}
+
+	@Test
+	void ageFromOriginCountsTowardsFreshness() throws Exception {
+		HTTPCache cache = new HTTPCache(1 << 20);
+		withClient(cache, () -> {
+			get("/aged").text();
+			assertEquals("/aged v1", get("/aged").text());
+
+			assertEquals(2, origin.size());
+			assertEquals("/aged inm=\"v1\"", origin.get(1));
+			assertEquals(0L, cache.hits());
+			return null;
+		});
+	}
+
+	@Test
+	void lastModifiedValidator() throws Exception {
+		HTTPCache cache = new HTTPCache(1 << 20);
+		withClient(cache, () -> {
+			assertEquals("/modified v1", get("/modified").text());
+			assertEquals("/modified v1", get("/modified").text());
+
+			assertEquals("/modified ims", origin.get(1));
+			assertEquals(1L, cache.revalidations());
+			return null;
+		});
+	}
+
+	@Test
+	void requestDirectives() throws Exception {
+		HTTPCache cache = new HTTPCache(1 << 20);
+		withClient(cache, () -> {
+			get("/fresh").text();
+
+			// no-cache from the client forces a round trip even for a fresh response
+			get("/fresh", "Cache-Control: no-cache").text();
+			assertEquals(2, origin.size());
+
+			assertEquals(504, get("/other", "Cache-Control: only-if-cached").status);
+			assertEquals("/fresh v1", get("/fresh", "Cache-Control: only-if-cached").text());
+			assertEquals(2, origin.size());
+			return null;
+		});
+	}
+
+	@Test
+	void staleWhileRevalidate() throws Exception {
+		HTTPCache cache = new HTTPCache(1 << 20);
+		withClient(cache, () -> {
+			get("/swr").text();
+
+			version.set(2);
+			assertEquals("/swr v1", get("/swr").text());
+			assertEquals(1L, cache.hits());
+
+			for (int i = 0; i < 100 && origin.size() < 2; i++)
+				Thread.sleep(20);
+
+			assertEquals("/swr inm=\"v1\"", origin.get(1));
+			for (int i = 0; i < 100 && !get("/swr").text().equals("/swr v2"); i++)
+				Thread.sleep(20);
+
+			assertEquals("/swr v2", get("/swr").text());
+			return null;
+		});
+	}
+
+	@Test
+	void noStoreAndVary() throws Exception {
+		HTTPCache cache = new HTTPCache(1 << 20);
+		withClient(cache, () -> {
+			get("/nostore").text();
+			get("/nostore").text();
+			assertEquals(2, origin.size());
+
+			assertEquals("/vary en", get("/vary", "Accept-Language: en").text());
+			assertEquals("/vary de", get("/vary", "Accept-Language: de").text());
+			assertEquals("/vary en", get("/vary", "Accept-Language: en").text());
+			assertEquals("/vary de", get("/vary", "Accept-Language: de").text());
+			assertEquals(4, origin.size());
+			return null;
+		});
+	}
+
+	@Test
+	void unsafeMethodsInvalidate() throws Exception {
+		HTTPCache cache = new HTTPCache(1 << 20);
+		withClient(cache, () -> {
+			get("/fresh").text();
+			get("/fresh").text();
+			assertEquals(1, origin.size());
+
+			client.fetch(new HTTPRequest(base + "/fresh", "POST", null, Body.from("x"))).text();
+			version.set(2);
+			assertEquals("/fresh v2", get("/fresh").text());
+			assertEquals(3, origin.size());
+			return null;
+		});
+	}
+
+	@Test
+	void diskTierSurvivesReopen() throws Exception {
+		Path file = Files.createTempFile("http-cache", ".bin");
+
+		try {
+			HTTPCache cache = new HTTPCache(1 << 20, file, 1 << 20);
+			withClient(cache, () -> {
+				get("/fresh").text();
+				cache.close();
+
+				try (HTTPCache reopened = new HTTPCache(1 << 20, file, 1 << 20)) {
+					client.setCache(reopened);
+					assertEquals("/fresh v1", get("/fresh").text());
+					assertEquals(1, origin.size());
+					assertEquals(1L, reopened.hits());
+				}
+				return null;
+			});
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package com.nettleweb.http;
+
+import org.junit.jupiter.api.*;
+
+import java.io.*;
+import java.nio.charset.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HeadersTest {
+	// below and above the size at which lookups switch from a linear scan to the hash index
+	private static final int[] sizes = { 4, 40 };
+
+	private static Headers filled(int n) {
+		Headers headers = new Headers();
+		for (int i = 0; i < n; i++)
+			headers.add("X-Field-" + i, "v" + i);
+
+		return headers;
+	}
+
+	@Test
+	void lookupIgnoresCase() {
+		for (int n : sizes) {
+			Headers headers = filled(n);
+			headers.add("Content-Type", " text/plain ");
+
+			assertEquals("text/plain", headers.get("content-type"));
+			assertEquals("text/plain", headers.get("CONTENT-TYPE"));
+			assertEquals("v1", headers.get("x-FIELD-1"));
+			assertTrue(headers.has("X-Field-0"));
+			assertFalse(headers.has("x-field"));
+			assertNull(headers.get("missing"));
+			assertNull(headers.get(null));
+		}
+	}
+
+	@Test
+	void keepsInsertionOrder() {
+		for (int n : sizes) {
+			Headers headers = filled(n);
+			headers.add("Set-Cookie", "a=1");
+			headers.add("X-Field-0", "again");
+			headers.add("Set-Cookie", "b=2");
+
+			String[] keys = headers.keys();
+			assertEquals(n + 3, keys.length);
+			assertEquals("x-field-0", keys[0]);
+			assertEquals("set-cookie", keys[n]);
+			assertArrayEquals(new String[] { "a=1", "b=2" }, headers.getAll("set-cookie"));
+			assertArrayEquals(new String[] { "v0", "again" }, headers.getAll("x-field-0"));
+			assertEquals("v0", headers.get("x-field-0"));
+		}
+	}
+
+	@Test
+	void setReplacesInPlace() {
+		for (int n : sizes) {
+			Headers headers = filled(n);
+			headers.add("X-Field-1", "dup");
+
+			Header[] removed = headers.set("x-field-1", "new");
+			assertEquals(2, removed.length);
+			assertEquals(n, headers.size());
+			assertEquals("x-field-1", headers.keys()[1]);
+			assertArrayEquals(new String[] { "new" }, headers.getAll("x-field-1"));
+
+			assertEquals(0, headers.set("X-New", "x").length);
+			assertEquals("x", headers.get("x-new"));
+		}
+	}
+
+	@Test
+	void removeKeepsOthersFindable() {
+		for (int n : sizes) {
+			Headers headers = filled(n);
+			headers.add("X-Field-2", "dup");
+
+			assertEquals(2, headers.remove("X-FIELD-2").length);
+			assertFalse(headers.has("x-field-2"));
+			assertEquals(n - 1, headers.size());
+
+			for (int i = 0; i < n; i++) {
+				if (i != 2)
+					assertEquals("v" + i, headers.get("x-field-" + i));
+			}
+
+			assertEquals(0, headers.remove("x-field-2").length);
+		}
+	}
+
+	@Test
+	void commonNamesAreInterned() {
+		Headers headers = new Headers();
+		headers.add("Content-Type", "text/html");
+		headers.add("X-Custom", "1");
+
+		assertSame("content-type", headers.keys()[0]);
+		assertEquals("x-custom", headers.keys()[1]);
+
+		byte[] bytes = "Cache-Control".getBytes(StandardCharsets.ISO_8859_1);
+		assertSame("cache-control", Headers.commonName(bytes, 0, bytes.length));
+
+		bytes = "X-Unknown".getBytes(StandardCharsets.ISO_8859_1);
+		assertNull(Headers.commonName(bytes, 0, bytes.length));
+	}
+
+	@Test
+	void copiesAreIndependent() {
+		for (int n : sizes) {
+			Headers headers = filled(n);
+			Headers copy = new Headers(headers);
+			copy.set("x-field-0", "changed");
+			copy.add("x-extra", "1");
+
+			assertEquals("v0", headers.get("x-field-0"));
+			assertFalse(headers.has("x-extra"));
+			assertEquals("changed", copy.get("x-field-0"));
+			assertEquals("v" + (n - 1), copy.get("x-field-" + (n - 1)));
+		}
+	}
+
+	@Test
+	void serializationRebuildsIndex() throws Exception {
+		for (int n : sizes) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+				out.writeObject(filled(n));
+			}
+
+			Headers headers;
+			try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+				headers = (Headers) in.readObject();
+			}
+
+			assertEquals(n, headers.size());
+			assertEquals("v" + (n - 1), headers.get("X-Field-" + (n - 1)));
+
+			headers.add("x-after", "1");
+			assertEquals("1", headers.get("x-after"));
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package com.nettleweb.http;
+
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KeepAliveTest {
+	private static void sharedResponse(int port, int selectorThreads) throws Exception {
+		HTTPResponse shared = new HTTPResponse(200, "OK", new Headers(), Body.from("shared"));
+		HTTPServer server = RawClient.start(port, selectorThreads, r -> shared);
+
+		try {
+			try (RawClient client = new RawClient(port)) {
+				client.write("GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+				RawClient.Response response = client.read();
+				assertEquals("shared", response.body);
+				assertFalse(response.keepAlive());
+				assertTrue(client.closed());
+			}
+
+			// the close of the previous exchange must not stick to the shared response
+			try (RawClient client = new RawClient(port)) {
+				for (int i = 0; i < 3; i++) {
+					RawClient.Response response = client.get("/");
+					assertEquals("shared", response.body);
+					assertTrue(response.keepAlive());
+				}
+			}
+
+			assertEquals(0, shared.headers.size());
+		} finally {
+			server.close();
+		}
+	}
+
+	@Test
+	void sharedResponseThreaded() throws Exception {
+		sharedResponse(28111, 0);
+	}
+
+	@Test
+	void sharedResponseSelector() throws Exception {
+		sharedResponse(28112, 1);
+	}
+
+	@Test
+	void closeAfterKeptAliveRequests() throws Exception {
+		HTTPServer server = RawClient.start(28113, 0, r -> new HTTPResponse(200, "OK", new Headers(), Body.from(RawClient.path(r))));
+
+		try (RawClient client = new RawClient(28113)) {
+			assertTrue(client.get("/1").keepAlive());
+			assertTrue(client.get("/2").keepAlive());
+
+			client.write("GET /3 HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+			RawClient.Response response = client.read();
+			assertEquals("/3", response.body);
+			assertFalse(response.keepAlive());
+			assertTrue(client.closed());
+		} finally {
+			server.close();
+		}
+	}
+
+	@Test
+	void maxRequestsClosesConnection() throws Exception {
+		HTTPServer server = new HTTPServer("127.0.0.1", 28114);
+		server.setMaxRequests(2);
+		server.setLogger(null);
+		server.setHandler(r -> new HTTPResponse(200, "OK", new Headers(), Body.from(RawClient.path(r))));
+		server.start();
+
+		try (RawClient client = new RawClient(28114)) {
+			assertTrue(client.get("/1").keepAlive());
+
+			RawClient.Response last = client.get("/2");
+			assertEquals("/2", last.body);
+			assertFalse(last.keepAlive());
+			assertTrue(client.closed());
+		} finally {
+			server.close();
+		}
+	}
+
+	// with the default executor an idle kept-alive client must not hold up other connections
+	@Test
+	void idleClientDoesNotBlockOthers() throws Exception {
+		HTTPServer server = RawClient.start(28115, 0, r -> new HTTPResponse(200, "OK", new Headers(), Body.from(RawClient.path(r))));
+
+		try (RawClient idle = new RawClient(28115); RawClient other = new RawClient(28115)) {
+			assertEquals("/idle", idle.get("/idle").body);
+
+			long start = System.currentTimeMillis();
+			assertEquals("/other", other.get("/other").body);
+			assertTrue(System.currentTimeMillis() - start < 2000L);
+		} finally {
+			server.close();
+		}
+	}
+}
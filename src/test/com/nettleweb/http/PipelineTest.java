@@ -0,0 +1,112 @@
+package com.nettleweb.http;
+
+import org.junit.jupiter.api.*;
+
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PipelineTest {
+	private static final int count = 8;
+
+	// every request is written before the first response is read, earlier requests take longer to handle
+	private static void ordered(HTTPServer server, int port) throws Exception {
+		try (RawClient client = new RawClient(port)) {
+			StringBuilder requests = new StringBuilder();
+			for (int i = 0; i < count; i++)
+				requests.append("GET /").append(i).append(" HTTP/1.1\r\nHost: localhost\r\n\r\n");
+
+			client.write(requests.toString());
+
+			for (int i = 0; i < count; i++) {
+				RawClient.Response response = client.read();
+				assertEquals(200, response.status);
+				assertEquals("/" + i, response.body);
+				assertTrue(response.keepAlive());
+			}
+
+			assertEquals("/last", client.get("/last").body);
+		} finally {
+			server.close();
+		}
+	}
+
+	private static HTTPServer server(int port, int selectorThreads, boolean parallel) {
+		HTTPServer server = new HTTPServer("127.0.0.1", port, 255, Executors.newFixedThreadPool(4));
+		server.setSelectorThreads(selectorThreads);
+		server.setPipelineParallel(parallel);
+		server.setPipelineDepth(count);
+		server.setLogger(null);
+		server.setHandler(r -> {
+			String path = RawClient.path(r);
+			if (!path.equals("/last"))
+				Thread.sleep((count - Integer.parseInt(path.substring(1))) * 10L);
+
+			return new HTTPResponse(200, "OK", new Headers(), Body.from(path));
+		});
+		server.start();
+		return server;
+	}
+
+	@Test
+	void sequentialThreaded() throws Exception {
+		ordered(server(28131, 0, false), 28131);
+	}
+
+	@Test
+	void parallelThreaded() throws Exception {
+		ordered(server(28132, 0, true), 28132);
+	}
+
+	@Test
+	void sequentialSelector() throws Exception {
+		ordered(server(28133, 1, false), 28133);
+	}
+
+	@Test
+	void parallelSelector() throws Exception {
+		ordered(server(28134, 1, true), 28134);
+	}
+
+	@Test
+	void asyncHandlerSelector() throws Exception {
+		ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+		HTTPServer server = new HTTPServer("127.0.0.1", 28135);
+		server.setSelectorThreads(1);
+		server.setLogger(null);
+		server.setAsyncHandler(r -> {
+			String path = RawClient.path(r);
+			CompletableFuture<HTTPResponse> response = new CompletableFuture<>();
+			long delay = path.equals("/last") ? 0L : (count - Integer.parseInt(path.substring(1))) * 10L;
+			timer.schedule(() -> response.complete(new HTTPResponse(200, "OK", new Headers(), Body.from(path))), delay, TimeUnit.MILLISECONDS);
+			return response;
+		});
+		server.start();
+
+		try {
+			ordered(server, 28135);
+		} finally {
+			timer.shutdownNow();
+		}
+	}
+
+	// a request with a body in the middle of the pipeline must not swallow the requests after it
+	@Test
+	void bodyInPipeline() throws Exception {
+		HTTPServer server = RawClient.start(28136, 1, r -> new HTTPResponse(200, "OK", new Headers(), Body.from(RawClient.path(r) + ":" + (r.body() == null ? "" : r.body().text()))));
+
+		try (RawClient client = new RawClient(28136)) {
+			client.write("GET /a HTTP/1.1\r\nHost: localhost\r\n\r\n" +
+					"POST /b HTTP/1.1\r\nHost: localhost\r\nContent-Length: 4\r\n\r\nbody" +
+					"POST /c HTTP/1.1\r\nHost: localhost\r\nTransfer-Encoding: chunked\r\n\r\n2\r\nch\r\n0\r\n\r\n" +
+					"GET /d HTTP/1.1\r\nHost: localhost\r\n\r\n");
+
+			assertEquals("/a:", client.read().body);
+			assertEquals("/b:body", client.read().body);
+			assertEquals("/c:ch", client.read().body);
+			assertEquals("/d:", client.read().body);
+		} finally {
+			server.close();
+		}
+	}
+}
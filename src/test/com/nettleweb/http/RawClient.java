@@ -0,0 +1,147 @@
+package com.nettleweb.http;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.util.*;
+
+// minimal HTTP/1.1 client over a plain socket, so tests control exactly what goes on the wire
+final class RawClient implements Closeable {
+	final Socket socket;
+	private final InputStream in;
+
+	RawClient(int port) throws IOException {
+		socket = new Socket("127.0.0.1", port);
+		socket.setSoTimeout(5000);
+		in = new BufferedInputStream(socket.getInputStream());
+	}
+
+	static HTTPServer start(int port, int selectorThreads, HTTPHandler handler) {
+		HTTPServer server = new HTTPServer("127.0.0.1", port);
+		server.setSelectorThreads(selectorThreads);
+		server.setLogger(null);
+		server.setHandler(handler);
+		server.start();
+		return server;
+	}
+
+	// the path of a request received by the server
+	static String path(HTTPRequest request) {
+		return request.url.substring(request.url.indexOf('/', 8));
+	}
+
+	void write(String raw) throws IOException {
+		OutputStream out = socket.getOutputStream();
+		out.write(raw.getBytes(StandardCharsets.ISO_8859_1));
+		out.flush();
+	}
+
+	Response get(String path) throws IOException {
+		write("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n");
+		return read();
+	}
+
+	// reads one response, or returns null if the connection was closed before it started
+	Response read() throws IOException {
+		String status = line();
+		if (status == null)
+			return null;
+
+		Response response = new Response();
+		response.status = Integer.parseInt(status.split(" ")[1]);
+
+		String line;
+		while (!(line = line()).isEmpty()) {
+			int colon = line.indexOf(':');
+			response.headers.add(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+		}
+
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		String length = response.headers.get("content-length");
+
+		if ("chunked".equals(response.headers.get("transfer-encoding"))) {
+			int size;
+			while ((size = Integer.parseInt(line().split(";")[0].trim(), 16)) > 0) {
+				copy(body, size);
+				line();
+			}
+
+			while (!(line = line()).isEmpty()) {
+				int colon = line.indexOf(':');
+				response.trailers.add(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+			}
+		} else if (length != null) {
+			copy(body, Integer.parseInt(length));
+		} else if (response.status >= 200 && response.status != 204 && response.status != 304) {
+			int c;
+			while ((c = in.read()) >= 0)
+				body.write(c);
+		}
+
+		response.body = new String(body.toByteArray(), StandardCharsets.UTF_8);
+		return response;
+	}
+
+	// true once the server has closed the connection
+	boolean closed() throws IOException {
+		try {
+			return in.read() < 0;
+		} catch (SocketException e) {
+			return true;
+		}
+	}
+
+	private void copy(OutputStream out, int n) throws IOException {
+		for (int i = 0; i < n; i++) {
+			int c = in.read();
+			if (c < 0)
+				throw new EOFException();
+
+			out.write(c);
+		}
+	}
+
+	private String line() throws IOException {
+		StringBuilder builder = new StringBuilder();
+		int c;
+		while ((c = in.read()) != '\n') {
+			if (c < 0)
+				return builder.length() == 0 ? null : builder.toString();
+
+			builder.append((char) c);
+		}
+
+		int n = builder.length();
+		if (n > 0 && builder.charAt(n - 1) == '\r')
+			builder.setLength(n - 1);
+
+		return builder.toString();
+	}
+
+	@Override
+	public void close() throws IOException {
+		socket.close();
+	}
+
+	static final class Response {
+		int status;
+		final Headers headers = new Headers();
+		final Headers trailers = new Headers();
+		String body;
+
+		boolean keepAlive() {
+			return !"close".equalsIgnoreCase(headers.get("connection"));
+		}
+
+		@Override
+		public String toString() {
+			return status + " " + headers + body;
+		}
+	}
+
+	static String repeat(char c, int n) {
+		char[] chars = new char[n];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+}
@@ -0,0 +1,111 @@
+package com.nettleweb.http;
+
+import org.junit.jupiter.api.*;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RequestFramingTest {
+	private static HTTPRequest request(String head, String body) {
+		byte[] bytes = head.getBytes(StandardCharsets.ISO_8859_1);
+		RequestParser parser = new RequestParser(16384);
+		assertEquals(bytes.length, parser.parse(bytes, 0, bytes.length));
+		assertTrue(parser.done());
+
+		return Util.newRequest(parser, new ByteArrayInputStream(body.getBytes(StandardCharsets.ISO_8859_1)));
+	}
+
+	private static HTTPRequest post(String fields, String body) {
+		return request("POST /p HTTP/1.1\r\nHost: localhost\r\n" + fields + "\r\n", body);
+	}
+
+	@Test
+	void parsesByteByByte() {
+		byte[] bytes = "GET /a?b=c HTTP/1.1\r\nHost: localhost\r\nX-Long: some value\r\nX-Empty:\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+		RequestParser parser = new RequestParser(16384);
+
+		for (int i = 0; i < bytes.length; i++) {
+			assertFalse(parser.done());
+			parser.parse(new byte[] { bytes[i] }, 0, 1);
+		}
+
+		assertTrue(parser.done());
+		assertEquals("GET", parser.method());
+		assertEquals("/a?b=c", parser.target());
+		assertEquals("some value", parser.headers().get("x-long"));
+		assertEquals("", parser.headers().get("x-empty"));
+	}
+
+	@Test
+	void rejectsMalformedHeads() {
+		for (String head : new String[] {
+				"GET / HTTP/1.1\r\nHost : localhost\r\n\r\n",
+				"GET / HTTP/1.1\r\nBad\u0001: x\r\n\r\n",
+				"G T / HTTP/1.1\r\n\r\n",
+				"GET / HTTP/2.0\r\n\r\n",
+		}) {
+			byte[] bytes = head.getBytes(StandardCharsets.ISO_8859_1);
+			assertThrows(ProtocolError.class, () -> new RequestParser(16384).parse(bytes, 0, bytes.length), head);
+		}
+	}
+
+	@Test
+	void acceptsUnambiguousFraming() throws Exception {
+		assertEquals("abcde", post("Content-Length: 5\r\n", "abcde").body().text());
+		assertEquals("abcde", post("Content-Length: 5\r\nContent-Length: 5\r\n", "abcde").body().text());
+		assertEquals("abcde", post("Content-Length: 5, 5\r\n", "abcde").body().text());
+		assertEquals("abc", post("Transfer-Encoding: chunked\r\n", "3\r\nabc\r\n0\r\n\r\n").body().text());
+	}
+
+	@Test
+	void rejectsAmbiguousFraming() {
+		for (String fields : new String[] {
+				"Content-Length: 5\r\nTransfer-Encoding: chunked\r\n",
+				"Transfer-Encoding: chunked\r\nContent-Length: 0\r\n",
+				"Content-Length: 3\r\nContent-Length: 5\r\n",
+				"Content-Length: 5, 3\r\n",
+				"Content-Length: +5\r\n",
+				"Content-Length: -1\r\n",
+				"Content-Length: 0x5\r\n",
+				"Content-Length:\r\n",
+				"Transfer-Encoding: chunked\r\nTransfer-Encoding: identity\r\n",
+				"Transfer-Encoding: gzip, chunked\r\n",
+		}) {
+			assertThrows(ProtocolError.class, () -> post(fields, ""), fields);
+		}
+	}
+
+	private static void smuggling(int port, int selectorThreads) throws Exception {
+		List<String> handled = Collections.synchronizedList(new ArrayList<>());
+		HTTPServer server = RawClient.start(port, selectorThreads, r -> {
+			handled.add(RawClient.path(r));
+			return new HTTPResponse(200, "OK", new Headers(), Body.from("ok"));
+		});
+
+		try (RawClient client = new RawClient(port)) {
+			client.write("POST /front HTTP/1.1\r\nHost: localhost\r\nContent-Length: 5\r\nTransfer-Encoding: chunked\r\n\r\n" +
+					"0\r\n\r\nGET /smuggled HTTP/1.1\r\nHost: localhost\r\n\r\n");
+
+			RawClient.Response response = client.read();
+			assertEquals(400, response.status);
+			assertFalse(response.keepAlive());
+			assertTrue(client.closed());
+			assertTrue(handled.isEmpty(), handled.toString());
+		} finally {
+			server.close();
+		}
+	}
+
+	@Test
+	void smugglingRejectedThreaded() throws Exception {
+		smuggling(28121, 0);
+	}
+
+	@Test
+	void smugglingRejectedSelector() throws Exception {
+		smuggling(28122, 1);
+	}
+}
@@ -0,0 +1,96 @@
+package com.nettleweb.http;
+
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RouterTest {
+	private final Router router = new Router()
+			.get("/", handler("root"))
+			.get("/users", handler("users"))
+			.get("/users/{id}", handler("user"))
+			.get("/users/me", handler("me"))
+			.get("/users/{id}/posts/{post}", handler("post"))
+			.post("/users/{id}", handler("update"))
+			.get("/uservoice", handler("voice"))
+			.get("/static/*", handler("static"))
+			.get("/files/{path*}", handler("files"))
+			.get("/a/{x}/c", handler("axc"))
+			.get("/a/b/{y}", handler("aby"))
+			.route(null, "/any", handler("any"));
+
+	// responds with the tag of the route and its parameters
+	private static Router.Handler handler(String tag) {
+		return (request, params) -> {
+			StringBuilder builder = new StringBuilder(tag);
+			for (int i = 0; i < params.size(); i++)
+				builder.append(' ').append(params.name(i)).append('=').append(params.value(i));
+
+			return new HTTPResponse(200, "OK", new Headers(), Body.from(builder.toString()));
+		};
+	}
+
+	private String route(String method, String url) throws Exception {
+		HTTPResponse response = router.handleRequest(new HTTPRequest(url, method));
+		return response.status + " " + (response.body() == null ? "" : response.body().text());
+	}
+
+	@Test
+	void staticRoutes() throws Exception {
+		assertEquals("200 root", route("GET", "/"));
+		assertEquals("200 users", route("GET", "/users"));
+		assertEquals("200 voice", route("GET", "/uservoice"));
+		assertEquals("404 404 Not Found", route("GET", "/userx"));
+		assertEquals("404 404 Not Found", route("GET", "/users/"));
+	}
+
+	@Test
+	void parameters() throws Exception {
+		assertEquals("200 me", route("GET", "/users/me"));
+		assertEquals("200 user id=mea", route("GET", "/users/mea?x=1"));
+		assertEquals("200 post id=42 post=7", route("GET", "/users/42/posts/7#top"));
+		assertEquals("200 user id=9", route("GET", "http://localhost:80/users/9"));
+		assertEquals("200 user id=a b", route("GET", "/users/a%20b"));
+	}
+
+	@Test
+	void wildcards() throws Exception {
+		assertEquals("200 static *=css/a.css", route("GET", "/static/css/a.css"));
+		assertEquals("200 static *=", route("GET", "/static/"));
+		assertEquals("200 files path=a b/é", route("GET", "/files/a%20b/%C3%A9"));
+	}
+
+	// a static segment is tried first, the parameter branch is taken when the rest does not match
+	@Test
+	void backtracking() throws Exception {
+		assertEquals("200 aby y=c", route("GET", "/a/b/c"));
+		assertEquals("200 aby y=d", route("GET", "/a/b/d"));
+		assertEquals("200 axc x=q", route("GET", "/a/q/c"));
+	}
+
+	@Test
+	void methods() throws Exception {
+		assertEquals("200 update id=42", route("POST", "/users/42"));
+		assertEquals("200 user id=42", route("HEAD", "/users/42"));
+		assertEquals("200 any", route("PATCH", "/any"));
+
+		HTTPResponse response = router.handleRequest(new HTTPRequest("/users/42", "DELETE"));
+		assertEquals(405, response.status);
+		assertEquals("GET, HEAD, POST", response.headers.get("allow"));
+	}
+
+	@Test
+	void rejectsInvalidPatterns() {
+		for (String pattern : new String[] { "x", "/a{b}", "/{x}y", "/*/x", "/{}" })
+			assertThrows(IllegalArgumentException.class, () -> router.get(pattern, handler("x")), pattern);
+
+		assertThrows(IllegalStateException.class, () -> router.get("/users/{id}", handler("x")));
+	}
+
+	@Test
+	void fallback() throws Exception {
+		router.setFallback(request -> new HTTPResponse(418, "", new Headers(), Body.from("fallback")));
+		assertEquals("418 fallback", route("GET", "/nothing"));
+		assertEquals("418 fallback", route("GET", "*"));
+	}
+}
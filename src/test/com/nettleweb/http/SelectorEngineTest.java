@@ -0,0 +1,64 @@
+package com.nettleweb.http;
+
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SelectorEngineTest {
+	@Test
+	void requestHeadSplitAcrossReads() throws Exception {
+		HTTPServer server = RawClient.start(28101, 1, r -> new HTTPResponse(200, "OK", new Headers(), Body.from(RawClient.path(r) + " " + r.headers.get("x-test"))));
+
+		try (RawClient client = new RawClient(28101)) {
+			String head = "GET /split HTTP/1.1\r\nHost: localhost\r\nX-Test: " + RawClient.repeat('a', 20000) + "\r\n\r\n";
+			for (int i = 0; i < head.length(); i += 1000) {
+				client.write(head.substring(i, Math.min(i + 1000, head.length())));
+				Thread.sleep(2);
+			}
+
+			RawClient.Response response = client.read();
+			assertEquals(200, response.status);
+			assertEquals("/split " + RawClient.repeat('a', 20000), response.body);
+		} finally {
+			server.close();
+		}
+	}
+
+	@Test
+	void largeRequestBody() throws Exception {
+		HTTPServer server = RawClient.start(28102, 2, r -> new HTTPResponse(200, "OK", new Headers(), Body.from(String.valueOf(r.body().buffer().length))));
+
+		try (RawClient client = new RawClient(28102)) {
+			String body = RawClient.repeat('b', 300000);
+			for (int i = 0; i < 3; i++) {
+				client.write("POST /upload HTTP/1.1\r\nHost: localhost\r\nContent-Length: " + body.length() + "\r\n\r\n" + body);
+
+				RawClient.Response response = client.read();
+				assertEquals(200, response.status);
+				assertEquals("300000", response.body);
+			}
+		} finally {
+			server.close();
+		}
+	}
+
+	@Test
+	void idleConnectionTimesOut() throws Exception {
+		HTTPServer server = new HTTPServer("127.0.0.1", 28103);
+		server.setSelectorThreads(1);
+		server.setKeepAliveTimeout(300);
+		server.setLogger(null);
+		server.setHandler(r -> new HTTPResponse(200, "OK", new Headers(), Body.from("ok")));
+		server.start();
+
+		try (RawClient client = new RawClient(28103)) {
+			assertEquals("ok", client.get("/").body);
+
+			long start = System.currentTimeMillis();
+			assertTrue(client.closed());
+			assertTrue(System.currentTimeMillis() - start < 4000L);
+		} finally {
+			server.close();
+		}
+	}
+}